@@ -0,0 +1,65 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import net.pugsplace.enlightenmonitor.core.PerformanceParser;
+import net.pugsplace.enlightenmonitor.core.RefreshScheduler;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The small per-value helpers: unit conversion in getWatts and
+ * parseRefreshString.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+	@Param({ "W", "kWh", "MWh" })
+	public String units;
+
+	@Param({ "15 minutes", "4 hours" })
+	public String refresh;
+
+	private JSONObject dataset;
+
+	@Setup
+	public void setup() throws Exception {
+		dataset = new JSONObject("{\"primary_stat\":{\"value\":12.7,\"units\":\"" + units + "\"}}");
+	}
+
+	@Benchmark
+	public double getWatts() {
+		return PerformanceParser.getWatts(12.7, units);
+	}
+
+	@Benchmark
+	public double legacyGetWatts() throws Exception {
+		return LegacyPerformance.getWatts(dataset);
+	}
+
+	@Benchmark
+	public long parseRefreshString() {
+		return RefreshScheduler.parseRefreshString(refresh);
+	}
+
+	@Benchmark
+	public long legacyParseRefreshString() {
+		return LegacyPerformance.parseRefreshString(refresh);
+	}
+}
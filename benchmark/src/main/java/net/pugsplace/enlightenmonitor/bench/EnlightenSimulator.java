@@ -0,0 +1,620 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the array viewer endpoint with any number of synthetic
+ * systems, named <code>sim-0</code> up to <code>sim-(N-1)</code>. Each
+ * produces along a diurnal curve of its own: a sine over its day length,
+ * shaped by seasons, a cloud cover drawn per day and noise per five minute
+ * slot. All of it is derived from the system number and the time, so runs
+ * repeat exactly.
+ *
+ * Faults can be injected: latency with an exponential tail, 5xx errors and
+ * malformed bodies, each at a given rate. Responses carry an ETag that
+ * changes every slot, so conditional requests get 304s as they would from
+ * the real server. Systems can report in W, kW or MW rather than the real
+ * server's mix of units.
+ *
+ * Time can run faster than the wall clock, so a short load test sweeps
+ * through day and night.
+ *
+ * Each system also has a stand-in for its Envoy gateway, serving the same
+ * production as the gateway's <code>/api/v1/production</code> summary under
+ * {@link #getGatewayAddress(int)}. Gateways are on the local network, so
+ * they answer without the injected latency and faults; they can instead be
+ * taken down all together.
+ */
+public class EnlightenSimulator {
+	static final String PATH = "/public/systems/";
+	static final String SYSTEM_PREFIX = "sim-";
+	static final String GATEWAY_PATH = "/gateways/";
+	static final String GATEWAY_PRODUCTION_PATH = "/api/v1/production";
+
+	private static final long SLOT_MS = 5 * 60 * 1000;
+	private static final long DAY_MS = 24 * 60 * 60 * 1000;
+	private static final int SLOTS_PER_DAY = (int) (DAY_MS / SLOT_MS);
+
+	/** Real server's units: kW now, kWh for the period totals and MWh for lifetime */
+	public static final int UNITS_MIXED = 0;
+	/** Every system reports in W and Wh, kW and kWh, or MW and MWh, picked by system */
+	public static final int UNITS_VARIED = 1;
+
+	static {
+		// As in StubServer: don't let Nagle hold back bodies on kept-alive connections
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final int systemCount;
+	private final Random random = new Random();
+
+	private final long simulatedStart;
+	private final long realStart;
+	private volatile double speed = 1;
+
+	private volatile long latencyMs = 0;
+	private volatile long latencyTailMs = 0;
+	private volatile double errorRate = 0;
+	private volatile double malformedRate = 0;
+	private volatile boolean sendEtag = true;
+	private volatile boolean includeSeries = true;
+	private volatile int units = UNITS_MIXED;
+	private volatile boolean gatewaysDown = false;
+
+	private final AtomicLong served = new AtomicLong();
+	private final AtomicLong notModified = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong malformed = new AtomicLong();
+	private final AtomicLong gatewayServed = new AtomicLong();
+
+	/** Latest body of each system, rebuilt when its slot moves on */
+	private final ConcurrentHashMap<Integer, Body> bodies = new ConcurrentHashMap<Integer, Body>();
+	private final ConcurrentHashMap<Integer, Body> gatewayBodies = new ConcurrentHashMap<Integer, Body>();
+
+	private static class Body {
+		final long slot;
+		final String etag;
+		final byte[] plain;
+		final byte[] gzipped;
+
+		Body(long slot, String etag, byte[] plain) throws IOException {
+			this.slot = slot;
+			this.etag = etag;
+			this.plain = plain;
+			this.gzipped = Payloads.gzip(plain);
+		}
+	}
+
+	/**
+	 * Start serving on an ephemeral port of the loopback interface.
+	 *
+	 * @param systemCount
+	 *            How many synthetic systems there are.
+	 * @param simulatedStart
+	 *            Simulated time at which the simulator starts.
+	 */
+	public EnlightenSimulator(int systemCount, long simulatedStart) throws IOException {
+		this(systemCount, simulatedStart, 0);
+	}
+
+	/**
+	 * @param port
+	 *            Port to listen on, or 0 for any.
+	 */
+	public EnlightenSimulator(int systemCount, long simulatedStart, int port) throws IOException {
+		this.systemCount = systemCount;
+		this.simulatedStart = simulatedStart;
+		this.realStart = System.currentTimeMillis();
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 1024);
+		server.createContext(PATH, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					respond(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.createContext(GATEWAY_PATH, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					respondAsGateway(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * @return The URL template, with a %s for the system ID.
+	 */
+	public String getUrlTemplate() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + PATH + "%s/array_viewer_performance_data.json";
+	}
+
+	/**
+	 * @return The base URL of system <code>i</code>'s gateway, as would be
+	 *         given to a GatewaySource.
+	 */
+	public String getGatewayAddress(int i) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + GATEWAY_PATH + getSystemId(i);
+	}
+
+	/**
+	 * @return The ID of synthetic system <code>i</code>.
+	 */
+	public static String getSystemId(int i) {
+		return SYSTEM_PREFIX + i;
+	}
+
+	public int getSystemCount() {
+		return systemCount;
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @param speed
+	 *            How many simulated milliseconds pass per real one.
+	 */
+	public void setSpeed(double speed) {
+		this.speed = speed;
+	}
+
+	/**
+	 * @param baseMs
+	 *            Delay before every response.
+	 * @param tailMs
+	 *            Mean of an exponentially distributed extra delay, for a long
+	 *            tail.
+	 */
+	public void setLatency(long baseMs, long tailMs) {
+		this.latencyMs = baseMs;
+		this.latencyTailMs = tailMs;
+	}
+
+	/**
+	 * @param rate
+	 *            Fraction of requests answered with a 500 or 503.
+	 */
+	public void setErrorRate(double rate) {
+		this.errorRate = rate;
+	}
+
+	/**
+	 * @param rate
+	 *            Fraction of responses whose body is cut short or isn't JSON.
+	 */
+	public void setMalformedRate(double rate) {
+		this.malformedRate = rate;
+	}
+
+	/**
+	 * @param sendEtag
+	 *            Whether to send ETags and answer matching requests with 304.
+	 */
+	public void setSendEtag(boolean sendEtag) {
+		this.sendEtag = sendEtag;
+	}
+
+	/**
+	 * @param includeSeries
+	 *            Whether to send today's power readings with the primary
+	 *            stats, as the real server does.
+	 */
+	public void setIncludeSeries(boolean includeSeries) {
+		this.includeSeries = includeSeries;
+		bodies.clear();
+	}
+
+	/**
+	 * @param units
+	 *            {@link #UNITS_MIXED} or {@link #UNITS_VARIED}.
+	 */
+	public void setUnits(int units) {
+		this.units = units;
+		bodies.clear();
+	}
+
+	/**
+	 * @param down
+	 *            Whether every gateway answers 503, as if unreachable.
+	 */
+	public void setGatewaysDown(boolean down) {
+		this.gatewaysDown = down;
+	}
+
+	/**
+	 * @return The current simulated time.
+	 */
+	public long now() {
+		return simulatedStart + (long) ((System.currentTimeMillis() - realStart) * speed);
+	}
+
+	public long getServed() {
+		return served.get();
+	}
+
+	public long getNotModified() {
+		return notModified.get();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	public long getMalformed() {
+		return malformed.get();
+	}
+
+	public long getGatewayServed() {
+		return gatewayServed.get();
+	}
+
+	private void respond(HttpExchange exchange) throws IOException {
+		served.incrementAndGet();
+		sleep();
+
+		int system = parseSystem(exchange.getRequestURI().getPath());
+		if (system < 0) {
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+
+		double roll;
+		synchronized (random) {
+			roll = random.nextDouble();
+		}
+		if (roll < errorRate) {
+			errors.incrementAndGet();
+			exchange.sendResponseHeaders(roll < errorRate / 2 ? 500 : 503, -1);
+			return;
+		}
+
+		Body body = getBody(system);
+		if (sendEtag) {
+			exchange.getResponseHeaders().set("ETag", body.etag);
+			if (body.etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+				notModified.incrementAndGet();
+				exchange.sendResponseHeaders(304, -1);
+				return;
+			}
+		}
+
+		byte[] bytes;
+		String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		boolean gzip = accept != null && accept.contains("gzip");
+		if (roll < errorRate + malformedRate) {
+			// Malformed bodies go out uncompressed, and without the ETag's promise
+			malformed.incrementAndGet();
+			exchange.getResponseHeaders().remove("ETag");
+			bytes = malform(body.plain, roll);
+			gzip = false;
+		} else {
+			bytes = gzip ? body.gzipped : body.plain;
+		}
+
+		if (gzip) {
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private void respondAsGateway(HttpExchange exchange) throws IOException {
+		gatewayServed.incrementAndGet();
+		String path = exchange.getRequestURI().getPath();
+		int system = -1;
+		if (path.startsWith(GATEWAY_PATH + SYSTEM_PREFIX) && path.endsWith(GATEWAY_PRODUCTION_PATH)) {
+			try {
+				system = Integer.parseInt(path.substring(GATEWAY_PATH.length() + SYSTEM_PREFIX.length(), path.length()
+						- GATEWAY_PRODUCTION_PATH.length()));
+			} catch (NumberFormatException e) {
+				// Not one of ours
+			}
+		}
+		if (system < 0 || system >= systemCount) {
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+		if (gatewaysDown) {
+			exchange.sendResponseHeaders(503, -1);
+			return;
+		}
+
+		long now = now();
+		long slot = floorDiv(now, SLOT_MS);
+		Body body = gatewayBodies.get(system);
+		if (body == null || body.slot != slot) {
+			body = new Body(slot, null, new SyntheticSystem(system).renderGateway(now).getBytes("UTF-8"));
+			gatewayBodies.put(system, body);
+		}
+		byte[] bytes = body.plain;
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private void sleep() {
+		long delay = latencyMs;
+		if (latencyTailMs > 0) {
+			double u;
+			synchronized (random) {
+				u = random.nextDouble();
+			}
+			delay += (long) (-Math.log(1 - u) * latencyTailMs);
+		}
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private int parseSystem(String path) {
+		if (!path.startsWith(PATH + SYSTEM_PREFIX)) {
+			return -1;
+		}
+		int end = path.indexOf('/', PATH.length());
+		if (end < 0) {
+			return -1;
+		}
+		try {
+			int system = Integer.parseInt(path.substring(PATH.length() + SYSTEM_PREFIX.length(), end));
+			return system >= 0 && system < systemCount ? system : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Either cut the body off part way through or replace it with an error
+	 * page, as a misbehaving proxy might.
+	 */
+	private static byte[] malform(byte[] plain, double roll) {
+		if ((int) (roll * 1000) % 2 == 0) {
+			byte[] cut = new byte[Math.max(1, plain.length / 3)];
+			System.arraycopy(plain, 0, cut, 0, cut.length);
+			return cut;
+		}
+		return "<html><body>Service Temporarily Unavailable</body></html>".getBytes();
+	}
+
+	private Body getBody(int system) throws IOException {
+		long now = now();
+		long slot = floorDiv(now, SLOT_MS);
+		Body body = bodies.get(system);
+		if (body == null || body.slot != slot) {
+			String etag = "\"sim-" + system + "-" + slot + "-" + units + (includeSeries ? "s" : "") + "\"";
+			body = new Body(slot, etag, new SyntheticSystem(system).render(now, units, includeSeries).getBytes(
+					"UTF-8"));
+			bodies.put(system, body);
+		}
+		return body;
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+	}
+
+	/**
+	 * One synthetic system's production model. Holds nothing but its
+	 * parameters, so building one per response is cheap.
+	 */
+	static class SyntheticSystem {
+		final int number;
+		/** Peak output on a clear midsummer day, in watts */
+		final double capacityWatts;
+		/** Offset of local time from UTC */
+		final long offsetMs;
+		/** Solar noon, in hours after local midnight */
+		final double noonHours;
+		/** Days since installation at the epoch; used for lifetime energy */
+		final long installDay;
+
+		SyntheticSystem(int number) {
+			this.number = number;
+			Random params = new Random(number * 7919L + 17);
+			capacityWatts = 2000 + params.nextDouble() * 8000;
+			offsetMs = -(5 + params.nextInt(4)) * 60 * 60 * 1000L;
+			noonHours = 12.5 + params.nextDouble();
+			installDay = 14000 - params.nextInt(2000);
+		}
+
+		/**
+		 * @return Output at the given time, in watts.
+		 */
+		double getWatts(long timeMillis) {
+			long local = timeMillis + offsetMs;
+			long day = floorDiv(local, DAY_MS);
+			double hours = (local - day * DAY_MS) / 3600000.0;
+
+			// Day length swings three hours either side of twelve over the year
+			double season = Math.cos(2 * Math.PI * ((day + 10) % 365) / 365.0);
+			double dayLength = 12 - 3 * season;
+			double sinceSunrise = hours - (noonHours - dayLength / 2);
+			if (sinceSunrise <= 0 || sinceSunrise >= dayLength) {
+				return 0;
+			}
+
+			double sun = Math.pow(Math.sin(Math.PI * sinceSunrise / dayLength), 1.3);
+			double clouds = 0.3 + 0.7 * unit(number, day, -1);
+			long slot = floorDiv(local, SLOT_MS);
+			double noise = 1 - (1 - clouds) * 0.5 * unit(number, day, (int) (slot % SLOTS_PER_DAY));
+			return capacityWatts * (0.75 - 0.15 * season) * sun * clouds * noise;
+		}
+
+		/**
+		 * @return Energy produced between two times, in watt-hours, as the
+		 *         sum of whole five minute slots.
+		 */
+		double getWattHours(long fromMillis, long toMillis) {
+			double wattHours = 0;
+			for (long slot = floorDiv(fromMillis, SLOT_MS); slot < floorDiv(toMillis, SLOT_MS); slot++) {
+				wattHours += getWatts(slot * SLOT_MS) * SLOT_MS / 3600000.0;
+			}
+			return wattHours;
+		}
+
+		/**
+		 * @return Local midnight at the start of the day <code>days</code>
+		 *         before the one holding the given time, in UTC.
+		 */
+		long getMidnight(long timeMillis, int days) {
+			long local = timeMillis + offsetMs;
+			return (floorDiv(local, DAY_MS) - days) * DAY_MS - offsetMs;
+		}
+
+		String render(long now, int units, boolean includeSeries) {
+			long local = now + offsetMs;
+			long day = floorDiv(local, DAY_MS);
+			// 1970-01-01 was a Thursday; weeks start on Sunday, and months
+			// are simply thirty days
+			int dayOfWeek = (int) ((day + 4) % 7);
+			int dayOfMonth = (int) (day % 30);
+
+			long today = getMidnight(now, 0);
+			double todayWh = getWattHours(today, now);
+			double weekWh = getWattHours(getMidnight(now, dayOfWeek), now);
+			double monthWh = getWattHours(getMidnight(now, dayOfMonth), now);
+			double lifetimeWh = getLifetimeWattHours(now);
+
+			String[] unitNames;
+			if (units == UNITS_VARIED) {
+				String prefix = new String[] { "", "k", "M" }[number % 3];
+				unitNames = new String[] { prefix + "W", prefix + "Wh", prefix + "Wh", prefix + "Wh", prefix + "Wh" };
+			} else {
+				unitNames = new String[] { "kW", "kWh", "kWh", "kWh", "MWh" };
+			}
+
+			StringBuilder json = new StringBuilder(includeSeries ? 16384 : 1024);
+			json.append("{\"system_id\":").append(number).append(",\"system_name\":\"Simulated ").append(number);
+			json.append("\",\"datasets\":[");
+			String[] labels = { "Current Power", "Energy Today", "Energy This Week", "Energy This Month",
+					"Energy Lifetime" };
+			double[] values = { getWatts(now), todayWh, weekWh, monthWh, lifetimeWh };
+			for (int i = 0; i < labels.length; i++) {
+				if (i > 0) {
+					json.append(',');
+				}
+				double scale = scale(unitNames[i]);
+				json.append("{\"label\":\"").append(labels[i]).append("\",\"units\":\"").append(unitNames[i]);
+				json.append("\",\"primary_stat\":{\"label\":\"").append(labels[i]).append("\",\"value\":");
+				json.append(round(values[i] / scale)).append(",\"units\":\"").append(unitNames[i]);
+				json.append("\"},\"data\":[");
+				if (i == 0 && includeSeries) {
+					boolean first = true;
+					for (long t = today; t <= now; t += SLOT_MS) {
+						if (!first) {
+							json.append(',');
+						}
+						first = false;
+						json.append('[').append(t).append(',').append(round(getWatts(t) / scale)).append(']');
+					}
+				}
+				json.append("]}");
+			}
+			json.append("]}");
+			return json.toString();
+		}
+
+		/**
+		 * @return Energy since installation: earlier months at a typical
+		 *         yield, so it only ever rises, and this month as produced.
+		 */
+		double getLifetimeWattHours(long now) {
+			long day = floorDiv(now + offsetMs, DAY_MS);
+			int dayOfMonth = (int) (day % 30);
+			return (day - dayOfMonth - installDay) * capacityWatts * 4
+					+ getWattHours(getMidnight(now, dayOfMonth), now);
+		}
+
+		/**
+		 * @return The gateway's production summary, in whole watts and
+		 *         watt-hours as the Envoy gives them.
+		 */
+		String renderGateway(long now) {
+			return "{\n  \"wattHoursToday\": " + Math.round(getWattHours(getMidnight(now, 0), now))
+					+ ",\n  \"wattHoursSevenDays\": " + Math.round(getWattHours(getMidnight(now, 6), now))
+					+ ",\n  \"wattHoursLifetime\": " + Math.round(getLifetimeWattHours(now))
+					+ ",\n  \"wattsNow\": " + Math.round(getWatts(now)) + "\n}";
+		}
+
+		private static double scale(String unit) {
+			if (unit.startsWith("M")) {
+				return 1000000;
+			} else if (unit.startsWith("k")) {
+				return 1000;
+			}
+			return 1;
+		}
+
+		/** Keep five significant figures or so, like the real server */
+		private static double round(double value) {
+			if (value == 0) {
+				return 0;
+			}
+			double magnitude = Math.pow(10, 4 - (int) Math.floor(Math.log10(Math.abs(value))));
+			return Math.round(value * magnitude) / magnitude;
+		}
+
+		/**
+		 * @return A number in [0, 1) fixed by the system, day and slot.
+		 */
+		private static double unit(int system, long day, int slot) {
+			long h = system * 0x9E3779B97F4A7C15L + day * 0xC2B2AE3D27D4EB4FL + slot * 0x165667B19E3779F9L;
+			h ^= h >>> 33;
+			h *= 0xFF51AFD7ED558CCDL;
+			h ^= h >>> 33;
+			h *= 0xC4CEB9FE1A85EC53L;
+			h ^= h >>> 33;
+			return (h >>> 11) / (double) (1L << 53);
+		}
+	}
+
+	/**
+	 * Serve synthetic systems until killed, for pointing the widget or the
+	 * daemon at. Arguments: [systems] [port] [speed]
+	 */
+	public static void main(String[] args) throws Exception {
+		int systems = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		EnlightenSimulator simulator = new EnlightenSimulator(systems, System.currentTimeMillis(), port);
+		if (args.length > 2) {
+			simulator.setSpeed(Double.parseDouble(args[2]));
+		}
+		System.out.println("Serving " + systems + " systems at " + simulator.getUrlTemplate());
+		System.out.println("Gateways at " + simulator.getGatewayAddress(0) + " and so on");
+	}
+}
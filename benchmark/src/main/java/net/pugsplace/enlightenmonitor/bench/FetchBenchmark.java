@@ -0,0 +1,95 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.pugsplace.enlightenmonitor.core.ApiException;
+import net.pugsplace.enlightenmonitor.core.EnlightenClient;
+import net.pugsplace.enlightenmonitor.core.ParseException;
+import net.pugsplace.enlightenmonitor.core.SolarPerformance;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end fetches against a local {@link StubServer}: the pooled,
+ * streaming client against the old client-per-request, synchronized path.
+ * Throughput shows how well concurrent callers overlap; sample time gives the
+ * latency percentiles. Change the number of callers with <code>-t</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class FetchBenchmark {
+	private static final String USER_AGENT = "eSolarMonitor-benchmark/1.0";
+
+	@Param({ "small", "large" })
+	public String payload;
+
+	/** Simulated server latency, in milliseconds */
+	@Param({ "0", "20" })
+	public long latency;
+
+	private StubServer server;
+	private String urlTemplate;
+	private EnlightenClient client;
+
+	@Setup(Level.Trial)
+	public void start() throws Exception {
+		server = new StubServer(Payloads.load(payload), false, latency);
+		urlTemplate = server.getUrlTemplate();
+		client = new EnlightenClient(USER_AGENT);
+		client.setMaxConnections(Runtime.getRuntime().availableProcessors() * 4);
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() {
+		client.shutdown();
+		server.stop();
+	}
+
+	/** Gives each benchmark thread its own system ID */
+	@State(Scope.Thread)
+	public static class Caller {
+		private static final AtomicInteger sNext = new AtomicInteger();
+		String systemId;
+
+		@Setup
+		public void assign() {
+			systemId = "system" + sNext.incrementAndGet();
+		}
+	}
+
+	@Benchmark
+	public SolarPerformance pooledStreaming(Caller caller) throws ApiException, ParseException {
+		return client.getPerformance(String.format(urlTemplate, caller.systemId), caller.systemId);
+	}
+
+	@Benchmark
+	public String pooledGetUrlContent(Caller caller) throws ApiException {
+		return client.getUrlContent(String.format(urlTemplate, caller.systemId));
+	}
+
+	@Benchmark
+	public double[] legacy(Caller caller) throws ApiException, ParseException {
+		String content = LegacyPerformance.getUrlContent(String.format(urlTemplate, caller.systemId), USER_AGENT);
+		return LegacyPerformance.parse(content);
+	}
+}
@@ -0,0 +1,95 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import net.pugsplace.enlightenmonitor.core.PerformanceFormatter;
+import net.pugsplace.enlightenmonitor.core.PerformanceFormatter.unitSize;
+import net.pugsplace.enlightenmonitor.core.SolarPerformance;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Formatting the five display values, as drawScreen does for every widget on
+ * every redraw.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+	private static final double[] VALUES = { 2412.7, 14230.0, 81655.5, 352004.25, 12700000.0 };
+
+	private final char[] buffer = new char[PerformanceFormatter.MAX_LENGTH];
+	private SolarPerformance performance;
+
+	@Setup
+	public void setup() {
+		performance = newPerformance();
+	}
+
+	/** The old StringBuffer and shared DecimalFormat path */
+	@Benchmark
+	public void legacyDecimalFormat(Blackhole blackhole) {
+		blackhole.consume(LegacyPerformance.formatPerformance(VALUES[0], false, unitSize.watt));
+		for (int i = 1; i < VALUES.length; i++) {
+			blackhole.consume(LegacyPerformance.formatPerformance(VALUES[i], true, unitSize.kilowatt));
+		}
+	}
+
+	/** The fixed-point formatter, building a String each time */
+	@Benchmark
+	public void formatter(Blackhole blackhole) {
+		blackhole.consume(PerformanceFormatter.format(VALUES[0], false, unitSize.watt));
+		for (int i = 1; i < VALUES.length; i++) {
+			blackhole.consume(PerformanceFormatter.format(VALUES[i], true, unitSize.kilowatt));
+		}
+	}
+
+	/** The fixed-point formatter into a reused buffer, no allocation at all */
+	@Benchmark
+	public int formatterIntoBuffer() {
+		int length = PerformanceFormatter.format(buffer, 0, VALUES[0], false, unitSize.watt);
+		for (int i = 1; i < VALUES.length; i++) {
+			length += PerformanceFormatter.format(buffer, 0, VALUES[i], true, unitSize.kilowatt);
+		}
+		return length;
+	}
+
+	/** Repeated redraws of one reading, served from its cached strings */
+	@Benchmark
+	public void cachedGetters(Blackhole blackhole) {
+		blackhole.consume(performance.getCurrentWatts());
+		blackhole.consume(performance.getTodayWattHours());
+		blackhole.consume(performance.getWeekWattHours());
+		blackhole.consume(performance.getMonthWattHours());
+		blackhole.consume(performance.getLifetimeWattHours());
+	}
+
+	/** The first redraw of a new reading */
+	@Benchmark
+	public void freshGetters(Blackhole blackhole) {
+		SolarPerformance fresh = newPerformance();
+		blackhole.consume(fresh.getCurrentWatts());
+		blackhole.consume(fresh.getTodayWattHours());
+		blackhole.consume(fresh.getWeekWattHours());
+		blackhole.consume(fresh.getMonthWattHours());
+		blackhole.consume(fresh.getLifetimeWattHours());
+	}
+
+	private static SolarPerformance newPerformance() {
+		return new SolarPerformance(0, VALUES[0], VALUES[1], VALUES[2], VALUES[3], VALUES[4]);
+	}
+}
@@ -0,0 +1,147 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.DecimalFormat;
+
+import net.pugsplace.enlightenmonitor.core.ApiException;
+import net.pugsplace.enlightenmonitor.core.ParseException;
+import net.pugsplace.enlightenmonitor.core.PerformanceFormatter.unitSize;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The fetch, parse and format code as it stood before the performance work,
+ * kept so every benchmark has a baseline to compare against.
+ */
+final class LegacyPerformance {
+	private static DecimalFormat formatter = new DecimalFormat("0.0");
+
+	private static final int HTTP_STATUS_OK = 200;
+
+	private static byte[] sBuffer = new byte[512];
+
+	private LegacyPerformance() {
+	}
+
+	/**
+	 * A new client per request, one request at a time, whole body buffered.
+	 */
+	static synchronized String getUrlContent(String url, String userAgent) throws ApiException {
+		HttpClient client = new DefaultHttpClient();
+		HttpGet request = new HttpGet(url);
+		request.setHeader("User-Agent", userAgent);
+
+		try {
+			HttpResponse response = client.execute(request);
+
+			StatusLine status = response.getStatusLine();
+			if (status.getStatusCode() != HTTP_STATUS_OK) {
+				throw new ApiException("Invalid response from server: " + status.toString());
+			}
+
+			HttpEntity entity = response.getEntity();
+			InputStream inputStream = entity.getContent();
+
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+			int readBytes = 0;
+			while ((readBytes = inputStream.read(sBuffer)) != -1) {
+				content.write(sBuffer, 0, readBytes);
+			}
+
+			return new String(content.toByteArray());
+		} catch (IOException e) {
+			throw new ApiException("Problem communicating with API", e);
+		}
+	}
+
+	/**
+	 * The whole document as a JSONObject tree.
+	 *
+	 * @return current, today, week, month and lifetime in watts.
+	 */
+	static double[] parse(String content) throws ParseException {
+		try {
+			JSONObject response = new JSONObject(content);
+			JSONArray datasets = response.getJSONArray("datasets");
+
+			double[] watts = new double[5];
+			for (int i = 0; i < watts.length; i++) {
+				watts[i] = getWatts(datasets.getJSONObject(i));
+			}
+			return watts;
+		} catch (JSONException e) {
+			throw new ParseException("Problem parsing API response", e);
+		}
+	}
+
+	static double getWatts(JSONObject energyObject) throws JSONException {
+		JSONObject primaryStat = energyObject.getJSONObject("primary_stat");
+
+		String units = primaryStat.getString("units");
+		if (units.startsWith("kW")) {
+			return (double) (primaryStat.getDouble("value") * 1000);
+		} else if (units.startsWith("W")) {
+			return (double) (primaryStat.getDouble("value"));
+		} else if (units.startsWith("MW")) {
+			return (double) (primaryStat.getDouble("value") * 1000000);
+		} else {
+			return -1;
+		}
+	}
+
+	static String formatPerformance(double value, boolean energy, unitSize minUnit) {
+		StringBuffer sb = new StringBuffer();
+
+		if (value >= 1000000 || unitSize.megawatt.equals(minUnit)) {
+			sb.append(formatter.format((double) value / 1000000));
+			sb.append(" MW");
+		} else if (value > 9000 || unitSize.kilowatt.equals(minUnit)) {
+			sb.append(formatter.format((double) value / 1000));
+			sb.append(" kW");
+		} else {
+			sb.append(formatter.format(value));
+			sb.append(" W");
+		}
+
+		if (energy) {
+			sb.append('h');
+		}
+
+		return sb.toString();
+	}
+
+	static long parseRefreshString(String refreshString) {
+		long millsPerSecond = 1000 - 50; // Fudge factor
+		long secondsPerMinute = 60;
+		long minutesPerHour = 60;
+
+		if (refreshString != null) {
+			String parts[] = refreshString.split(" ");
+			if (parts.length == 2) {
+				int amt = Integer.parseInt(parts[0]);
+
+				if ("minutes".equals(parts[1])) {
+					return secondsPerMinute * millsPerSecond * amt;
+				}
+
+				if ("hours".equals(parts[1])) {
+					return secondsPerMinute * millsPerSecond * minutesPerHour * amt;
+				}
+			}
+		}
+
+		return secondsPerMinute * millsPerSecond * 30;
+	}
+}
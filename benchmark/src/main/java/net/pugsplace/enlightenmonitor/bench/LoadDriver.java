@@ -0,0 +1,295 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.bench;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.pugsplace.enlightenmonitor.core.ApiException;
+import net.pugsplace.enlightenmonitor.core.CachedSettings;
+import net.pugsplace.enlightenmonitor.core.DataSource;
+import net.pugsplace.enlightenmonitor.core.EnlightenClient;
+import net.pugsplace.enlightenmonitor.core.FallbackSource;
+import net.pugsplace.enlightenmonitor.core.GatewaySource;
+import net.pugsplace.enlightenmonitor.core.Metrics;
+import net.pugsplace.enlightenmonitor.core.ParseException;
+import net.pugsplace.enlightenmonitor.core.SolarMonitor;
+
+/**
+ * Drives the whole fetch pipeline, {@link SolarMonitor#getPerformanceData}
+ * through the pooled client and the streaming parser, against an
+ * {@link EnlightenSimulator} for a fixed time, then reports throughput, tail
+ * latency and the time spent in each stage. Nothing leaves the machine, so
+ * runs can be compared from one change to the next.
+ *
+ * Arguments are <code>key=value</code> pairs, all optional:
+ *
+ * <pre>
+ * systems     synthetic systems to spread requests over (1000)
+ * threads     callers making requests at once (16)
+ * seconds     how long to run, after warming up (30)
+ * warmup      seconds to run first without measuring (5)
+ * latency     ms the simulator waits before each response (0)
+ * tail        mean ms of extra exponential latency (0)
+ * errors      fraction of requests answered with 5xx (0)
+ * malformed   fraction of bodies cut short or not JSON (0)
+ * etag        whether the simulator answers conditional requests (true)
+ * series      whether bodies carry today's power readings (true)
+ * units       mixed, as the real server, or varied: W, kW or MW by system
+ * speed       simulated ms per real ms (60)
+ * arrayData   parse every point rather than just the primary stats (false)
+ * source      cloud, gateway, or fallback: gateway then cloud (cloud)
+ * gatewaysDown  whether the simulated gateways answer 503 (false)
+ * url         fetch from this URL template instead of a local simulator
+ * </pre>
+ */
+public class LoadDriver {
+	private final SolarMonitor monitor;
+	private EnlightenClient gatewayClient = null;
+	private final int systems;
+	private final int threads;
+
+	private final AtomicLong succeeded = new AtomicLong();
+	private final AtomicLong apiFailures = new AtomicLong();
+	private final AtomicLong parseFailures = new AtomicLong();
+
+	/**
+	 * @param urlTemplate
+	 *            Performance URL, with a %s for the system ID.
+	 * @param systems
+	 *            Requests go to systems <code>sim-0</code> up to this.
+	 */
+	public LoadDriver(String urlTemplate, int systems, int threads, boolean arrayData) {
+		this.systems = systems;
+		this.threads = threads;
+
+		EnlightenClient client = new EnlightenClient("eSolarMonitor-load/1.0", Math.max(threads,
+				EnlightenClient.DEFAULT_MAX_TOTAL_CONNECTIONS));
+		client.setMaxConnections(threads);
+		monitor = new SolarMonitor(client, urlTemplate, new MemorySettings(), null);
+		monitor.setKeepArrayData(arrayData);
+		// Every call should reach the server, not the short-lived result cache
+		monitor.setResultTtl(0);
+	}
+
+	/**
+	 * Read every system from its gateway on the simulator rather than the
+	 * cloud endpoint.
+	 *
+	 * @param fallback
+	 *            Whether to fall back to the cloud endpoint while a gateway
+	 *            fails.
+	 */
+	public void useGateways(EnlightenSimulator simulator, boolean fallback) {
+		gatewayClient = new EnlightenClient("eSolarMonitor-load/1.0", Math.max(threads,
+				EnlightenClient.DEFAULT_MAX_TOTAL_CONNECTIONS));
+		gatewayClient.setMaxConnections(threads);
+		for (int i = 0; i < systems; i++) {
+			DataSource gateway = new GatewaySource(gatewayClient, simulator.getGatewayAddress(i), monitor
+					.getSettings());
+			monitor.setDataSource(EnlightenSimulator.getSystemId(i), fallback ? new FallbackSource(gateway,
+					monitor.getCloudSource()) : gateway);
+		}
+	}
+
+	/**
+	 * Settings that are never written anywhere.
+	 */
+	static class MemorySettings extends CachedSettings {
+		MemorySettings() {
+			super(Long.MAX_VALUE / 2);
+		}
+
+		@Override
+		protected void write(Map<String, Object> changes) {
+		}
+	}
+
+	/**
+	 * Make requests from every thread for the given time.
+	 *
+	 * @return The latency of every request that completed, in nanoseconds,
+	 *         sorted.
+	 */
+	public long[] run(final long millis) throws InterruptedException {
+		final long[][] latencies = new long[threads][];
+		final int[] counts = new int[threads];
+		final CountDownLatch done = new CountDownLatch(threads);
+		final long end = System.currentTimeMillis() + millis;
+
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			new Thread("eSolarLoad-" + t) {
+				public void run() {
+					Random random = new Random(thread);
+					long[] mine = new long[4096];
+					int count = 0;
+					try {
+						while (System.currentTimeMillis() < end) {
+							String systemId = EnlightenSimulator.getSystemId(random.nextInt(systems));
+							long start = System.nanoTime();
+							try {
+								monitor.getPerformanceData(systemId);
+								succeeded.incrementAndGet();
+							} catch (ApiException e) {
+								apiFailures.incrementAndGet();
+							} catch (ParseException e) {
+								parseFailures.incrementAndGet();
+							}
+							if (count == mine.length) {
+								long[] grown = new long[count * 2];
+								System.arraycopy(mine, 0, grown, 0, count);
+								mine = grown;
+							}
+							mine[count++] = System.nanoTime() - start;
+						}
+					} finally {
+						latencies[thread] = mine;
+						counts[thread] = count;
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+
+		int total = 0;
+		for (int count : counts) {
+			total += count;
+		}
+		long[] all = new long[total];
+		int offset = 0;
+		for (int t = 0; t < threads; t++) {
+			System.arraycopy(latencies[t], 0, all, offset, counts[t]);
+			offset += counts[t];
+		}
+		Arrays.sort(all);
+		return all;
+	}
+
+	public long getSucceeded() {
+		return succeeded.get();
+	}
+
+	public long getApiFailures() {
+		return apiFailures.get();
+	}
+
+	public long getParseFailures() {
+		return parseFailures.get();
+	}
+
+	public void shutdown() {
+		monitor.getClient().shutdown();
+		if (gatewayClient != null) {
+			gatewayClient.shutdown();
+		}
+	}
+
+	/**
+	 * @return The latency below which the given fraction of sorted latencies
+	 *         fall, in milliseconds.
+	 */
+	static double percentile(long[] sorted, double fraction) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+		return sorted[Math.max(0, index)] / 1e6;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals < 0) {
+				System.err.println("Arguments are key=value; see LoadDriver for the keys");
+				System.exit(2);
+			}
+			options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		int systems = Integer.parseInt(get(options, "systems", "1000"));
+		int threads = Integer.parseInt(get(options, "threads", "16"));
+		long seconds = Long.parseLong(get(options, "seconds", "30"));
+		long warmup = Long.parseLong(get(options, "warmup", "5"));
+
+		// Failures are expected when injecting faults; count them, don't log each
+		Logger.getLogger("eSolarMonitor").setLevel(Level.SEVERE);
+		Logger.getLogger("org.apache.http").setLevel(Level.SEVERE);
+
+		EnlightenSimulator simulator = null;
+		String url = options.get("url");
+		if (url == null) {
+			simulator = new EnlightenSimulator(systems, System.currentTimeMillis());
+			simulator.setLatency(Long.parseLong(get(options, "latency", "0")), Long.parseLong(get(options, "tail",
+					"0")));
+			simulator.setErrorRate(Double.parseDouble(get(options, "errors", "0")));
+			simulator.setMalformedRate(Double.parseDouble(get(options, "malformed", "0")));
+			simulator.setSendEtag(Boolean.parseBoolean(get(options, "etag", "true")));
+			simulator.setIncludeSeries(Boolean.parseBoolean(get(options, "series", "true")));
+			simulator.setUnits("varied".equals(get(options, "units", "mixed")) ? EnlightenSimulator.UNITS_VARIED
+					: EnlightenSimulator.UNITS_MIXED);
+			simulator.setSpeed(Double.parseDouble(get(options, "speed", "60")));
+			url = simulator.getUrlTemplate();
+		}
+
+		LoadDriver driver = new LoadDriver(url, systems, threads, Boolean.parseBoolean(get(options, "arrayData",
+				"false")));
+		String source = get(options, "source", "cloud");
+		if (!"cloud".equals(source)) {
+			if (simulator == null) {
+				System.err.println("Gateways are only simulated; leave out url to use them");
+				System.exit(2);
+			}
+			simulator.setGatewaysDown(Boolean.parseBoolean(get(options, "gatewaysDown", "false")));
+			driver.useGateways(simulator, "fallback".equals(source));
+		}
+		try {
+			if (warmup > 0) {
+				System.out.println("Warming up for " + warmup + "s");
+				driver.run(warmup * 1000);
+			}
+			long succeededBefore = driver.getSucceeded();
+			long apiBefore = driver.getApiFailures();
+			long parseBefore = driver.getParseFailures();
+
+			System.out.println("Running " + threads + " threads against " + systems + " systems for " + seconds
+					+ "s");
+			long start = System.nanoTime();
+			long[] latencies = driver.run(seconds * 1000);
+			double elapsed = (System.nanoTime() - start) / 1e9;
+
+			System.out.println();
+			System.out.printf("requests    %d (%.0f/s)%n", latencies.length, latencies.length / elapsed);
+			System.out.printf("succeeded   %d%n", driver.getSucceeded() - succeededBefore);
+			System.out.printf("api errors  %d%n", driver.getApiFailures() - apiBefore);
+			System.out.printf("bad bodies  %d%n", driver.getParseFailures() - parseBefore);
+			System.out.printf("latency ms  p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n", percentile(
+					latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99), percentile(latencies,
+					0.999), percentile(latencies, 1));
+			if (simulator != null) {
+				System.out.printf("simulator   served %d, 304 %d, errors %d, malformed %d, gateway %d%n", simulator
+						.getServed(), simulator.getNotModified(), simulator.getErrors(), simulator.getMalformed(),
+						simulator.getGatewayServed());
+			}
+			System.out.println();
+			System.out.println("Stages, warmup included:");
+			System.out.print(Metrics.getSummary());
+		} finally {
+			driver.shutdown();
+			if (simulator != null) {
+				simulator.stop();
+			}
+		}
+	}
+
+	private static String get(Map<String, String> options, String key, String defaultValue) {
+		String value = options.get(key);
+		return value == null ? defaultValue : value;
+	}
+}
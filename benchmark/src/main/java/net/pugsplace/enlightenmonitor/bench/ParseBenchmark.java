@@ -0,0 +1,64 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.bench;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import net.pugsplace.enlightenmonitor.core.ApiException;
+import net.pugsplace.enlightenmonitor.core.ArrayData;
+import net.pugsplace.enlightenmonitor.core.ParseException;
+import net.pugsplace.enlightenmonitor.core.PerformanceParser;
+import net.pugsplace.enlightenmonitor.core.SolarPerformance;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extracting the primary stats from a response body already in memory: the
+ * streaming parser against the JSONObject tree it replaced, and the cost of
+ * parsing every data point into {@link ArrayData} as well. Run with
+ * <code>-prof gc</code> to compare allocation as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+	@Param({ "small", "medium", "large" })
+	public String payload;
+
+	private byte[] bytes;
+	private String text;
+
+	@Setup
+	public void load() throws Exception {
+		bytes = Payloads.load(payload);
+		text = new String(bytes, "UTF-8");
+	}
+
+	@Benchmark
+	public SolarPerformance streaming() throws ApiException, ParseException {
+		return new PerformanceParser(new ByteArrayInputStream(bytes)).parse();
+	}
+
+	@Benchmark
+	public ArrayData streamingArrayData() throws ApiException, ParseException {
+		return new PerformanceParser(new ByteArrayInputStream(bytes)).parseArrayData();
+	}
+
+	@Benchmark
+	public double[] legacyJsonObject() throws ParseException {
+		return LegacyPerformance.parse(text);
+	}
+}
@@ -0,0 +1,56 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sample array viewer responses bundled with the benchmarks. The same five
+ * datasets appear in each; they differ in how many time series points ride
+ * along with the primary stats.
+ *
+ * <ul>
+ * <li>small: primary stats only, under 1KB</li>
+ * <li>medium: a day of 5 minute power readings, about 20KB</li>
+ * <li>large: four weeks of readings, about 400KB</li>
+ * </ul>
+ */
+final class Payloads {
+	static final String[] SIZES = { "small", "medium", "large" };
+
+	private Payloads() {
+	}
+
+	static byte[] load(String size) throws IOException {
+		InputStream in = Payloads.class.getResourceAsStream("/payloads/" + size + ".json");
+		if (in == null) {
+			throw new IOException("No payload named " + size);
+		}
+
+		try {
+			return read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	static byte[] gzip(byte[] content) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(content);
+		gzip.close();
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,214 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.pugsplace.enlightenmonitor.core.BatchFormat;
+import net.pugsplace.enlightenmonitor.core.SampleBatch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for a collector taking sample batches from the uploader.
+ * Every batch is decoded, and one seen before, by uploader ID and sequence,
+ * is acknowledged but not counted again, as a real collector would. It
+ * keeps, per system, how many samples it has and the newest timestamp.
+ *
+ * Failures can be injected at a given rate, answered either with a 503
+ * before the batch is read, or after it's been taken in, as when the
+ * acknowledgement is lost on the way back.
+ */
+public class StubCollector {
+	static final String PATH = "/samples";
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Random random = new Random();
+
+	private volatile double failureRate = 0;
+	private volatile double lostAckRate = 0;
+
+	private final Set<String> batchesSeen = new HashSet<String>();
+	private final ConcurrentHashMap<String, AtomicLong> samplesBySystem = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentHashMap<String, Long> newestBySystem = new ConcurrentHashMap<String, Long>();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong duplicates = new AtomicLong();
+	private final AtomicLong samples = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * @param port
+	 *            Port to listen on, or 0 for any.
+	 */
+	public StubCollector(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 64);
+		server.createContext(PATH, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					respond(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + PATH;
+	}
+
+	/**
+	 * @param rate
+	 *            Fraction of batches turned away with a 503 unread.
+	 */
+	public void setFailureRate(double rate) {
+		this.failureRate = rate;
+	}
+
+	/**
+	 * @param rate
+	 *            Fraction of batches taken in but answered with a 503.
+	 */
+	public void setLostAckRate(double rate) {
+		this.lostAckRate = rate;
+	}
+
+	private void respond(HttpExchange exchange) throws IOException {
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			exchange.sendResponseHeaders(405, -1);
+			return;
+		}
+		if (chance(failureRate)) {
+			failures.incrementAndGet();
+			exchange.sendResponseHeaders(503, -1);
+			return;
+		}
+
+		byte[] body = Payloads.read(exchange.getRequestBody());
+		BatchFormat.Batch batch;
+		try {
+			batch = BatchFormat.decode(body);
+		} catch (IOException e) {
+			exchange.sendResponseHeaders(400, -1);
+			return;
+		}
+		take(batch, body.length);
+
+		if (chance(lostAckRate)) {
+			failures.incrementAndGet();
+			exchange.sendResponseHeaders(503, -1);
+			return;
+		}
+		exchange.sendResponseHeaders(204, -1);
+	}
+
+	private void take(BatchFormat.Batch batch, int length) {
+		synchronized (batchesSeen) {
+			if (!batchesSeen.add(batch.uploaderId + "/" + batch.sequence)) {
+				duplicates.incrementAndGet();
+				return;
+			}
+		}
+		batches.incrementAndGet();
+		bytes.addAndGet(length);
+		for (Map.Entry<String, SampleBatch> system : batch.samples.entrySet()) {
+			SampleBatch list = system.getValue();
+			if (list.isEmpty()) {
+				continue;
+			}
+			AtomicLong count = samplesBySystem.get(system.getKey());
+			if (count == null) {
+				samplesBySystem.putIfAbsent(system.getKey(), new AtomicLong());
+				count = samplesBySystem.get(system.getKey());
+			}
+			count.addAndGet(list.size());
+			samples.addAndGet(list.size());
+			newestBySystem.put(system.getKey(), list.getLastTimestamp());
+		}
+	}
+
+	private boolean chance(double rate) {
+		if (rate <= 0) {
+			return false;
+		}
+		synchronized (random) {
+			return random.nextDouble() < rate;
+		}
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	public long getSamples() {
+		return samples.get();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * @return Samples taken for the system, not counting resent batches.
+	 */
+	public long getSamples(String systemId) {
+		AtomicLong count = samplesBySystem.get(systemId);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * @return Timestamp of the system's newest sample taken, or -1 if none.
+	 */
+	public long getNewest(String systemId) {
+		Long newest = newestBySystem.get(systemId);
+		return newest == null ? -1 : newest;
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Take batches until killed, for pointing the widget or the daemon at.
+	 * Arguments: [port] [failureRate]
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+		StubCollector collector = new StubCollector(port);
+		if (args.length > 1) {
+			collector.setFailureRate(Double.parseDouble(args[1]));
+		}
+		System.out.println("Collecting at " + collector.getUrl());
+		while (true) {
+			Thread.sleep(60 * 1000);
+			System.out.println(collector.getBatches() + " batches, " + collector.getSamples() + " samples in "
+					+ collector.getBytes() + " bytes, " + collector.getDuplicates() + " resent, "
+					+ collector.getFailures() + " failed");
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the array viewer endpoint, serving one canned payload for
+ * every system ID so fetches can be measured without the network.
+ */
+public class StubServer {
+	static final String PATH = "/public/systems/";
+	static final String ETAG = "\"stub-payload\"";
+
+	static {
+		// Otherwise Nagle holds back the body on kept-alive connections and
+		// the pooled client measures the server's delayed ACKs
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final byte[] payload;
+	private final byte[] gzipped;
+	private final boolean sendEtag;
+	private final long latencyMs;
+
+	/**
+	 * @param payload
+	 *            Body served to every request.
+	 * @param sendEtag
+	 *            Whether to send an ETag and answer matching requests with 304.
+	 * @param latencyMs
+	 *            Delay added before each response, to mimic a remote server.
+	 */
+	public StubServer(byte[] payload, boolean sendEtag, long latencyMs) throws IOException {
+		this.payload = payload;
+		this.gzipped = Payloads.gzip(payload);
+		this.sendEtag = sendEtag;
+		this.latencyMs = latencyMs;
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 256);
+		server.createContext(PATH, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange);
+			}
+		});
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * @return The URL template, with a %s for the system ID.
+	 */
+	public String getUrlTemplate() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + PATH + "%s/array_viewer_performance_data.json";
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void respond(HttpExchange exchange) throws IOException {
+		try {
+			if (latencyMs > 0) {
+				Thread.sleep(latencyMs);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (sendEtag) {
+			exchange.getResponseHeaders().set("ETag", ETAG);
+			if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+				exchange.sendResponseHeaders(304, -1);
+				exchange.close();
+				return;
+			}
+		}
+
+		String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		byte[] body = payload;
+		if (accept != null && accept.contains("gzip")) {
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+			body = gzipped;
+		}
+
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	/**
+	 * Serve a bundled payload until killed, for poking at by hand.
+	 * Arguments: [payload size] [latency ms]
+	 */
+	public static void main(String[] args) throws Exception {
+		String size = args.length > 0 ? args[0] : "medium";
+		long latency = args.length > 1 ? Long.parseLong(args[1]) : 0;
+		StubServer server = new StubServer(Payloads.load(size), true, latency);
+		System.out.println("Serving " + size + " at " + server.getUrlTemplate());
+	}
+}
@@ -0,0 +1,155 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.pugsplace.enlightenmonitor.core.ApiException;
+import net.pugsplace.enlightenmonitor.core.EnlightenClient;
+import net.pugsplace.enlightenmonitor.core.Metrics;
+import net.pugsplace.enlightenmonitor.core.SampleStore;
+import net.pugsplace.enlightenmonitor.core.SampleStores;
+import net.pugsplace.enlightenmonitor.core.SampleUploader;
+import net.pugsplace.enlightenmonitor.core.SolarPerformance;
+
+/**
+ * Records days of five minute samples for synthetic systems, then uploads
+ * them all to a {@link StubCollector} through a {@link SampleUploader},
+ * retrying straight away whatever fails. Reports how many requests it took,
+ * the bytes sent a sample, and checks the collector ended up with every
+ * sample exactly once.
+ *
+ * Arguments are <code>key=value</code> pairs, all optional:
+ *
+ * <pre>
+ * systems     synthetic systems (100)
+ * days        days of samples each (7)
+ * batch       most samples in one batch (5000)
+ * failures    fraction of batches the collector turns away (0)
+ * lostAcks    fraction of batches taken in but answered 503 (0)
+ * dir         where the samples and outbox go (a temporary directory)
+ * </pre>
+ */
+public class UploadDriver {
+	private static final long SLOT_MS = 5 * 60 * 1000;
+	private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+	/**
+	 * Write days of samples on a clear-sky curve for each system.
+	 *
+	 * @return The system IDs.
+	 */
+	static List<String> record(SampleStores stores, int systems, int days, long end) throws IOException {
+		List<String> systemIds = new ArrayList<String>();
+		long start = end - days * DAY_MS;
+		for (int i = 0; i < systems; i++) {
+			String systemId = EnlightenSimulator.getSystemId(i);
+			systemIds.add(systemId);
+			double peak = 2000 + 50 * (i % 100);
+			double lifetime = 1e7 + 1e4 * i;
+			double today = 0;
+			for (long time = start; time < end; time += SLOT_MS) {
+				long ofDay = time % DAY_MS;
+				if (ofDay == 0) {
+					today = 0;
+				}
+				double angle = (ofDay - DAY_MS / 4.0) / (DAY_MS / 2.0) * Math.PI;
+				double watts = angle > 0 && angle < Math.PI ? Math.round(peak * Math.sin(angle)) : 0;
+				double energy = watts * SLOT_MS / 3600000.0;
+				today += energy;
+				lifetime += energy;
+
+				stores.record(systemId, new SolarPerformance(time, watts, Math.round(today), Math.round(today * 5),
+						Math.round(today * 20), Math.round(lifetime)));
+			}
+		}
+		stores.closeAll();
+		return systemIds;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals < 0) {
+				System.err.println("Arguments are key=value; see UploadDriver for the keys");
+				System.exit(2);
+			}
+			options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		int systems = Integer.parseInt(get(options, "systems", "100"));
+		int days = Integer.parseInt(get(options, "days", "7"));
+
+		Logger.getLogger("eSolarMonitor").setLevel(Level.SEVERE);
+		Logger.getLogger("org.apache.http").setLevel(Level.SEVERE);
+
+		String dirName = options.get("dir");
+		File dir = dirName != null ? new File(dirName) : File.createTempFile("esolar-upload", "");
+		if (dirName == null) {
+			dir.delete();
+		}
+		SampleStores stores = new SampleStores(new File(dir, "samples"), 256);
+		long end = System.currentTimeMillis() / SLOT_MS * SLOT_MS;
+		List<String> systemIds = record(stores, systems, days, end);
+		long recorded = (long) systems * days * (DAY_MS / SLOT_MS);
+		System.out.println("Recorded " + recorded + " samples of " + systems + " systems, " + recorded
+				* SampleStore.RECORD_SIZE + " bytes on disk");
+
+		StubCollector collector = new StubCollector(0);
+		collector.setFailureRate(Double.parseDouble(get(options, "failures", "0")));
+		collector.setLostAckRate(Double.parseDouble(get(options, "lostAcks", "0")));
+		EnlightenClient client = new EnlightenClient("eSolarMonitor-upload/1.0");
+		SampleUploader uploader = new SampleUploader(client, collector.getUrl(), stores,
+				new LoadDriver.MemorySettings(), new File(dir, "outbox"));
+		uploader.setMaxBatchSamples(Integer.parseInt(get(options, "batch",
+				Integer.toString(SampleUploader.DEFAULT_MAX_BATCH_SAMPLES))));
+
+		try {
+			int attempts = 0;
+			int failed = 0;
+			long start = System.nanoTime();
+			while (true) {
+				attempts++;
+				try {
+					uploader.upload(systemIds);
+					break;
+				} catch (ApiException e) {
+					// Retry at once; the back-off is for real collectors
+					failed++;
+				}
+			}
+			double elapsed = (System.nanoTime() - start) / 1e9;
+			long uploaded = Metrics.UPLOADED_SAMPLES.get();
+
+			long missing = 0;
+			for (String systemId : systemIds) {
+				missing += Math.max(0, days * (DAY_MS / SLOT_MS) - collector.getSamples(systemId));
+			}
+			System.out.printf("uploaded    %d samples in %.2fs (%.0f/s), %d upload calls, %d failed%n", uploaded,
+					elapsed, uploaded / elapsed, attempts, failed);
+			System.out.printf("collector   %d batches, %d resent, %d failures injected%n", collector.getBatches(),
+					collector.getDuplicates(), collector.getFailures());
+			System.out.printf("size        %d bytes, %.2f bytes a sample against %d stored%n", collector.getBytes(),
+					collector.getBytes() / (double) collector.getSamples(), SampleStore.RECORD_SIZE);
+			System.out.printf("check       %d samples collected, %d missing%n", collector.getSamples(), missing);
+			if (collector.getSamples() != recorded || missing != 0) {
+				System.exit(1);
+			}
+		} finally {
+			client.shutdown();
+			collector.stop();
+			stores.closeAll();
+		}
+	}
+
+	private static String get(Map<String, String> options, String key, String defaultValue) {
+		String value = options.get(key);
+		return value == null ? defaultValue : value;
+	}
+}
@@ -0,0 +1,57 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.daemon;
+
+import java.util.logging.Logger;
+
+import net.pugsplace.enlightenmonitor.core.Alert;
+import net.pugsplace.enlightenmonitor.core.AlertEvaluator;
+import net.pugsplace.enlightenmonitor.core.RequestAdmission;
+import net.pugsplace.enlightenmonitor.core.SolarPerformance;
+
+/**
+ * Checks every polled reading for alerts and logs each one raised or
+ * cleared. Systems with an alert raised have their requests put ahead of
+ * the rest when they're being rationed.
+ */
+public class AlertingListener implements PerformanceListener, AlertEvaluator.Listener {
+	private static final Logger log = Logger.getLogger("eSolarMonitor");
+
+	private final AlertEvaluator evaluator = new AlertEvaluator(this);
+	private final RequestAdmission admission;
+
+	/**
+	 * @param admission
+	 *            Rate limits whose queue systems in alert jump, or null.
+	 */
+	public AlertingListener(RequestAdmission admission) {
+		this.admission = admission;
+	}
+
+	public AlertEvaluator getEvaluator() {
+		return evaluator;
+	}
+
+	public void onPerformance(String systemId, SolarPerformance performance) {
+		evaluator.evaluate(systemId, performance);
+	}
+
+	public void onFailure(String systemId, Exception e) {
+	}
+
+	public void onAlert(Alert alert) {
+		if (alert.isRaised()) {
+			log.warning("Alert: " + alert);
+		} else {
+			log.info("Alert: " + alert);
+		}
+
+		if (admission != null) {
+			String systemId = alert.getSystemId();
+			if (evaluator.isAlerting(systemId)) {
+				admission.setPriority(systemId, RequestAdmission.PRIORITY_HIGH);
+			} else {
+				admission.clearPriority(systemId);
+			}
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.daemon;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks which daemon nodes are up through heartbeat files in a directory
+ * they all share, such as a local directory for several processes on one
+ * machine or a network mount for several machines. Every node rewrites its
+ * own file with the time each heartbeat, and counts as a member while that
+ * time is within the timeout; a node that stops cleanly deletes its file.
+ *
+ * A node that can't write its heartbeat soon enough leaves itself out of
+ * the members it reports, so it stops polling before the others decide it's
+ * gone and take over its systems.
+ *
+ * Times are compared across nodes, so machines sharing a directory need
+ * their clocks in step to well within the timeout.
+ */
+public class FileMembership {
+	public static final long DEFAULT_HEARTBEAT_MS = 5 * 1000;
+
+	private static final String SUFFIX = ".node";
+
+	/** Files of nodes gone this many timeouts are deleted */
+	private static final int EXPIRED_TIMEOUTS = 10;
+
+	private static final Logger log = Logger.getLogger("eSolarMonitor");
+
+	/**
+	 * Receives the live members after every heartbeat, on the membership's
+	 * own thread.
+	 */
+	public interface Listener {
+		/**
+		 * @param members
+		 *            IDs of the live nodes, this one included unless it has
+		 *            fallen behind with its own heartbeat.
+		 */
+		void onMembers(SortedSet<String> members);
+	}
+
+	private final File directory;
+	private final String nodeId;
+	private final long heartbeatMs;
+	private final long timeoutMs;
+	private final Listener listener;
+	private final ScheduledExecutorService timer;
+
+	private volatile SortedSet<String> members = Collections.unmodifiableSortedSet(new TreeSet<String>());
+	/** Only touched on the timer thread */
+	private long lastWritten = 0;
+
+	/**
+	 * @param directory
+	 *            Directory shared by every node. Created if missing.
+	 * @param nodeId
+	 *            This node's ID, unique among the nodes and safe to use as a
+	 *            filename.
+	 * @param timeoutMs
+	 *            How long after its last heartbeat a node is taken to be
+	 *            gone. Should be several heartbeats.
+	 */
+	public FileMembership(File directory, String nodeId, long heartbeatMs, long timeoutMs, Listener listener) {
+		if (!nodeId.matches("[A-Za-z0-9_.-]+")) {
+			throw new IllegalArgumentException("Node ID must be letters, digits, '_', '.' or '-': " + nodeId);
+		}
+		if (timeoutMs <= heartbeatMs) {
+			throw new IllegalArgumentException("Node timeout must be longer than the heartbeat");
+		}
+		this.directory = directory;
+		this.nodeId = nodeId;
+		this.heartbeatMs = heartbeatMs;
+		this.timeoutMs = timeoutMs;
+		this.listener = listener;
+		this.timer = Executors.newSingleThreadScheduledExecutor(new MonitorDaemon.NamedThreadFactory(
+				"eSolarDaemon-membership"));
+		directory.mkdirs();
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * @return The live members as of the last heartbeat.
+	 */
+	public SortedSet<String> getMembers() {
+		return members;
+	}
+
+	/**
+	 * Join, and keep the heartbeat going until stopped.
+	 */
+	public void start() {
+		timer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try {
+					beat();
+				} catch (RuntimeException e) {
+					log.log(Level.WARNING, "Membership heartbeat failed", e);
+				}
+			}
+		}, 0, heartbeatMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Leave: stop the heartbeat and delete this node's file, so the others
+	 * take over at their next heartbeat rather than after the timeout. Stop
+	 * polling first.
+	 */
+	public void stop() {
+		timer.shutdownNow();
+		try {
+			timer.awaitTermination(heartbeatMs, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		new File(directory, nodeId + SUFFIX).delete();
+	}
+
+	private void beat() {
+		long now = System.currentTimeMillis();
+		try {
+			write(now);
+			lastWritten = now;
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't write heartbeat for " + nodeId, e);
+		}
+
+		SortedSet<String> live = scan(System.currentTimeMillis());
+		// Drop out before the others could think this node gone
+		if (System.currentTimeMillis() - lastWritten > timeoutMs - heartbeatMs) {
+			live.remove(nodeId);
+		}
+
+		SortedSet<String> previous = members;
+		members = Collections.unmodifiableSortedSet(live);
+		if (!live.equals(previous)) {
+			log.info("Nodes now " + live);
+		}
+		listener.onMembers(members);
+	}
+
+	private void write(long now) throws IOException {
+		File file = new File(directory, nodeId + SUFFIX);
+		File tmp = new File(directory, nodeId + SUFFIX + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write((now + "\n").getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+			throw new IOException("Couldn't replace " + file);
+		}
+	}
+
+	private SortedSet<String> scan(long now) {
+		SortedSet<String> live = new TreeSet<String>();
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return live;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.endsWith(SUFFIX)) {
+				continue;
+			}
+			long beat = readHeartbeat(file);
+			if (beat < 0) {
+				continue;
+			}
+			long age = now - beat;
+			if (age <= timeoutMs) {
+				live.add(name.substring(0, name.length() - SUFFIX.length()));
+			} else if (age > EXPIRED_TIMEOUTS * timeoutMs) {
+				file.delete();
+			}
+		}
+		return live;
+	}
+
+	/**
+	 * @return The time in a heartbeat file, or -1 if it's gone or unreadable.
+	 */
+	private static long readHeartbeat(File file) {
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				String line = reader.readLine();
+				return line == null ? -1 : Long.parseLong(line.trim());
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			// Deleted as the node left
+			return -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
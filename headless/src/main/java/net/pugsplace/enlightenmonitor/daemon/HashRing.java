@@ -0,0 +1,108 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.daemon;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * Consistent hashing of system IDs onto nodes. Each node is placed at many
+ * points around a ring of 64-bit hashes, and a system belongs to the node at
+ * the first point at or after its own hash. When a node joins or leaves only
+ * the systems between its points and their neighbours move, about one in N
+ * of them, and every node given the same members agrees on every owner.
+ *
+ * Immutable; build a new ring when the members change.
+ */
+public class HashRing {
+	/** Points per node; enough to keep shares within a few percent */
+	public static final int DEFAULT_POINTS = 128;
+
+	private final long[] hashes;
+	private final String[] owners;
+
+	/**
+	 * @param nodes
+	 *            IDs of the nodes sharing the systems.
+	 * @param points
+	 *            Points each node is placed at.
+	 */
+	public HashRing(Collection<String> nodes, int points) {
+		int count = nodes.size() * points;
+		long[] unsorted = new long[count];
+		String[] unsortedOwners = new String[count];
+		int i = 0;
+		for (String node : nodes) {
+			for (int p = 0; p < points; p++) {
+				unsorted[i] = hash(node + "#" + p);
+				unsortedOwners[i] = node;
+				i++;
+			}
+		}
+
+		// Sort the points, keeping each with its node; ties go to the lesser
+		// node ID, so the order doesn't depend on how the nodes were listed
+		Integer[] order = new Integer[count];
+		for (i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		final long[] keys = unsorted;
+		final String[] names = unsortedOwners;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				if (keys[a] != keys[b]) {
+					return keys[a] < keys[b] ? -1 : 1;
+				}
+				return names[a].compareTo(names[b]);
+			}
+		});
+
+		hashes = new long[count];
+		owners = new String[count];
+		for (i = 0; i < count; i++) {
+			hashes[i] = unsorted[order[i]];
+			owners[i] = unsortedOwners[order[i]];
+		}
+	}
+
+	public HashRing(Collection<String> nodes) {
+		this(nodes, DEFAULT_POINTS);
+	}
+
+	/**
+	 * @return The node the system belongs to, or null if there are no nodes.
+	 */
+	public String getOwner(String systemId) {
+		if (hashes.length == 0) {
+			return null;
+		}
+		int index = Arrays.binarySearch(hashes, hash(systemId));
+		if (index < 0) {
+			index = -index - 1;
+		} else {
+			// Step back to the first of any equal points
+			while (index > 0 && hashes[index - 1] == hashes[index]) {
+				index--;
+			}
+		}
+		return owners[index == hashes.length ? 0 : index];
+	}
+
+	/**
+	 * FNV-1a over the characters, then a finalizer to spread the bits; the
+	 * same on every JVM, unlike anything seeded.
+	 */
+	static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,74 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.daemon;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+
+import net.pugsplace.enlightenmonitor.core.FleetAggregate;
+import net.pugsplace.enlightenmonitor.core.Metrics;
+import net.pugsplace.enlightenmonitor.core.SolarPerformance;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves {@link Metrics} at <code>/metrics</code> in the Prometheus text
+ * format, along with how many systems the daemon watches and their totals.
+ */
+public class MetricsServer {
+	private final HttpServer server;
+
+	/**
+	 * Start serving.
+	 *
+	 * @param port
+	 *            Port to listen on, on every interface.
+	 */
+	public MetricsServer(final MonitorDaemon daemon, int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				StringBuilder body = new StringBuilder(8192);
+				Metrics.writePrometheus(body);
+				writeDaemon(body, daemon);
+
+				byte[] bytes = body.toString().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, bytes.length);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(bytes);
+				} finally {
+					out.close();
+				}
+			}
+		});
+		server.setExecutor(Executors.newSingleThreadExecutor(new MonitorDaemon.NamedThreadFactory(
+				"eSolarDaemon-metrics")));
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	private static void writeDaemon(StringBuilder out, MonitorDaemon daemon) {
+		out.append("# HELP esolar_systems Systems being watched\n");
+		out.append("# TYPE esolar_systems gauge\n");
+		out.append("esolar_systems ").append(daemon.getSystems().size()).append('\n');
+
+		FleetAggregate fleet = daemon.getFleet();
+		SolarPerformance total = fleet.getTotal();
+		if (total != null) {
+			out.append("# HELP esolar_fleet_watts Current output of every watched system\n");
+			out.append("# TYPE esolar_fleet_watts gauge\n");
+			out.append("esolar_fleet_watts ").append(total.getRawCurrentWatts()).append('\n');
+			out.append("# HELP esolar_fleet_today_watt_hours Energy produced today by every watched system\n");
+			out.append("# TYPE esolar_fleet_today_watt_hours gauge\n");
+			out.append("esolar_fleet_today_watt_hours ").append(total.getRawTodayWattHours()).append('\n');
+		}
+	}
+}
@@ -0,0 +1,550 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.daemon;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.pugsplace.enlightenmonitor.core.DataSource;
+import net.pugsplace.enlightenmonitor.core.EnlightenClient;
+import net.pugsplace.enlightenmonitor.core.FallbackSource;
+import net.pugsplace.enlightenmonitor.core.FleetAggregate;
+import net.pugsplace.enlightenmonitor.core.GatewaySource;
+import net.pugsplace.enlightenmonitor.core.RefreshScheduler;
+import net.pugsplace.enlightenmonitor.core.RequestAdmission;
+import net.pugsplace.enlightenmonitor.core.SampleStores;
+import net.pugsplace.enlightenmonitor.core.SampleUploader;
+import net.pugsplace.enlightenmonitor.core.SolarMonitor;
+import net.pugsplace.enlightenmonitor.core.SolarPerformance;
+
+/**
+ * Polls any number of systems on a pool of worker threads, each at its own
+ * rate as adapted by the monitor's {@link RefreshScheduler}, and hands every
+ * result to the registered {@link PerformanceListener}s.
+ *
+ * One timer thread keeps each system's next poll in a delay queue and passes
+ * due systems to the workers, so idle systems cost a queue entry rather than
+ * a thread and tens of thousands can be watched from one process. Due polls
+ * wait for a worker in order of their systems' priority with the client's
+ * {@link RequestAdmission}, if it has one, so when requests are rationed the
+ * important ones aren't stuck behind a backlog of the rest.
+ */
+public class MonitorDaemon {
+	public static final int DEFAULT_THREADS = 16;
+
+	/** Systems overdue when first watched are spread over this long, at most */
+	private static final long STARTUP_SPREAD_MS = 5 * 60 * 1000;
+
+	/** How often the uploader is asked whether it's time to upload */
+	private static final long UPLOAD_CHECK_MS = 60 * 1000;
+
+	private static final Logger log = Logger.getLogger("eSolarMonitor");
+
+	private final SolarMonitor monitor;
+	private final ScheduledExecutorService timer;
+	private final ExecutorService workers;
+	private final ConcurrentHashMap<String, Watch> systems = new ConcurrentHashMap<String, Watch>();
+	private final List<PerformanceListener> listeners = new CopyOnWriteArrayList<PerformanceListener>();
+	private final FleetAggregate fleet = new FleetAggregate();
+	private final Random random = new Random();
+	private final AtomicLong sequence = new AtomicLong();
+	private volatile ScheduledExecutorService uploads = null;
+
+	/**
+	 * A watched system. Polls carry the watch that scheduled them, so a
+	 * system unwatched and watched again never ends up polled twice over.
+	 */
+	private static class Watch {
+		final String systemId;
+		volatile long baseMs;
+
+		Watch(String systemId, long baseMs) {
+			this.systemId = systemId;
+			this.baseMs = baseMs;
+		}
+	}
+
+	/**
+	 * @param monitor
+	 *            Fetches, schedules and records every system.
+	 * @param threads
+	 *            Maximum number of requests in flight at once.
+	 */
+	public MonitorDaemon(SolarMonitor monitor, int threads) {
+		this.monitor = monitor;
+		this.timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("eSolarDaemon-timer"));
+		this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), new NamedThreadFactory("eSolarDaemon-worker"));
+		monitor.getClient().setMaxConnections(threads);
+	}
+
+	public void addListener(PerformanceListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(PerformanceListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Start polling a system, or change the rate of one already watched.
+	 *
+	 * @param baseMs
+	 *            The refresh rate for the system, which the scheduler adapts
+	 *            around.
+	 */
+	public void watch(String systemId, long baseMs) {
+		Watch watch = new Watch(systemId, baseMs);
+		Watch existing = systems.putIfAbsent(systemId, watch);
+		if (existing != null) {
+			existing.baseMs = baseMs;
+			return;
+		}
+
+		long delay = monitor.getNextDue(systemId, baseMs) - System.currentTimeMillis();
+		if (delay <= 0) {
+			// Don't fire every overdue system at once on startup
+			long spread = Math.min(baseMs, STARTUP_SPREAD_MS);
+			synchronized (random) {
+				delay = (long) (random.nextDouble() * spread);
+			}
+		}
+		schedule(watch, delay);
+	}
+
+	/**
+	 * Stop polling a system. A request already in flight still completes.
+	 */
+	public void unwatch(String systemId) {
+		systems.remove(systemId);
+		monitor.forget(systemId);
+		fleet.remove(systemId);
+	}
+
+	public Set<String> getSystems() {
+		return Collections.unmodifiableSet(systems.keySet());
+	}
+
+	/**
+	 * @return Running totals of the latest reading of every watched system.
+	 */
+	public FleetAggregate getFleet() {
+		return fleet;
+	}
+
+	/**
+	 * Upload the samples of every watched system whenever the uploader says
+	 * it's time, checking every so often on a thread of its own.
+	 */
+	public synchronized void startUploads(final SampleUploader uploader, long checkMs) {
+		if (uploads != null) {
+			throw new IllegalStateException("Already uploading");
+		}
+		uploads = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("eSolarDaemon-upload"));
+		uploads.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				if (!uploader.isDue()) {
+					return;
+				}
+				try {
+					int uploaded = uploader.upload(new ArrayList<String>(systems.keySet()));
+					log.info("Uploaded " + uploaded + " samples to " + uploader.getCollectorUrl());
+				} catch (Exception e) {
+					log.warning("Couldn't upload samples; will retry: " + e);
+				}
+			}
+		}, checkMs, checkMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop polling. Requests in flight are allowed to finish.
+	 */
+	public void shutdown() {
+		timer.shutdownNow();
+		workers.shutdown();
+		ScheduledExecutorService uploads = this.uploads;
+		if (uploads != null) {
+			uploads.shutdown();
+		}
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return workers.awaitTermination(timeout, unit);
+	}
+
+	private void schedule(final Watch watch, long delayMs) {
+		try {
+			timer.schedule(new Runnable() {
+				public void run() {
+					dispatch(watch);
+				}
+			}, Math.max(0, delayMs), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Shutting down
+		}
+	}
+
+	private void dispatch(Watch watch) {
+		RequestAdmission admission = monitor.getClient().getAdmission();
+		int priority = admission != null ? admission.getPriority(watch.systemId) : RequestAdmission.PRIORITY_NORMAL;
+		try {
+			workers.execute(new Poll(watch, priority, sequence.getAndIncrement()));
+		} catch (RejectedExecutionException e) {
+			// Shutting down
+		}
+	}
+
+	/**
+	 * A due poll waiting for a worker, ordered by priority and then by when
+	 * it fell due.
+	 */
+	private class Poll implements Runnable, Comparable<Poll> {
+		final Watch watch;
+		final int priority;
+		final long sequence;
+
+		Poll(Watch watch, int priority, long sequence) {
+			this.watch = watch;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		public void run() {
+			poll(watch);
+		}
+
+		public int compareTo(Poll other) {
+			if (priority != other.priority) {
+				return priority < other.priority ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+
+	private void poll(Watch watch) {
+		String systemId = watch.systemId;
+		if (systems.get(systemId) != watch) {
+			return;
+		}
+
+		RefreshScheduler scheduler = monitor.getScheduler();
+		long next;
+		try {
+			SolarPerformance performance = monitor.getPerformanceData(systemId);
+			next = scheduler.onSuccess(systemId, performance, System.currentTimeMillis(), watch.baseMs);
+			if (systems.get(systemId) == watch) {
+				fleet.update(systemId, performance);
+			}
+			for (PerformanceListener listener : listeners) {
+				try {
+					listener.onPerformance(systemId, performance);
+				} catch (RuntimeException e) {
+					log.log(Level.WARNING, "Listener failed for " + systemId, e);
+				}
+			}
+		} catch (Exception e) {
+			next = scheduler.onFailure(systemId, System.currentTimeMillis(), watch.baseMs);
+			for (PerformanceListener listener : listeners) {
+				try {
+					listener.onFailure(systemId, e);
+				} catch (RuntimeException re) {
+					log.log(Level.WARNING, "Listener failed for " + systemId, re);
+				}
+			}
+		}
+
+		if (systems.get(systemId) == watch) {
+			schedule(watch, next - System.currentTimeMillis());
+		}
+	}
+
+	static class NamedThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private int count = 0;
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		public synchronized Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + "-" + (++count));
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	/**
+	 * Writes each update to standard output, one line per poll.
+	 */
+	private static class PrintingListener implements PerformanceListener {
+		public void onPerformance(String systemId, SolarPerformance performance) {
+			System.out.println(systemId + " " + performance.getTimestampMillis() + " "
+					+ performance.getRawCurrentWatts() + " " + performance.getRawTodayWattHours() + " "
+					+ performance.getRawWeekWattHours() + " " + performance.getRawMonthWattHours() + " "
+					+ performance.getRawLifetimeWattHours());
+		}
+
+		public void onFailure(String systemId, Exception e) {
+			log.warning("Couldn't fetch " + systemId + ": " + e);
+		}
+	}
+
+	/**
+	 * @return The rate limits configured, or null if there are none.
+	 */
+	private static RequestAdmission getAdmission(Properties config, String url) {
+		String hostLimit = config.getProperty("rateLimit");
+		String systemLimit = config.getProperty("systemRateLimit");
+		if (hostLimit == null && systemLimit == null) {
+			return null;
+		}
+
+		RequestAdmission admission = new RequestAdmission();
+		// Nobody is looking at any one system, unless it's in alert
+		admission.setDefaultPriority(RequestAdmission.PRIORITY_BACKGROUND);
+		if (hostLimit != null) {
+			admission.setHostLimit(URI.create(String.format(url, "x")).getHost(), Double.parseDouble(hostLimit),
+					Integer.parseInt(config.getProperty("rateBurst", "10")));
+		}
+		if (systemLimit != null) {
+			admission.setKeyLimit(Double.parseDouble(systemLimit), Integer.parseInt(config.getProperty(
+					"systemRateBurst", "1")));
+		}
+		return admission;
+	}
+
+	/**
+	 * Read each system with a <code>gateway.</code> key from that gateway,
+	 * and from Enlighten while it's down unless told otherwise.
+	 */
+	private static void useGateways(SolarMonitor monitor, Properties config) {
+		String prefix = "gateway.";
+		boolean fallback = Boolean.parseBoolean(config.getProperty("gatewayFallback", "true"));
+		EnlightenClient gatewayClient = null;
+		for (String key : config.stringPropertyNames()) {
+			if (!key.startsWith(prefix) || key.length() == prefix.length()) {
+				continue;
+			}
+			if (gatewayClient == null) {
+				gatewayClient = new EnlightenClient(monitor.getClient().getUserAgent());
+				gatewayClient.setTimeout(Integer.parseInt(config.getProperty("gatewayTimeout", "5000")));
+			}
+			String systemId = key.substring(prefix.length());
+			DataSource gateway = new GatewaySource(gatewayClient, config.getProperty(key), monitor.getSettings());
+			monitor.setDataSource(systemId, fallback ? new FallbackSource(gateway, monitor.getCloudSource())
+					: gateway);
+		}
+	}
+
+	/**
+	 * Run the daemon from a properties file naming the systems to watch.
+	 *
+	 * <pre>
+	 * systems      file of system IDs, one per line, each optionally followed by
+	 *              a refresh rate such as "15 minutes" (required)
+	 * refreshRate  rate for systems that don't give one (30 minutes)
+	 * threads      requests in flight at once (16)
+	 * url          performance URL, with a %s for the system ID
+	 * userAgent    User-Agent header
+	 * stateFile    where last refresh times are kept (esolarmonitor.state)
+	 * samplesDir   where sample histories are kept, if at all
+	 * maxOpenSamples  sample files held open at once (256)
+	 * keepArrayData  parse and keep every dataset's points, not just the
+	 *              primary stats (false)
+	 * metricsPort  serve metrics for scraping on this port, if set
+	 * rateLimit    requests a minute to the Enlighten host, if limited; polls
+	 *              beyond it wait, systems in alert first
+	 * rateBurst    requests at once after a quiet spell (10)
+	 * systemRateLimit  requests a minute for any one system, if limited
+	 * systemRateBurst  requests at once for one system (1)
+	 * alerts       log when a system falls well short of its usual output for
+	 *              the time of day (false)
+	 * alertsFile   where what the alerts have learned is kept across restarts
+	 * gateway.ID   read system ID from its gateway at this address rather than
+	 *              from Enlighten
+	 * gatewayFallback  read from Enlighten while a gateway can't be reached (true)
+	 * gatewayTimeout   ms to wait on a gateway before giving up on it (5000)
+	 * collectorUrl  upload samples in batches to this URL, if set; needs
+	 *              samplesDir
+	 * uploadInterval  time between uploads (15 minutes)
+	 * outboxDir    where batches wait until the collector has them (outbox)
+	 * clusterDir   share the systems with every daemon heartbeating in this
+	 *              directory, each polling its own share, if set
+	 * nodeId       this daemon's name in the cluster; keep it across restarts
+	 *              so its share doesn't move (process ID and host)
+	 * heartbeat    ms between heartbeats (5000)
+	 * nodeTimeout  ms without a heartbeat before a node's share is taken
+	 *              over (3 heartbeats)
+	 * </pre>
+	 *
+	 * Each update is printed as: system ID, timestamp, current watts, then
+	 * today, week, month and lifetime watt-hours.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.err.println("Usage: MonitorDaemon <config.properties>");
+			System.exit(2);
+		}
+
+		Properties config = new Properties();
+		InputStream in = new FileInputStream(args[0]);
+		try {
+			config.load(in);
+		} finally {
+			in.close();
+		}
+
+		String systemsFile = config.getProperty("systems");
+		if (systemsFile == null) {
+			System.err.println("No systems file configured");
+			System.exit(2);
+		}
+		int threads = Integer.parseInt(config.getProperty("threads", Integer.toString(DEFAULT_THREADS)));
+		long defaultRate = RefreshScheduler.parseRefreshString(config.getProperty("refreshRate", "30 minutes"));
+
+		final PropertiesSettings settings = new PropertiesSettings(new File(config.getProperty("stateFile",
+				"esolarmonitor.state")));
+		final SampleStores samples = config.getProperty("samplesDir") == null ? null : new SampleStores(new File(
+				config.getProperty("samplesDir")), Integer.parseInt(config.getProperty("maxOpenSamples", "256")));
+		EnlightenClient client = new EnlightenClient(config.getProperty("userAgent", "eSolarMonitor-daemon/1.0"),
+				Math.max(threads, EnlightenClient.DEFAULT_MAX_TOTAL_CONNECTIONS));
+		SolarMonitor monitor = new SolarMonitor(client, config.getProperty("url",
+				SolarMonitor.DEFAULT_PERFORMANCE_URL), settings, samples);
+
+		monitor.setKeepArrayData(Boolean.parseBoolean(config.getProperty("keepArrayData", "false")));
+		RequestAdmission admission = getAdmission(config, monitor.getPerformanceUrl());
+		client.setAdmission(admission);
+		useGateways(monitor, config);
+
+		final MonitorDaemon daemon = new MonitorDaemon(monitor, threads);
+		daemon.addListener(new PrintingListener());
+
+		final File alertsFile = config.getProperty("alertsFile") == null ? null : new File(config
+				.getProperty("alertsFile"));
+		final AlertingListener alerts = Boolean.parseBoolean(config.getProperty("alerts", "false")) ? new AlertingListener(
+				admission) : null;
+		if (alerts != null) {
+			if (alertsFile != null) {
+				alerts.getEvaluator().load(alertsFile);
+			}
+			daemon.addListener(alerts);
+		}
+
+		String collectorUrl = config.getProperty("collectorUrl");
+		if (collectorUrl != null) {
+			if (samples == null) {
+				System.err.println("collectorUrl needs a samplesDir to upload from");
+				System.exit(2);
+			}
+			SampleUploader uploader = new SampleUploader(client, collectorUrl, samples, settings, new File(config
+					.getProperty("outboxDir", "outbox")));
+			uploader.setInterval(RefreshScheduler.parseRefreshString(config.getProperty("uploadInterval",
+					"15 minutes")));
+			daemon.startUploads(uploader, UPLOAD_CHECK_MS);
+		}
+
+		final MetricsServer metrics = config.getProperty("metricsPort") == null ? null : new MetricsServer(daemon,
+				Integer.parseInt(config.getProperty("metricsPort")));
+
+		ShardCoordinator shards = null;
+		FileMembership membership = null;
+		if (config.getProperty("clusterDir") != null) {
+			String nodeId = config.getProperty("nodeId", ManagementFactory.getRuntimeMXBean().getName().replaceAll(
+					"[^A-Za-z0-9_.-]", "_"));
+			long heartbeat = Long.parseLong(config.getProperty("heartbeat", Long
+					.toString(FileMembership.DEFAULT_HEARTBEAT_MS)));
+			long timeout = Long.parseLong(config.getProperty("nodeTimeout", Long.toString(3 * heartbeat)));
+			// Every other node sees a change within a heartbeat, so two is
+			// time enough for the one losing a system to have dropped it
+			shards = new ShardCoordinator(daemon, nodeId, 2 * heartbeat);
+			membership = new FileMembership(new File(config.getProperty("clusterDir")), nodeId, heartbeat, timeout,
+					shards);
+		}
+
+		BufferedReader reader = new BufferedReader(new FileReader(systemsFile));
+		int count = 0;
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] parts = line.split("\\s+", 2);
+				long rate = parts.length > 1 ? RefreshScheduler.parseRefreshString(parts[1]) : defaultRate;
+				if (shards != null) {
+					shards.addSystem(parts[0], rate);
+				} else {
+					daemon.watch(parts[0], rate);
+				}
+				count++;
+			}
+		} finally {
+			reader.close();
+		}
+		if (membership != null) {
+			membership.start();
+			log.info("Sharing " + count + " systems as node " + membership.getNodeId() + " on " + threads
+					+ " threads");
+		} else {
+			log.info("Watching " + count + " systems on " + threads + " threads");
+		}
+		final FileMembership cluster = membership;
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				if (metrics != null) {
+					metrics.stop();
+				}
+				daemon.shutdown();
+				try {
+					daemon.awaitTermination(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					// Save what we have
+				}
+				// Only once nothing is polled here, hand the share to the others
+				if (cluster != null) {
+					cluster.stop();
+				}
+				settings.close();
+				if (samples != null) {
+					samples.closeAll();
+				}
+				if (alerts != null && alertsFile != null) {
+					try {
+						alerts.getEvaluator().save(alertsFile);
+					} catch (IOException e) {
+						log.log(Level.WARNING, "Couldn't save alert averages", e);
+					}
+				}
+			}
+		});
+
+		// Every thread is a daemon thread, so hold the JVM open until shut down
+		daemon.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+}
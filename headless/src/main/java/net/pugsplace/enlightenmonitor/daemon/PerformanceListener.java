@@ -0,0 +1,22 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.daemon;
+
+import net.pugsplace.enlightenmonitor.core.SolarPerformance;
+
+/**
+ * Receives the results of the daemon's polls. Called on the worker thread
+ * that made the request, so implementations must be thread safe and should
+ * return quickly.
+ */
+public interface PerformanceListener {
+	/**
+	 * A system was fetched. The performance is shared with every other
+	 * listener.
+	 */
+	void onPerformance(String systemId, SolarPerformance performance);
+
+	/**
+	 * A fetch failed. It will be retried with backoff.
+	 */
+	void onFailure(String systemId, Exception e);
+}
@@ -0,0 +1,74 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.daemon;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import net.pugsplace.enlightenmonitor.core.CachedSettings;
+
+/**
+ * Settings kept in a properties file. Changes gather in memory for a while
+ * and are then written out together, so polling thousands of systems doesn't
+ * rewrite the file after every fetch.
+ */
+public class PropertiesSettings extends CachedSettings {
+	/** How long changes gather before the file is rewritten */
+	public static final long FLUSH_DELAY_MS = 60 * 1000;
+
+	private final File file;
+
+	/**
+	 * @param file
+	 *            Loaded now if it exists, and rewritten as settings change.
+	 */
+	public PropertiesSettings(File file) throws IOException {
+		super(FLUSH_DELAY_MS);
+		this.file = file;
+
+		if (file.exists()) {
+			Properties properties = new Properties();
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+
+			Map<String, String> initial = new HashMap<String, String>();
+			for (String key : properties.stringPropertyNames()) {
+				initial.put(key, properties.getProperty(key));
+			}
+			load(initial);
+		}
+	}
+
+	/**
+	 * The whole file is replaced, so a crash mid-write leaves the old one;
+	 * the new one is synced before it takes the old one's place.
+	 */
+	@Override
+	protected void write(Map<String, Object> changes) throws IOException {
+		Properties properties = new Properties();
+		for (Map.Entry<String, Object> entry : getAll().entrySet()) {
+			properties.setProperty(entry.getKey(), entry.getValue().toString());
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			properties.store(out, "eSolarMonitor daemon state");
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+			throw new IOException("Couldn't replace " + file);
+		}
+	}
+}
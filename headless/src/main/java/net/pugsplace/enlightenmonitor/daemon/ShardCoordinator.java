@@ -0,0 +1,110 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.daemon;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.logging.Logger;
+
+/**
+ * Splits the systems of a cluster among its daemon nodes, watching on this
+ * node only those that hash to it on a {@link HashRing} of the live members,
+ * and following the members as nodes join and leave.
+ *
+ * So that no system is polled by two nodes at once, a node drops systems it
+ * has lost at once but starts on those it has gained only after a settling
+ * time, long enough for the node that had them to have seen the change and
+ * dropped them. Systems of a node that dies are taken over once its
+ * heartbeat times out, and polled as soon as they're due by the new owner.
+ */
+public class ShardCoordinator implements FileMembership.Listener {
+	private static final Logger log = Logger.getLogger("eSolarMonitor");
+
+	private final MonitorDaemon daemon;
+	private final String nodeId;
+	private final long settleMs;
+
+	/** Guarded by this */
+	private final Map<String, Long> systems = new LinkedHashMap<String, Long>();
+	/** Systems gained, and when they may start */
+	private final Map<String, Long> pending = new HashMap<String, Long>();
+	private SortedSet<String> members = null;
+	private HashRing ring = null;
+
+	/**
+	 * @param settleMs
+	 *            How long to wait before polling systems gained from another
+	 *            node; at least two heartbeats.
+	 */
+	public ShardCoordinator(MonitorDaemon daemon, String nodeId, long settleMs) {
+		this.daemon = daemon;
+		this.nodeId = nodeId;
+		this.settleMs = settleMs;
+	}
+
+	/**
+	 * Add a system to the cluster, or change its rate. It's watched here once
+	 * the members are known, if it's this node's.
+	 */
+	public synchronized void addSystem(String systemId, long baseMs) {
+		systems.put(systemId, baseMs);
+		if (daemon.getSystems().contains(systemId)) {
+			daemon.watch(systemId, baseMs);
+		} else if (isMine(systemId) && !pending.containsKey(systemId)) {
+			pending.put(systemId, System.currentTimeMillis() + settleMs);
+		}
+	}
+
+	/**
+	 * @return The members ownership was last worked out from, or null if
+	 *         none have been seen yet.
+	 */
+	public synchronized SortedSet<String> getMembers() {
+		return members;
+	}
+
+	public synchronized void onMembers(SortedSet<String> current) {
+		long now = System.currentTimeMillis();
+		if (!current.equals(members)) {
+			rebalance(current, now);
+		}
+
+		for (Iterator<Map.Entry<String, Long>> iter = pending.entrySet().iterator(); iter.hasNext();) {
+			Map.Entry<String, Long> gained = iter.next();
+			if (gained.getValue() <= now) {
+				iter.remove();
+				daemon.watch(gained.getKey(), systems.get(gained.getKey()));
+			}
+		}
+	}
+
+	private void rebalance(SortedSet<String> current, long now) {
+		members = current;
+		ring = current.isEmpty() ? null : new HashRing(current);
+
+		int dropped = 0;
+		int gained = 0;
+		int owned = 0;
+		for (String systemId : systems.keySet()) {
+			boolean mine = isMine(systemId);
+			if (mine) {
+				owned++;
+				if (!daemon.getSystems().contains(systemId) && !pending.containsKey(systemId)) {
+					pending.put(systemId, now + settleMs);
+					gained++;
+				}
+			} else if (pending.remove(systemId) == null && daemon.getSystems().contains(systemId)) {
+				daemon.unwatch(systemId);
+				dropped++;
+			}
+		}
+		log.info("Node " + nodeId + " of " + current.size() + " owns " + owned + " of " + systems.size()
+				+ " systems: dropped " + dropped + ", starting " + gained + " in " + settleMs + "ms");
+	}
+
+	private boolean isMine(String systemId) {
+		return ring != null && nodeId.equals(ring.getOwner(systemId));
+	}
+}
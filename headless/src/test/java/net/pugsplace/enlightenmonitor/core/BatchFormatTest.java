@@ -0,0 +1,117 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+public class BatchFormatTest {
+	@Test
+	public void roundTrip() throws IOException {
+		Map<String, SampleBatch> samples = new LinkedHashMap<String, SampleBatch>();
+		SampleBatch first = new SampleBatch();
+		long time = 1286000000000L;
+		for (int i = 0; i < 500; i++) {
+			time += 300000 + i % 7;
+			first.add(time, 1000L * i, 25000L * i, 80000000L + i, 300000000L - i, 12000000000L + i * 3L,
+					Sample.VALID_ALL);
+		}
+		// Values the system couldn't report go through as unknown
+		first.add(time + 300000, -1000L, 0L, -1000L, 5L, 6L, Sample.getValidity(-1000, 0, -1000, 5, 6));
+		samples.put("123456", first);
+		samples.put("empty", new SampleBatch());
+
+		byte[] encoded = BatchFormat.encode("uploader", 42, 1286000000123L, samples);
+		BatchFormat.Batch batch = BatchFormat.decode(encoded);
+
+		assertEquals("uploader", batch.uploaderId);
+		assertEquals(42, batch.sequence);
+		assertEquals(1286000000123L, batch.createdMillis);
+		assertEquals(first.size(), batch.getSampleCount());
+		assertEquals(2, batch.samples.size());
+		assertEquals(0, batch.samples.get("empty").size());
+
+		SampleBatch decoded = batch.samples.get("123456");
+		assertEquals(first.size(), decoded.size());
+		for (int i = 0; i < first.size(); i++) {
+			assertEquals(first.get(i), decoded.get(i));
+			assertEquals(first.getFlags(i), decoded.getFlags(i));
+		}
+	}
+
+	@Test
+	public void rejectsOtherData() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+		out.writeInt(0x12345678);
+		out.close();
+		expectFailure(bytes.toByteArray());
+	}
+
+	@Test
+	public void rejectsCutShort() throws IOException {
+		Map<String, SampleBatch> samples = new LinkedHashMap<String, SampleBatch>();
+		SampleBatch batch = new SampleBatch();
+		for (int i = 0; i < 100; i++) {
+			batch.add(i * 1000L, i, i, i, i, i, Sample.VALID_ALL);
+		}
+		samples.put("123456", batch);
+		byte[] encoded = BatchFormat.encode("uploader", 1, 0, samples);
+
+		byte[] cut = new byte[encoded.length / 2];
+		System.arraycopy(encoded, 0, cut, 0, cut.length);
+		expectFailure(cut);
+	}
+
+	@Test
+	public void rejectsNegativeCount() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+		out.writeInt(('E' << 24) | ('S' << 16) | ('B' << 8) | '1');
+		out.writeUTF("uploader");
+		out.write(1); // sequence
+		out.write(0); // created
+		out.write(1); // one system
+		out.writeUTF("123456");
+		// A count of -1 as a varint
+		for (int i = 0; i < 9; i++) {
+			out.write(0xFF);
+		}
+		out.write(0x01);
+		out.close();
+		expectFailure(bytes.toByteArray());
+	}
+
+	@Test
+	public void hugeCountRunsOutOfInput() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+		out.writeInt(('E' << 24) | ('S' << 16) | ('B' << 8) | '1');
+		out.writeUTF("uploader");
+		out.write(1);
+		out.write(0);
+		out.write(1);
+		out.writeUTF("123456");
+		// Integer.MAX_VALUE samples claimed, none sent
+		out.write(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 });
+		out.close();
+		expectFailure(bytes.toByteArray());
+	}
+
+	private static void expectFailure(byte[] encoded) {
+		try {
+			BatchFormat.decode(encoded);
+			fail("Expected an IOException");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
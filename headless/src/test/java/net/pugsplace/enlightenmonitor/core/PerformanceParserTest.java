@@ -0,0 +1,144 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class PerformanceParserTest {
+	private static final String STATS = "{\"label\":\"Current Power\",\"units\":\"kW\",\"primary_stat\":"
+			+ "{\"label\":\"Current Power\",\"value\":2.4,\"units\":\"kW\"},\"data\":[]},"
+			+ "{\"label\":\"Energy Today\",\"units\":\"kWh\",\"primary_stat\":{\"value\":14.2,\"units\":\"kWh\"}},"
+			+ "{\"primary_stat\":{\"value\":\"81600\",\"units\":\"Wh\"}},"
+			+ "{\"primary_stat\":{\"units\":\"kWh\",\"value\":352.0}},"
+			+ "{\"primary_stat\":{\"value\":1.27e1,\"units\":\"MWh\"}}";
+
+	private static InputStream stream(String json) throws IOException {
+		return new ByteArrayInputStream(json.getBytes("UTF-8"));
+	}
+
+	private static SolarPerformance parse(String json) throws Exception {
+		return new PerformanceParser(stream(json)).parse();
+	}
+
+	private static ArrayData parseArrayData(String json) throws Exception {
+		return new PerformanceParser(stream(json)).parseArrayData();
+	}
+
+	private static void expectParseException(String json) throws Exception {
+		try {
+			parse(json);
+			fail("Expected a ParseException for " + json);
+		} catch (ParseException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void primaryStatsInWatts() throws Exception {
+		SolarPerformance performance = parse("{\"system_id\":12345,\"datasets\":[" + STATS + "]}");
+		assertEquals(2400, performance.getRawCurrentWatts(), 0.001);
+		assertEquals(14200, performance.getRawTodayWattHours(), 0.001);
+		assertEquals(81600, performance.getRawWeekWattHours(), 0.001);
+		assertEquals(352000, performance.getRawMonthWattHours(), 0.001);
+		assertEquals(12700000, performance.getRawLifetimeWattHours(), 0.001);
+	}
+
+	@Test
+	public void skipsWhitespaceAndOtherMembers() throws Exception {
+		String json = " {\n\t\"nested\" : {\"a\":[1,{\"b\":null},\"]}\\\"\"],\"c\":true} ,\r\n \"datasets\" : [ "
+				+ STATS.replace(",", " ,\n ") + " , {\"extra\":false} ] , \"tail\":-1.5e-3 }";
+		assertEquals(2400, parse(json).getRawCurrentWatts(), 0.001);
+	}
+
+	@Test
+	public void unknownUnitsAreMinusOne() throws Exception {
+		SolarPerformance performance = parse("{\"datasets\":[" + STATS.replaceFirst("\"kW\"}", "\"hp\"}") + "]}");
+		assertEquals(-1, performance.getRawCurrentWatts(), 0);
+		assertEquals(14200, performance.getRawTodayWattHours(), 0.001);
+	}
+
+	@Test
+	public void tooFewDatasets() throws Exception {
+		expectParseException("{\"datasets\":[]}");
+		expectParseException("{}");
+		expectParseException("{\"datasets\":[" + STATS.substring(0, STATS.lastIndexOf(",{")) + "]}");
+	}
+
+	@Test
+	public void primaryStatMissingUnits() throws Exception {
+		expectParseException("{\"datasets\":[" + STATS.replaceFirst(",\"units\":\"kW\"}", "}") + "]}");
+	}
+
+	@Test
+	public void malformedDocuments() throws Exception {
+		expectParseException("");
+		expectParseException("[]");
+		expectParseException("{\"datasets\":[" + STATS);
+		expectParseException("{\"datasets\":[" + STATS + "]");
+		expectParseException("{\"datasets\" [" + STATS + "]}");
+		expectParseException("{\"datasets\":[" + STATS.replace("2.4", "2.4.4") + "]}");
+		expectParseException("{\"label\":\"unterminated");
+	}
+
+	@Test
+	public void arrayDataKeepsLabelsAndPoints() throws Exception {
+		ArrayData data = parseArrayData("{\"datasets\":[{\"label\":\"Power\",\"units\":\"kW\",\"primary_stat\":"
+				+ "{\"value\":2,\"units\":\"kW\"},\"data\":[[1286000000,1.5],[1286000300000,null],[null,3],[],"
+				+ "\"odd\",[1286000600,2,\"extra\"]]},{\"label\":\"No stat\",\"data\":[]}]}");
+
+		assertEquals(2, data.getDatasetCount());
+		assertEquals("Power", data.getLabel(0));
+		assertEquals("kW", data.getUnits(0));
+		assertEquals(2000, data.getPrimaryStat(0), 0);
+
+		// Times in seconds or milliseconds; points without a time are dropped
+		assertEquals(3, data.getPointCount(0));
+		assertEquals(1286000000000L, data.getTime(0, 0));
+		assertEquals(1500, data.getValue(0, 0), 0.01);
+		assertEquals(1286000300000L, data.getTime(0, 1));
+		assertTrue(Double.isNaN(data.getValue(0, 1)));
+		assertEquals(1286000600000L, data.getTime(0, 2));
+		assertEquals(2000, data.getValue(0, 2), 0.01);
+
+		assertEquals("No stat", data.getLabel(1));
+		assertNull(data.getUnits(1));
+		assertTrue(Double.isNaN(data.getPrimaryStat(1)));
+		assertEquals(0, data.getPointCount(1));
+	}
+
+	@Test
+	public void labelsAreWholeUtf8() throws Exception {
+		String label = "\u00c9nergie produite aujourd'hui \u2014 bien plus de trente-deux caract\u00e8res";
+		ArrayData data = parseArrayData("{\"datasets\":[{\"label\":\"" + label + "\",\"units\":\"kWh \\u00e9\\n\\\"\"}]}");
+		assertEquals(label, data.getLabel(0));
+		assertEquals("kWh \u00e9\n\"", data.getUnits(0));
+	}
+
+	@Test
+	public void longLabelSpansBufferRefills() throws Exception {
+		StringBuilder label = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			label.append(i % 2 == 0 ? '\u00fc' : '\u20ac');
+		}
+		ArrayData data = parseArrayData("{\"datasets\":[{\"label\":\"" + label + "\"}]}");
+		assertEquals(label.toString(), data.getLabel(0));
+	}
+
+	@Test
+	public void badUnicodeEscape() throws Exception {
+		try {
+			parseArrayData("{\"datasets\":[{\"label\":\"\\uzz00\"}]}");
+			fail("Expected a ParseException");
+		} catch (ParseException e) {
+			// expected
+		}
+	}
+}
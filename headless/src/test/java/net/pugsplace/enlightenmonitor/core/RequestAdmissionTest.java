@@ -0,0 +1,104 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RequestAdmissionTest {
+	private static final String HOST = "enlighten.enphaseenergy.com";
+
+	@Test
+	public void unlimitedHostGoesStraightThrough() throws ApiException {
+		RequestAdmission admission = new RequestAdmission();
+		admission.setMaxWait(0);
+		for (int i = 0; i < 100; i++) {
+			admission.acquire(HOST, "system" + i);
+		}
+	}
+
+	@Test
+	public void burstGoesAtOnce() throws ApiException {
+		RequestAdmission admission = new RequestAdmission();
+		admission.setHostLimit(HOST, 1, 3);
+		admission.setMaxWait(0);
+		long start = System.nanoTime();
+		for (int i = 0; i < 3; i++) {
+			admission.acquire(HOST, null);
+		}
+		assertTrue(System.nanoTime() - start < 1000000000L);
+	}
+
+	@Test
+	public void timesOutWhenHeldBackTooLong() throws ApiException {
+		RequestAdmission admission = new RequestAdmission();
+		admission.setHostLimit(HOST, 1, 1);
+		admission.setMaxWait(100);
+		admission.acquire(HOST, null);
+
+		long start = System.nanoTime();
+		try {
+			admission.acquire(HOST, null);
+			fail("Expected the second request to time out");
+		} catch (ApiException e) {
+			long waited = (System.nanoTime() - start) / 1000000;
+			assertTrue("waited " + waited, waited >= 100 && waited < 1500);
+		}
+	}
+
+	@Test
+	public void backOffHoldsEveryRequest() throws ApiException {
+		RequestAdmission admission = new RequestAdmission();
+		admission.backOff(HOST, 60000);
+		admission.setMaxWait(50);
+		try {
+			admission.acquire(HOST, null);
+			fail("Expected the request to be held back");
+		} catch (ApiException e) {
+			// expected
+		}
+		admission.acquire("other.example.com", null);
+	}
+
+	@Test
+	public void moreImportantRequestGoesFirst() throws Exception {
+		final RequestAdmission admission = new RequestAdmission();
+		// A token every half second
+		admission.setHostLimit(HOST, 120, 1);
+		admission.setPriority("background", RequestAdmission.PRIORITY_BACKGROUND);
+		admission.setPriority("onscreen", RequestAdmission.PRIORITY_HIGH);
+		admission.acquire(HOST, null);
+
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		Thread background = request(admission, "background", order);
+		Thread.sleep(50);
+		Thread onscreen = request(admission, "onscreen", order);
+		background.join(5000);
+		onscreen.join(5000);
+
+		assertEquals(2, order.size());
+		assertEquals("onscreen", order.get(0));
+		assertEquals("background", order.get(1));
+	}
+
+	private static Thread request(final RequestAdmission admission, final String key, final List<String> order) {
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					admission.acquire(HOST, key);
+					order.add(key);
+				} catch (ApiException e) {
+					order.add(e.toString());
+				}
+			}
+		};
+		thread.start();
+		return thread;
+	}
+}
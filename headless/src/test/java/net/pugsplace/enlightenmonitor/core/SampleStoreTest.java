@@ -0,0 +1,132 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SampleStoreTest {
+	private static final long START = 1286000000000L;
+	private static final long STEP = 300000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+	private SampleStore store;
+
+	@Before
+	public void open() throws IOException {
+		file = new File(folder.getRoot(), "123456.dat");
+		store = new SampleStore(file);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(store.append(sample(i)));
+		}
+	}
+
+	@After
+	public void close() throws IOException {
+		store.close();
+	}
+
+	private static SolarPerformance sample(int i) {
+		return new SolarPerformance(START + i * STEP, i, i * 10, i * 100, i * 1000, i * 10000);
+	}
+
+	@Test
+	public void emptyStore() throws IOException {
+		SampleStore empty = new SampleStore(new File(folder.getRoot(), "empty.dat"));
+		try {
+			assertNull(empty.readLast());
+			assertEquals(-1, empty.getOldestTimestamp());
+			assertEquals(0, empty.read(Long.MIN_VALUE, Long.MAX_VALUE).size());
+			assertEquals(0, empty.read(Long.MIN_VALUE, Long.MAX_VALUE, 10, new SampleBatch()));
+		} finally {
+			empty.close();
+		}
+	}
+
+	@Test
+	public void olderSampleIsIgnored() throws IOException {
+		assertFalse(store.append(sample(50)));
+		assertTrue(store.append(sample(99)));
+		assertEquals(101, store.read(Long.MIN_VALUE, Long.MAX_VALUE).size());
+		assertEquals(START + 99 * STEP, store.readLast().getTimestampMillis());
+	}
+
+	@Test
+	public void rangeIsHalfOpen() throws IOException {
+		List<SolarPerformance> samples = store.read(START + 10 * STEP, START + 20 * STEP);
+		assertEquals(10, samples.size());
+		assertEquals(START + 10 * STEP, samples.get(0).getTimestampMillis());
+		assertEquals(START + 19 * STEP, samples.get(9).getTimestampMillis());
+		assertEquals(19.0, samples.get(9).getRawCurrentWatts(), 0);
+		assertEquals(190000.0, samples.get(9).getRawLifetimeWattHours(), 0);
+	}
+
+	@Test
+	public void rangeBetweenSamples() throws IOException {
+		List<SolarPerformance> samples = store.read(START + 10 * STEP + 1, START + 11 * STEP + 1);
+		assertEquals(1, samples.size());
+		assertEquals(START + 11 * STEP, samples.get(0).getTimestampMillis());
+
+		assertEquals(0, store.read(START + 10 * STEP + 1, START + 11 * STEP).size());
+		assertEquals(0, store.read(START + 100 * STEP, Long.MAX_VALUE).size());
+		assertEquals(100, store.read(Long.MIN_VALUE, START + 100 * STEP).size());
+	}
+
+	@Test
+	public void batchReadAppendsUpToMaxCount() throws IOException {
+		SampleBatch batch = new SampleBatch(4);
+		assertEquals(30, store.read(START, Long.MAX_VALUE, 30, batch));
+		assertEquals(70, store.read(batch.getLastTimestamp() + 1, Long.MAX_VALUE, 1000, batch));
+		assertEquals(100, batch.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(START + i * STEP, batch.getTimestampMillis(i));
+			assertEquals(i * 1000L, batch.getMilliwatts(i));
+			assertEquals(i * 10000000L, batch.getLifetimeMilliwattHours(i));
+		}
+	}
+
+	@Test
+	public void compactDropsOlderSamples() throws IOException {
+		store.compact(START + 40 * STEP);
+		assertEquals(START + 40 * STEP, store.getOldestTimestamp());
+		assertEquals(60, store.read(Long.MIN_VALUE, Long.MAX_VALUE).size());
+		assertEquals(60 * SampleStore.RECORD_SIZE, file.length());
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+
+		// Still appends and reads after the file is replaced
+		assertTrue(store.append(sample(100)));
+		assertEquals(START + 100 * STEP, store.readLast().getTimestampMillis());
+		assertEquals(5, store.read(START + 38 * STEP, START + 45 * STEP).size());
+	}
+
+	@Test
+	public void compactKeepsEverythingNewer() throws IOException {
+		store.compact(START);
+		assertEquals(100, store.read(Long.MIN_VALUE, Long.MAX_VALUE).size());
+		store.compact(START + 1000 * STEP);
+		assertEquals(-1, store.getOldestTimestamp());
+		assertNull(store.readLast());
+	}
+
+	@Test
+	public void samplesSurviveReopening() throws IOException {
+		store.close();
+		store = new SampleStore(file);
+		assertEquals(100, store.read(Long.MIN_VALUE, Long.MAX_VALUE).size());
+		assertEquals(99.0, store.readLast().getRawCurrentWatts(), 0);
+	}
+}
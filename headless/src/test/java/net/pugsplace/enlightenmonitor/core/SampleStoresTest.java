@@ -0,0 +1,72 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SampleStoresTest {
+	private static final long START = 1286000000000L;
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void recordCompactsPastRetention() throws IOException {
+		SampleStores stores = new SampleStores(folder.getRoot(), 4);
+		for (int day = 0; day < 420; day++) {
+			stores.record("123456", new SolarPerformance(START + day * DAY, 100, day, day, day, day));
+		}
+
+		SampleBatch batch = new SampleBatch();
+		stores.read("123456", Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE, batch);
+		long newest = START + 419 * DAY;
+		assertEquals(newest, batch.getLastTimestamp());
+		assertTrue(batch.getTimestampMillis(0) >= newest - SampleStores.RETENTION_MS - 31 * DAY);
+		assertTrue(batch.getTimestampMillis(0) > START);
+		stores.closeAll();
+	}
+
+	@Test
+	public void rollupsAreBackfilledFromSamples() throws IOException {
+		SampleStore samples = new SampleStore(new File(folder.getRoot(), "123456.dat"));
+		for (int hour = 0; hour < 48; hour++) {
+			samples.append(new SolarPerformance(START + hour * DAY / 24, 500, 0, 0, 0, 0));
+		}
+		samples.close();
+
+		SampleStores stores = new SampleStores(folder.getRoot(), 4);
+		RollupSeries hourly = stores.readRollups("123456", RollupStore.HOURLY, RollupStore.WATTS, START + 47 * DAY
+				/ 24, 48);
+		int counted = 0;
+		for (int i = 0; i < hourly.size(); i++) {
+			counted += hourly.getCount(i);
+		}
+		assertEquals(48, counted);
+		assertEquals(500.0, hourly.getOverallAverage(), 0.001);
+		stores.closeAll();
+	}
+
+	@Test
+	public void manySystemsThroughFewHandles() throws IOException {
+		SampleStores stores = new SampleStores(folder.getRoot(), 2);
+		for (int round = 0; round < 3; round++) {
+			for (int system = 0; system < 10; system++) {
+				stores.record("system" + system, new SolarPerformance(START + round * 1000, system, 0, 0, 0, 0));
+			}
+		}
+		for (int system = 0; system < 10; system++) {
+			SampleBatch batch = new SampleBatch();
+			assertEquals(3, stores.read("system" + system, Long.MIN_VALUE, Long.MAX_VALUE, 100, batch));
+			assertEquals(system * 1000L, batch.getMilliwatts(2));
+		}
+		stores.closeAll();
+	}
+}
@@ -0,0 +1,89 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.daemon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class HashRingTest {
+	private static final int SYSTEMS = 20000;
+
+	private static List<String> systems() {
+		List<String> systems = new ArrayList<String>(SYSTEMS);
+		for (int i = 0; i < SYSTEMS; i++) {
+			systems.add(Integer.toString(100000 + i * 7));
+		}
+		return systems;
+	}
+
+	private static Map<String, String> owners(HashRing ring) {
+		Map<String, String> owners = new HashMap<String, String>();
+		for (String system : systems()) {
+			owners.put(system, ring.getOwner(system));
+		}
+		return owners;
+	}
+
+	@Test
+	public void emptyRingOwnsNothing() {
+		assertNull(new HashRing(Collections.<String> emptyList()).getOwner("12345"));
+	}
+
+	@Test
+	public void ownersDontDependOnNodeOrder() {
+		Map<String, String> forward = owners(new HashRing(Arrays.asList("a", "b", "c", "d")));
+		Map<String, String> backward = owners(new HashRing(Arrays.asList("d", "c", "b", "a")));
+		assertEquals(forward, backward);
+	}
+
+	@Test
+	public void sharesAreEven() {
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (String owner : owners(new HashRing(Arrays.asList("a", "b", "c", "d"))).values()) {
+			Integer count = counts.get(owner);
+			counts.put(owner, count == null ? 1 : count + 1);
+		}
+		assertEquals(4, counts.size());
+		for (int count : counts.values()) {
+			assertTrue("share of " + count, Math.abs(count - SYSTEMS / 4) < SYSTEMS / 4 / 4);
+		}
+	}
+
+	@Test
+	public void joiningMovesOnlySystemsToTheNewNode() {
+		Map<String, String> before = owners(new HashRing(Arrays.asList("a", "b", "c", "d")));
+		Map<String, String> after = owners(new HashRing(Arrays.asList("a", "b", "c", "d", "e")));
+
+		int moved = 0;
+		for (String system : before.keySet()) {
+			if (!before.get(system).equals(after.get(system))) {
+				assertEquals("e", after.get(system));
+				moved++;
+			}
+		}
+		assertTrue("moved " + moved, moved > SYSTEMS / 10 && moved < SYSTEMS * 3 / 10);
+	}
+
+	@Test
+	public void leavingMovesOnlyTheLeaversSystems() {
+		Map<String, String> before = owners(new HashRing(Arrays.asList("a", "b", "c", "d")));
+		Map<String, String> after = owners(new HashRing(Arrays.asList("a", "b", "d")));
+
+		for (String system : before.keySet()) {
+			if (!"c".equals(before.get(system))) {
+				assertEquals(before.get(system), after.get(system));
+			} else {
+				assertTrue(!"c".equals(after.get(system)));
+			}
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor;
+
+import net.pugsplace.enlightenmonitor.core.Alert;
+import net.pugsplace.enlightenmonitor.core.AlertEvaluator;
+import net.pugsplace.enlightenmonitor.core.PerformanceFormatter;
+import net.pugsplace.enlightenmonitor.core.PerformanceFormatter.unitSize;
+import net.pugsplace.enlightenmonitor.core.Settings;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Shows each raised alert in the status bar, opening the system's history
+ * when touched, and takes it down again once cleared. A system has one
+ * notification per kind of alert.
+ *
+ * Tagged notifications need API 5, so each system is given a number of its
+ * own, kept in the settings, and its notification IDs are made from that.
+ */
+class AlertNotifier implements AlertEvaluator.Listener {
+	/**
+	 * Used for logging messages
+	 */
+	private static final String TAG = "eSolarAlerts";
+
+	private static final String KEY_NEXT_SLOT = "alertSlots";
+	private static final String KEY_SLOT_PREFIX = "alertSlot_";
+
+	/** Notification IDs each system's slot spans, one per kind of alert */
+	private static final int IDS_PER_SLOT = 4;
+
+	private final Context context;
+
+	AlertNotifier(Context context) {
+		this.context = context.getApplicationContext();
+	}
+
+	public void onAlert(Alert alert) {
+		Log.i(TAG, alert.toString());
+		NotificationManager manager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+		String systemId = alert.getSystemId();
+		if (!alert.isRaised()) {
+			manager.cancel(getNotificationId(systemId, alert.getType()));
+			return;
+		}
+
+		String title;
+		String text;
+		if (alert.getType() == Alert.LOW_OUTPUT) {
+			title = context.getString(R.string.alert_low_output_title, systemId);
+			text = context.getString(R.string.alert_low_output_text, PerformanceFormatter.format(alert.getActual(),
+					false, unitSize.watt), PerformanceFormatter.format(alert.getExpected(), false, unitSize.watt));
+		} else {
+			title = context.getString(R.string.alert_behind_pace_title, systemId);
+			text = context.getString(R.string.alert_behind_pace_text, PerformanceFormatter.format(alert.getActual(),
+					true, unitSize.kilowatt), PerformanceFormatter.format(alert.getExpected(), true,
+					unitSize.kilowatt));
+		}
+
+		Intent history = new Intent(context, HistoryActivity.class);
+		history.putExtra(HistoryActivity.EXTRA_INSTALL_ID, systemId);
+		// Distinct data, so each system's notification opens its own history
+		history.setData(Uri.parse("eSolarMonitor://alert/" + Uri.encode(systemId)));
+		history.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+		PendingIntent pending = PendingIntent.getActivity(context, 0, history, 0);
+
+		Notification notification = new Notification(R.drawable.solar_panels_normal, title, alert
+				.getTimestampMillis());
+		notification.setLatestEventInfo(context, title, text, pending);
+		notification.flags |= Notification.FLAG_AUTO_CANCEL;
+		manager.notify(getNotificationId(systemId, alert.getType()), notification);
+	}
+
+	private int getNotificationId(String systemId, int type) {
+		Settings settings = EnlightenSolarMonitor.getSettings(context);
+		long slot;
+		synchronized (AlertNotifier.class) {
+			slot = settings.getLong(KEY_SLOT_PREFIX + systemId, -1);
+			if (slot < 0) {
+				slot = settings.getLong(KEY_NEXT_SLOT, 0);
+				settings.putLong(KEY_NEXT_SLOT, slot + 1);
+				settings.putLong(KEY_SLOT_PREFIX + systemId, slot);
+			}
+		}
+		return (int) (slot * IDS_PER_SLOT + type);
+	}
+}
@@ -0,0 +1,129 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor;
+
+import java.text.DateFormat;
+import java.util.Date;
+
+import net.pugsplace.enlightenmonitor.core.PerformanceFormatter;
+import net.pugsplace.enlightenmonitor.core.RollupSeries;
+import net.pugsplace.enlightenmonitor.core.PerformanceFormatter.unitSize;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Chart of a run of rollup buckets for {@link HistoryActivity}: either the
+ * range and average of each bucket, or one bar per bucket.
+ */
+public class ChartView extends View {
+	/** Shade each bucket's min to max and draw a line through the averages */
+	static final int STYLE_RANGE = 0;
+	/** Draw a bar up to each bucket's max */
+	static final int STYLE_BARS = 1;
+
+	private RollupSeries series = null;
+	private int style = STYLE_RANGE;
+	private boolean energy = false;
+	private DateFormat labelFormat = null;
+
+	private final Paint rangePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint barPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint axisPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+	public ChartView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+
+		rangePaint.setColor(0x6033B5E5);
+		rangePaint.setStyle(Paint.Style.FILL);
+		linePaint.setColor(0xFF33B5E5);
+		linePaint.setStyle(Paint.Style.STROKE);
+		linePaint.setStrokeWidth(2);
+		barPaint.setColor(0xFF33B5E5);
+		barPaint.setStyle(Paint.Style.FILL);
+		axisPaint.setColor(Color.GRAY);
+		textPaint.setColor(Color.LTGRAY);
+		textPaint.setTextSize(12 * context.getResources().getDisplayMetrics().density);
+	}
+
+	/**
+	 * @param energy
+	 *            Whether the values are watt-hours rather than watts.
+	 * @param labelFormat
+	 *            Used for the first and last bucket's start under the chart.
+	 */
+	void setSeries(RollupSeries series, int style, boolean energy, DateFormat labelFormat) {
+		this.series = series;
+		this.style = style;
+		this.energy = energy;
+		this.labelFormat = labelFormat;
+		invalidate();
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		super.onDraw(canvas);
+		if (series == null || !series.hasData()) {
+			return;
+		}
+
+		float textHeight = textPaint.getTextSize();
+		float left = getPaddingLeft();
+		float top = getPaddingTop() + textHeight * 1.5f;
+		float right = getWidth() - getPaddingRight();
+		float bottom = getHeight() - getPaddingBottom() - textHeight * 1.5f;
+
+		double highest = Math.max(series.getHighest(), 1);
+		float scale = (float) ((bottom - top) / highest);
+		int size = series.size();
+		float slot = (right - left) / size;
+
+		Path averages = new Path();
+		boolean inRun = false;
+		for (int i = 0; i < size; i++) {
+			if (series.getCount(i) == 0) {
+				inRun = false;
+				continue;
+			}
+
+			float x = left + slot * i;
+			if (style == STYLE_BARS) {
+				float y = bottom - (float) (Math.max(0, series.getMax(i)) * scale);
+				canvas.drawRect(x + slot * 0.1f, y, x + slot * 0.9f, bottom, barPaint);
+			} else {
+				float high = bottom - (float) (Math.max(0, series.getMax(i)) * scale);
+				float low = bottom - (float) (Math.max(0, series.getMin(i)) * scale);
+				canvas.drawRect(x, high, x + slot, Math.max(low, high + 1), rangePaint);
+
+				float y = bottom - (float) (Math.max(0, series.getAverage(i)) * scale);
+				if (inRun) {
+					averages.lineTo(x + slot / 2, y);
+				} else {
+					averages.moveTo(x + slot / 2, y);
+					inRun = true;
+				}
+			}
+		}
+		if (style == STYLE_RANGE) {
+			canvas.drawPath(averages, linePaint);
+		}
+
+		canvas.drawLine(left, bottom, right, bottom, axisPaint);
+		canvas.drawLine(left, top, right, top, axisPaint);
+		String highestText = PerformanceFormatter.format(highest, energy, energy ? unitSize.kilowatt : unitSize.watt);
+		canvas.drawText(highestText, left, top - textHeight * 0.4f, textPaint);
+
+		if (labelFormat != null) {
+			float baseline = bottom + textHeight * 1.2f;
+			canvas.drawText(labelFormat.format(new Date(series.getStart(0))), left, baseline, textPaint);
+			String last = labelFormat.format(new Date(series.getStart(size - 1)));
+			canvas.drawText(last, right - textPaint.measureText(last), baseline, textPaint);
+		}
+	}
+}
@@ -1,43 +1,44 @@
 /* Copyright 2010 J.C. Jones, All Rights Reserved */
 package net.pugsplace.enlightenmonitor;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.text.DateFormat;
-import java.text.DecimalFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.StatusLine;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.net.URI;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.pugsplace.enlightenmonitor.core.AlertEvaluator;
+import net.pugsplace.enlightenmonitor.core.ApiException;
+import net.pugsplace.enlightenmonitor.core.EnlightenClient;
+import net.pugsplace.enlightenmonitor.core.FallbackSource;
+import net.pugsplace.enlightenmonitor.core.GatewaySource;
+import net.pugsplace.enlightenmonitor.core.ParseException;
+import net.pugsplace.enlightenmonitor.core.RefreshScheduler;
+import net.pugsplace.enlightenmonitor.core.RequestAdmission;
+import net.pugsplace.enlightenmonitor.core.RollupSeries;
+import net.pugsplace.enlightenmonitor.core.SampleStores;
+import net.pugsplace.enlightenmonitor.core.SampleUploader;
+import net.pugsplace.enlightenmonitor.core.Settings;
+import net.pugsplace.enlightenmonitor.core.SnapshotStore;
+import net.pugsplace.enlightenmonitor.core.SolarMonitor;
+import net.pugsplace.enlightenmonitor.core.SolarPerformance;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.util.Log;
 
+/**
+ * Binds the widget to a {@link SolarMonitor}: settings live in
+ * SharedPreferences, samples in the app's private storage, and the URL and
+ * User-Agent templates come from the app's resources.
+ */
 public class EnlightenSolarMonitor {
-	private static DecimalFormat formatter = new DecimalFormat("0.0");
-	private static DateFormat dateFormat = SimpleDateFormat.getTimeInstance();
-	
-	private static final String PREFS_NAME = "net.pugsplace.enlightenmonitor.EnlightenSolarMonitor";
-	private static final String PREF_PREFIX_KEY = "config_";
-	
 	static final String PREF_INSTALL_ID = "installId";
 	static final String PREF_REFRESH_RATE = "refreshRateMs";
-	static final String PREF_LAST_REFRESH = "lastRefresh";
-	
-	static final int MIN_REFRESH_TIME_MS = 5*60*1000;
+	static final String PREF_GATEWAY = "gateway";
 	
 	/**
 	 * Used for logging messages
@@ -45,298 +46,322 @@ public class EnlightenSolarMonitor {
 	private static final String TAG = "eSolarMonitor";
 
 	/**
-	 * User-agent string to use when making requests. Should be filled using
-	 * {@link #prepareUserAgent(Context)} before making any other calls.
+	 * Monitor used for every request. Created by
+	 * {@link #getMonitor(Context)}.
 	 */
-	private static String sUserAgent = null;
+	private static SolarMonitor sMonitor = null;
 
 	/**
-	 * {@link StatusLine} HTTP status code when no server error has occurred.
+	 * Settings of every widget, shared with the monitor. Created by
+	 * {@link #getSettings(Context)}.
 	 */
-	private static final int HTTP_STATUS_OK = 200;
-	
+	private static PreferencesSettings sSettings = null;
+
 	public static final String REFRESH_RATE_DEFAULT = "30 minutes";
 
+	/** Directory, under the app's private storage, holding sample histories */
+	private static final String SAMPLES_DIR = "samples";
+
+	/** A phone only ever has a handful of systems, so keep all their stores open */
+	private static final int MAX_OPEN_SAMPLE_STORES = 8;
+
+	/** File, under the app's private storage, holding each system's last good reading */
+	private static final String SNAPSHOT_FILE = "snapshot.dat";
+
+	private static SnapshotStore sSnapshot = null;
+
+	/** File, under the app's private storage, holding what the alerts have learned */
+	private static final String ALERTS_FILE = "alerts.dat";
+
+	private static AlertEvaluator sAlerts = null;
+
 	/**
-	 * Shared buffer used by {@link #getUrlContent(String)} when reading results
-	 * from an API request.
+	 * Requests a minute to Enlighten, and at once after a quiet spell; enough
+	 * for a screen of widgets without hammering the site
 	 */
-	private static byte[] sBuffer = new byte[512];
+	private static final int API_REQUESTS_PER_MINUTE = 10;
+	private static final int API_REQUEST_BURST = 8;
+	/** Requests a minute for any one system */
+	private static final int SYSTEM_REQUESTS_PER_MINUTE = 2;
+
+	/** Gateways are on the local network, so give up on one quickly and fall back */
+	private static final int GATEWAY_TIMEOUT_MS = 5 * 1000;
+
+	/** Client for every gateway, created on first use */
+	private static EnlightenClient sGatewayClient = null;
+
+	/** Gateway address each system is read from, where it has one */
+	private static final Map<String, String> sGateways = new HashMap<String, String>();
+
+	/** Directory, under the app's private storage, holding batches not yet uploaded */
+	private static final String OUTBOX_DIR = "outbox";
+
+	/** Samples gather this long between uploads, so the radio is woken seldom */
+	private static final long UPLOAD_INTERVAL_MS = 6 * 60 * 60 * 1000;
+
+	private static SampleUploader sUploader = null;
 
 	/**
-	 * Prepare the internal User-Agent string for use. This requires a
-	 * {@link Context} to pull the package name and version number for this
-	 * application.
+	 * Get the monitor shared by the widget, creating it the first time. This
+	 * requires a {@link Context} to pull the package name and version number
+	 * for the User-Agent string.
 	 */
-	public static void prepareUserAgent(Context context) {
+	static synchronized SolarMonitor getMonitor(Context context) {
+		if (sMonitor != null) {
+			return sMonitor;
+		}
+
+		context = context.getApplicationContext();
+		String packageName = context.getPackageName();
+		String versionName = "unknown";
 		try {
 			// Read package name and version number from manifest
 			PackageManager manager = context.getPackageManager();
-			PackageInfo info = manager.getPackageInfo(context.getPackageName(), 0);
-			sUserAgent = String.format(context.getString(R.string.template_user_agent), info.packageName,
-					info.versionName);
-
+			PackageInfo info = manager.getPackageInfo(packageName, 0);
+			versionName = info.versionName;
 		} catch (NameNotFoundException e) {
 			Log.e(TAG, "Couldn't find package information in PackageManager", e);
 		}
+
+		EnlightenClient client = new EnlightenClient(String.format(context.getString(R.string.template_user_agent),
+				packageName, versionName));
+		String template = context.getString(R.string.template_performance_url);
+		RequestAdmission admission = new RequestAdmission();
+		admission.setHostLimit(URI.create(String.format(template, "x")).getHost(), API_REQUESTS_PER_MINUTE,
+				API_REQUEST_BURST);
+		admission.setKeyLimit(SYSTEM_REQUESTS_PER_MINUTE, SYSTEM_REQUESTS_PER_MINUTE);
+		client.setAdmission(admission);
+		File samplesDir = context.getDir(SAMPLES_DIR, Context.MODE_PRIVATE);
+		sMonitor = new SolarMonitor(client, template,
+				getSettings(context), new SampleStores(samplesDir, MAX_OPEN_SAMPLE_STORES));
+		return sMonitor;
+	}
+
+	/**
+	 * Get the settings, loading them the first time. Unlike
+	 * {@link #getMonitor(Context)} this sets up nothing else.
+	 */
+	static synchronized Settings getSettings(Context context) {
+		if (sSettings == null) {
+			sSettings = new PreferencesSettings(context.getApplicationContext());
+		}
+		return sSettings;
 	}
 
 	public static SolarPerformance getPerformanceData(Context context, String systemId) throws ApiException,
 			ParseException {
-		
-		SolarPerformance perform = new SolarPerformance();
-
-		String urlPattern = context.getString(R.string.template_performance_url);
-		String content = getUrlContent(String.format(urlPattern, systemId));
-
-		try {
-			// Drill into the JSON response to find the content body
-			JSONObject response = new JSONObject(content);
-			JSONArray datasets = response.getJSONArray("datasets");
-
-			JSONObject powerCurrent = datasets.getJSONObject(0);
-			JSONObject energyToday = datasets.getJSONObject(1);
-			JSONObject energyWeek = datasets.getJSONObject(2);
-			JSONObject energyMonth = datasets.getJSONObject(3);
-			JSONObject energyLifetime = datasets.getJSONObject(4);
-
-			perform.setCurrentWatts(getWatts(powerCurrent));
-			perform.setTodayWattHours(getWatts(energyToday));
-			perform.setWeekWattHours(getWatts(energyWeek));
-			perform.setMonthWattHours(getWatts(energyMonth));
-			perform.setLifetimeWattHours(getWatts(energyLifetime));
-			perform.setTimestamp(System.currentTimeMillis());
-			
-			
-			savePreference(context, PREF_LAST_REFRESH, System.currentTimeMillis()+"");
+		SolarPerformance perform = getMonitor(context).getPerformanceData(systemId);
+		if (Log.isLoggable(TAG, Log.DEBUG)) {
 			Log.d(TAG, perform.toString());
-		} catch (JSONException e) {
-			throw new ParseException("Problem parsing API response", e);
 		}
-
 		return perform;
 	}
 
-	private static double getWatts(JSONObject energyObject) throws JSONException {
-		JSONObject primaryStat = energyObject.getJSONObject("primary_stat");
-
-		String units = primaryStat.getString("units");
-		if (units.startsWith("kW")) {
-			return (double) (primaryStat.getDouble("value") * 1000);
-		} else if (units.startsWith("W")) {
-			return (double) (primaryStat.getDouble("value"));
-		} else if (units.startsWith("MW")) {
-			return (double) (primaryStat.getDouble("value") * 1000000);
-		} else {
-			return -1;
-		}
-	}
-
 	/**
-	 * Pull the raw text content of the given URL. This call blocks until the
-	 * operation has completed, and is synchronized because it uses a shared
-	 * buffer {@link #sBuffer}.
-	 * 
-	 * @param url
-	 *            The exact URL to request.
-	 * @return The raw content returned by the server.
-	 * @throws ApiException
-	 *             If any connection or server error occurs.
+	 * Read a system from its gateway, falling back to Enlighten while the
+	 * gateway can't be reached, or from Enlighten alone.
+	 *
+	 * @param address
+	 *            The gateway's address, or an empty string for none.
 	 */
-	protected static synchronized String getUrlContent(String url) throws ApiException {
-		if (sUserAgent == null) {
-			throw new ApiException("User-Agent string must be prepared");
+	static synchronized void setGateway(Context context, String systemId, String address) {
+		address = address.trim();
+		String current = sGateways.get(systemId);
+		if (address.equals(current == null ? "" : current)) {
+			return;
 		}
 
-		// Create client and set our specific user-agent string
-		HttpClient client = new DefaultHttpClient();
-		HttpGet request = new HttpGet(url);
-		request.setHeader("User-Agent", sUserAgent);
-
-		try {
-			HttpResponse response = client.execute(request);
-
-			// Check if server response is valid
-			StatusLine status = response.getStatusLine();
-			if (status.getStatusCode() != HTTP_STATUS_OK) {
-				throw new ApiException("Invalid response from server: " + status.toString());
-			}
-
-			// Pull content stream from response
-			HttpEntity entity = response.getEntity();
-			InputStream inputStream = entity.getContent();
-
-			ByteArrayOutputStream content = new ByteArrayOutputStream();
-
-			// Read response into a buffered stream
-			int readBytes = 0;
-			while ((readBytes = inputStream.read(sBuffer)) != -1) {
-				content.write(sBuffer, 0, readBytes);
+		SolarMonitor monitor = getMonitor(context);
+		if (address.length() == 0) {
+			sGateways.remove(systemId);
+			monitor.setDataSource(systemId, null);
+		} else {
+			if (sGatewayClient == null) {
+				sGatewayClient = new EnlightenClient(monitor.getClient().getUserAgent());
+				sGatewayClient.setTimeout(GATEWAY_TIMEOUT_MS);
 			}
-
-			// Return result from buffered stream
-			return new String(content.toByteArray());
-		} catch (IOException e) {
-			throw new ApiException("Problem communicating with API", e);
+			sGateways.put(systemId, address);
+			monitor.setDataSource(systemId, new FallbackSource(new GatewaySource(sGatewayClient, address, monitor
+					.getSettings()), monitor.getCloudSource()));
 		}
 	}
-	
-	private static String formatPerformance(double value, boolean energy, unitSize minUnit) {
-		StringBuffer sb = new StringBuffer();
-
-		if (value >= 1000000 || unitSize.megawatt.equals(minUnit)) {
-			sb.append(formatter.format((double)value/1000000));
-			sb.append(" MW");
-		} else if (value > 9000|| unitSize.kilowatt.equals(minUnit)) {
-			sb.append(formatter.format((double)value/1000));
-			sb.append(" kW");
+
+	/**
+	 * Queue a system's requests ahead of others when the rate limit is
+	 * reached, or put it back in line.
+	 */
+	static void setHighPriority(Context context, String systemId, boolean high) {
+		RequestAdmission admission = getMonitor(context).getClient().getAdmission();
+		if (high) {
+			admission.setPriority(systemId, RequestAdmission.PRIORITY_HIGH);
 		} else {
-			sb.append(formatter.format(value));
-			sb.append(" W");
+			admission.clearPriority(systemId);
 		}
-		
-		if (energy) {
-			sb.append('h');
-		}
-		
-		return sb.toString();
-	}
-	
-	public enum unitSize {
-		watt,kilowatt,megawatt;
 	}
 
-	public static class SolarPerformance {
-		private double currentWatts;
-		private double todayWattHours;
-		private double weekWattHours;
-		private double monthWattHours;
-		private double lifetimeWattHours;
-		private String timestamp;
-
-		public String getCurrentWatts() {
-			return formatPerformance(currentWatts, false, unitSize.watt);
-		}
+	/**
+	 * Set how many connections may be open at once to the API host. Callers
+	 * fetching in parallel should raise this to match their concurrency.
+	 */
+	static void setMaxConnections(Context context, int maxConnections) {
+		getMonitor(context).getClient().setMaxConnections(maxConnections);
+	}
 
-		public String getTodayWattHours() {
-			return formatPerformance(todayWattHours, true, unitSize.kilowatt);
-		}
+	/**
+	 * Read the newest sample in a system's on-device history.
+	 *
+	 * @return The sample, or null if there are none.
+	 */
+	static SolarPerformance readLastSample(Context context, String systemId) throws IOException {
+		return getMonitor(context).getSampleStores().readLast(systemId);
+	}
 
-		public String getWeekWattHours() {
-			return formatPerformance(weekWattHours, true, unitSize.kilowatt);
+	/**
+	 * Get the last good reading of every system. Unlike
+	 * {@link #getMonitor(Context)} this sets up nothing else, so it's cheap
+	 * enough for the first draw after a restart.
+	 */
+	static synchronized SnapshotStore getSnapshot(Context context) {
+		if (sSnapshot == null) {
+			sSnapshot = new SnapshotStore(new File(context.getFilesDir(), SNAPSHOT_FILE));
 		}
+		return sSnapshot;
+	}
 
-		public String getMonthWattHours() {
-			return formatPerformance(monthWattHours, true, unitSize.kilowatt);
+	/**
+	 * Get the evaluator checking each new reading for alerts, restoring what
+	 * it had learned the first time.
+	 */
+	static synchronized AlertEvaluator getAlerts(Context context) {
+		if (sAlerts == null) {
+			sAlerts = new AlertEvaluator(new AlertNotifier(context));
+			sAlerts.load(new File(context.getFilesDir(), ALERTS_FILE));
 		}
+		return sAlerts;
+	}
 
-		public String getLifetimeWattHours() {
-			return formatPerformance(lifetimeWattHours, true, unitSize.kilowatt);
-		}
+	/**
+	 * Write what the alerts have learned, to be picked up after a restart.
+	 */
+	static void saveAlerts(Context context) throws IOException {
+		getAlerts(context).save(new File(context.getFilesDir(), ALERTS_FILE));
+	}
 
-		public void setCurrentWatts(double currentWatts) {
-			this.currentWatts = currentWatts;
+	/**
+	 * Get the uploader sending samples to the collector, or null if the app
+	 * was built without one.
+	 */
+	static synchronized SampleUploader getUploader(Context context) {
+		if (sUploader == null) {
+			String collectorUrl = context.getString(R.string.collector_url);
+			if (collectorUrl.length() == 0) {
+				return null;
+			}
+			SolarMonitor monitor = getMonitor(context);
+			sUploader = new SampleUploader(monitor.getClient(), collectorUrl, monitor.getSampleStores(), monitor
+					.getSettings(), context.getDir(OUTBOX_DIR, Context.MODE_PRIVATE));
+			sUploader.setInterval(UPLOAD_INTERVAL_MS);
 		}
+		return sUploader;
+	}
 
-		public void setTodayWattHours(double todayWattHours) {
-			this.todayWattHours = todayWattHours;
+	/**
+	 * Upload the systems' samples to the collector if it's time. Best called
+	 * just after fetching, while the radio is still awake.
+	 */
+	static void uploadSamples(Context context, Collection<String> systemIds) {
+		SampleUploader uploader = getUploader(context);
+		if (uploader == null || !uploader.isDue()) {
+			return;
 		}
-
-		public void setWeekWattHours(double weekWattHours) {
-			this.weekWattHours = weekWattHours;
+		try {
+			int uploaded = uploader.upload(systemIds);
+			Log.i(TAG, "Uploaded " + uploaded + " samples");
+		} catch (ApiException e) {
+			Log.w(TAG, "Couldn't upload samples; will retry", e);
+		} catch (IOException e) {
+			Log.e(TAG, "Couldn't read samples to upload", e);
 		}
+	}
 
-		public void setMonthWattHours(double monthWattHours) {
-			this.monthWattHours = monthWattHours;
-		}
+	/**
+	 * Read hourly, daily or monthly rollups of a system's history.
+	 */
+	static RollupSeries readRollups(Context context, String systemId, int resolution, int series, long endMillis,
+			int count) throws IOException {
+		return getMonitor(context).getSampleStores().readRollups(systemId, resolution, series, endMillis, count);
+	}
 
-		public void setLifetimeWattHours(double lifetimeWattHours) {
-			this.lifetimeWattHours = lifetimeWattHours;
-		}
-		
-		public void setTimestamp(long l) {
-			this.timestamp = dateFormat.format(new Date(l));
-		}
+	static void savePreference(Context context, String key, String text) {
+		getSettings(context).putString(key, text);
+	}
+	
+	static String getPreference(Context context, String key, String defaultString) {
+		return getSettings(context).getString(key, defaultString);
+	}
 
-		public String toString() {
-			return "C: " + currentWatts + ", T: " + todayWattHours + ", W: " + weekWattHours + ", M: " + monthWattHours
-					+ ", L: " + lifetimeWattHours;
-		}
+	static void savePreference(Context context, int appWidgetId, String key, String text) {
+		savePreference(context, appWidgetId + "_" + key, text);
+	}
 
-		public String getTimestamp() {
-			return timestamp;
-		}
+	/**
+	 * Read a setting for one widget. Widgets placed before settings were kept
+	 * per widget fall back to the old global value.
+	 */
+	static String getPreference(Context context, int appWidgetId, String key, String defaultString) {
+		return getPreference(context, appWidgetId + "_" + key, getPreference(context, key, defaultString));
 	}
 
-	protected static class ApiException extends Exception {
-		public ApiException(String text, Throwable cause) {
-			super(text, cause);
-		}
+	/**
+	 * Drop what's kept in memory about a system no widget shows any more,
+	 * its request priority included.
+	 */
+	static void forgetSystem(Context context, String systemId) {
+		getMonitor(context).forget(systemId);
+	}
 
-		public ApiException(String text) {
-			super(text);
-		}
+	static void deletePreferences(Context context, int appWidgetId) {
+		Settings settings = getSettings(context);
+		settings.remove(appWidgetId + "_" + PREF_INSTALL_ID);
+		settings.remove(appWidgetId + "_" + PREF_REFRESH_RATE);
+		settings.remove(appWidgetId + "_" + PREF_GATEWAY);
 	}
 
-	protected static class ParseException extends Exception {
-		public ParseException(String text, Throwable cause) {
-			super(text, cause);
-		}
+	static long getLastRefresh(Context context, String systemId) {
+		return getMonitor(context).getLastRefresh(systemId);
+	}
 
-		public ParseException(String text) {
-			super(text);
-		}
+	static void setLastRefresh(Context context, String systemId, long timeMillis) {
+		getMonitor(context).setLastRefresh(systemId, timeMillis);
 	}
-	
-	// Write the prefix to the SharedPreferences object for this widget
-	static void savePreference(Context context, String key, String text) {
-		SharedPreferences.Editor prefs = context.getSharedPreferences(PREFS_NAME, 0).edit();
-		prefs.putString(PREF_PREFIX_KEY + key, text);
-		prefs.commit();
+
+	static RefreshScheduler getScheduler(Context context) {
+		return getMonitor(context).getScheduler();
 	}
-	
-	static String getPreference(Context context, String key, String defaultString) {
-		SharedPreferences preferences = context.getSharedPreferences(PREFS_NAME, 0);
-		return preferences.getString(PREF_PREFIX_KEY+key, defaultString);
+
+	/**
+	 * @return The refresh rate the user chose for a widget, in milliseconds.
+	 */
+	static long getRefreshRate(Context context, int appWidgetId) {
+		return RefreshScheduler.parseRefreshString(getPreference(context, appWidgetId, PREF_REFRESH_RATE,
+				REFRESH_RATE_DEFAULT));
 	}
 
-	public static boolean isTimeForUpdate(Context context, long currentTimeMillis) {
-		String rateString = getPreference(context, PREF_REFRESH_RATE, REFRESH_RATE_DEFAULT);
-		long rateMs = parseRefreshString(rateString);
-		
-		long lastRefresh = Long.parseLong(getPreference(context, PREF_LAST_REFRESH, "0"));
-		
-		if (lastRefresh + rateMs < currentTimeMillis) {
-			Log.d(TAG, "isTimeForUpdate true, " + lastRefresh + "+"+rateMs + "<" + currentTimeMillis);
-			return true;
+	public static boolean isTimeForUpdate(Context context, int appWidgetId, long currentTimeMillis) {
+		String installId = getPreference(context, appWidgetId, PREF_INSTALL_ID, "");
+		if (installId.length() == 0) {
+			return false;
 		}
-		
-		Log.d(TAG, "isTimeForUpdate FALSE, " + lastRefresh + "+"+rateMs + "<" + currentTimeMillis);
-		return false;
-	}
 
-	public static long parseRefreshString(String refreshString) {
-		long millsPerSecond = 1000-50; // Fudge factor
-		long secondsPerMinute = 60;
-		long minutesPerHour = 60;
-		
-		if (refreshString != null) {
-			String parts[] = refreshString.split(" ");
-			if (parts.length == 2) {
-				int amt = Integer.parseInt(parts[0]);
-				
-				if ("minutes".equals(parts[1])) {
-					return secondsPerMinute * millsPerSecond * amt;
-				}
-			
-				if ("hours".equals(parts[1])) {
-					return secondsPerMinute * millsPerSecond * minutesPerHour * amt;
-				}
-			}
+		SolarMonitor monitor = getMonitor(context);
+		long rateMs = getRefreshRate(context, appWidgetId);
+		boolean due = monitor.isDue(installId, currentTimeMillis, rateMs);
+
+		// Called for every widget on every update broadcast, so only build the message if it'll be seen
+		if (Log.isLoggable(TAG, Log.DEBUG)) {
+			Log.d(TAG, "isTimeForUpdate " + due + ", " + installId + " due at "
+					+ monitor.getNextDue(installId, rateMs) + ", now " + currentTimeMillis);
 		}
-		
-		Log.d(TAG, "Falling back to 30 minutes");
-		return secondsPerMinute * millsPerSecond * 30;
+		return due;
 	}
-
-}
\ No newline at end of file
+}
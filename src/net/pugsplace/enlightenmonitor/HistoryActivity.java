@@ -0,0 +1,135 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor;
+
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+
+import net.pugsplace.enlightenmonitor.core.PerformanceFormatter;
+import net.pugsplace.enlightenmonitor.core.RollupSeries;
+import net.pugsplace.enlightenmonitor.core.RollupStore;
+import net.pugsplace.enlightenmonitor.core.PerformanceFormatter.unitSize;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+
+/**
+ * Charts a system's recorded history from its rollups: output by the hour,
+ * energy by the day, or output by the month.
+ */
+public class HistoryActivity extends Activity {
+	/** Intent extra naming the system to chart */
+	static final String EXTRA_INSTALL_ID = "net.pugsplace.enlightenmonitor.InstallId";
+
+	private static final int HOURS_SHOWN = 48;
+	private static final int DAYS_SHOWN = 30;
+	private static final int MONTHS_SHOWN = 12;
+
+	/**
+	 * Used for logging messages
+	 */
+	private static final String TAG = "eSolarHistory";
+
+	private String installId;
+	private ChartView chart;
+	private TextView summary;
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.history);
+
+		installId = getIntent().getStringExtra(EXTRA_INSTALL_ID);
+		if (installId == null || installId.length() == 0) {
+			finish();
+			return;
+		}
+
+		chart = (ChartView) findViewById(R.id.history_chart);
+		summary = (TextView) findViewById(R.id.history_summary);
+		((TextView) findViewById(R.id.history_system)).setText(installId);
+
+		findViewById(R.id.history_hours).setOnClickListener(new View.OnClickListener() {
+			public void onClick(View v) {
+				showHours();
+			}
+		});
+		findViewById(R.id.history_days).setOnClickListener(new View.OnClickListener() {
+			public void onClick(View v) {
+				showDays();
+			}
+		});
+		findViewById(R.id.history_months).setOnClickListener(new View.OnClickListener() {
+			public void onClick(View v) {
+				showMonths();
+			}
+		});
+
+		showHours();
+	}
+
+	private void showHours() {
+		show(RollupStore.HOURLY, RollupStore.WATTS, HOURS_SHOWN, ChartView.STYLE_RANGE, DateFormat
+				.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT));
+	}
+
+	private void showDays() {
+		// A day's energy is the most its running total reached
+		show(RollupStore.DAILY, RollupStore.TODAY_WATT_HOURS, DAYS_SHOWN, ChartView.STYLE_BARS, DateFormat
+				.getDateInstance(DateFormat.SHORT));
+	}
+
+	private void showMonths() {
+		show(RollupStore.MONTHLY, RollupStore.WATTS, MONTHS_SHOWN, ChartView.STYLE_RANGE, new SimpleDateFormat(
+				"MMM yyyy"));
+	}
+
+	private void show(int resolution, int series, int count, int style, DateFormat labelFormat) {
+		RollupSeries rollups;
+		try {
+			rollups = EnlightenSolarMonitor.readRollups(this, installId, resolution, series, System
+					.currentTimeMillis(), count);
+		} catch (IOException e) {
+			Log.e(TAG, "Couldn't read history of " + installId, e);
+			summary.setText(R.string.history_empty);
+			return;
+		}
+
+		boolean energy = series == RollupStore.TODAY_WATT_HOURS;
+		chart.setSeries(rollups, style, energy, labelFormat);
+
+		if (!rollups.hasData()) {
+			summary.setText(R.string.history_empty);
+			return;
+		}
+
+		double low;
+		double average;
+		double high = rollups.getHighest();
+		if (style == ChartView.STYLE_BARS) {
+			// Summarise the bars themselves, not every sample behind them
+			low = Double.MAX_VALUE;
+			double sum = 0;
+			int bars = 0;
+			for (int i = 0; i < rollups.size(); i++) {
+				if (rollups.getCount(i) > 0) {
+					low = Math.min(low, rollups.getMax(i));
+					sum += rollups.getMax(i);
+					bars++;
+				}
+			}
+			average = sum / bars;
+		} else {
+			low = rollups.getLowest();
+			average = rollups.getOverallAverage();
+		}
+
+		unitSize minUnit = energy ? unitSize.kilowatt : unitSize.watt;
+		summary.setText(getString(R.string.history_summary, PerformanceFormatter.format(low, energy, minUnit),
+				PerformanceFormatter.format(average, energy, minUnit), PerformanceFormatter.format(high, energy,
+						minUnit)));
+	}
+}
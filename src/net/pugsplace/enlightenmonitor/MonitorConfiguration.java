@@ -1,6 +1,9 @@
 package net.pugsplace.enlightenmonitor;
 
+import java.util.Collections;
+
 import net.pugsplace.enlightenmonitor.MonitorWidget.UpdateService;
+import net.pugsplace.enlightenmonitor.core.Metrics;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.appwidget.AppWidgetManager;
@@ -20,6 +23,7 @@ public class MonitorConfiguration extends Activity {
 	private int mAppWidgetId;
 	private EditText installationId;
 	private Spinner refreshRate;
+	private EditText gateway;
 
 	/**
 	 * Used for logging messages
@@ -42,6 +46,7 @@ public class MonitorConfiguration extends Activity {
 		// Find the EditText
 		installationId = (EditText) findViewById(R.id.config_installationId);
 		refreshRate = (Spinner) findViewById(R.id.config_refresh_spinner);
+		gateway = (EditText) findViewById(R.id.config_gateway);
 		
 		// Insert the Spinner text entries
 		ArrayAdapter<CharSequence> adapter = ArrayAdapter.createFromResource(this, R.array.refresh_times_array,
@@ -52,6 +57,8 @@ public class MonitorConfiguration extends Activity {
 		// Bind the action for the save button.
 		findViewById(R.id.config_save).setOnClickListener(mSaveListener);
 		findViewById(R.id.config_about).setOnClickListener(mAboutListener);
+		findViewById(R.id.config_history).setOnClickListener(mHistoryListener);
+		findViewById(R.id.config_stats).setOnClickListener(mStatsListener);
 
 		Intent intent = getIntent();
 		Bundle extras = intent.getExtras();
@@ -67,12 +74,14 @@ public class MonitorConfiguration extends Activity {
 			finish();
 		}
 
-		String instDefault = EnlightenSolarMonitor.getPreference(MonitorConfiguration.this,
+		String instDefault = EnlightenSolarMonitor.getPreference(MonitorConfiguration.this, mAppWidgetId,
 				EnlightenSolarMonitor.PREF_INSTALL_ID, "");
-		String refreshDefault = EnlightenSolarMonitor.getPreference(MonitorConfiguration.this,
+		String refreshDefault = EnlightenSolarMonitor.getPreference(MonitorConfiguration.this, mAppWidgetId,
 				EnlightenSolarMonitor.PREF_REFRESH_RATE, EnlightenSolarMonitor.REFRESH_RATE_DEFAULT);
 
 		installationId.setText(instDefault);
+		gateway.setText(EnlightenSolarMonitor.getPreference(MonitorConfiguration.this, mAppWidgetId,
+				EnlightenSolarMonitor.PREF_GATEWAY, ""));
 
 		for (int pos = 0; pos < adapter.getCount(); pos++) {
 			if (adapter.getItem(pos).equals(refreshDefault)) {
@@ -90,6 +99,25 @@ public class MonitorConfiguration extends Activity {
 		}
 	};
 
+	View.OnClickListener mStatsListener = new View.OnClickListener() {
+		public void onClick(View v) {
+			Context context = v.getContext();
+			new AlertDialog.Builder(context).setTitle(context.getString(R.string.stats_title))
+					.setMessage(Metrics.getSummary()).show();
+		}
+	};
+
+	View.OnClickListener mHistoryListener = new View.OnClickListener() {
+		public void onClick(View v) {
+			String installId = installationId.getText().toString().trim();
+			if (installId.length() > 0) {
+				Intent history = new Intent(MonitorConfiguration.this, HistoryActivity.class);
+				history.putExtra(HistoryActivity.EXTRA_INSTALL_ID, installId);
+				startActivity(history);
+			}
+		}
+	};
+
 	View.OnClickListener mSaveListener = new View.OnClickListener() {
 		public void onClick(View v) {
 			final Context context = MonitorConfiguration.this;
@@ -100,18 +128,27 @@ public class MonitorConfiguration extends Activity {
 			String installId = installationId.getText().toString().trim();
 			String refreshString = (String) refreshRate.getSelectedItem();
 
-			String oldInstallId = EnlightenSolarMonitor.getPreference(context,
+			String oldInstallId = EnlightenSolarMonitor.getPreference(context, mAppWidgetId,
 					EnlightenSolarMonitor.PREF_INSTALL_ID, "");
 
 			if (false == oldInstallId.equals(installId)) {
-				EnlightenSolarMonitor.savePreference(context, EnlightenSolarMonitor.PREF_LAST_REFRESH, "0");
+				EnlightenSolarMonitor.setLastRefresh(context, installId, 0);
+				EnlightenSolarMonitor.getScheduler(context).reset(installId);
 			}
 
-			// save
-			EnlightenSolarMonitor.savePreference(MonitorConfiguration.this, EnlightenSolarMonitor.PREF_INSTALL_ID,
-					installId);
-			EnlightenSolarMonitor.savePreference(MonitorConfiguration.this, EnlightenSolarMonitor.PREF_REFRESH_RATE,
-					refreshString);
+			// save, keyed by this widget so each one can show its own system
+			EnlightenSolarMonitor.savePreference(MonitorConfiguration.this, mAppWidgetId,
+					EnlightenSolarMonitor.PREF_INSTALL_ID, installId);
+			EnlightenSolarMonitor.savePreference(MonitorConfiguration.this, mAppWidgetId,
+					EnlightenSolarMonitor.PREF_REFRESH_RATE, refreshString);
+			EnlightenSolarMonitor.savePreference(MonitorConfiguration.this, mAppWidgetId,
+					EnlightenSolarMonitor.PREF_GATEWAY, gateway.getText().toString().trim());
+
+			// Now this widget shows the new system, the old may be on no screen
+			if (oldInstallId.length() > 0 && false == oldInstallId.equals(installId)) {
+				MonitorWidget.forgetUnshownSystems(context, Collections.singleton(oldInstallId), Collections
+						.<Integer> emptySet());
+			}
 
 			// Make the update
 			context.startService(new Intent(context, UpdateService.class));
@@ -1,33 +1,69 @@
 /* Copyright 2010 J.C. Jones, All Rights Reserved */
 package net.pugsplace.enlightenmonitor;
 
-import net.pugsplace.enlightenmonitor.EnlightenSolarMonitor.ApiException;
-import net.pugsplace.enlightenmonitor.EnlightenSolarMonitor.ParseException;
-import net.pugsplace.enlightenmonitor.EnlightenSolarMonitor.SolarPerformance;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.pugsplace.enlightenmonitor.core.AlertEvaluator;
+import net.pugsplace.enlightenmonitor.core.FleetAggregate;
+import net.pugsplace.enlightenmonitor.core.Metrics;
+import net.pugsplace.enlightenmonitor.core.RefreshScheduler;
+import net.pugsplace.enlightenmonitor.core.RollupSeries;
+import net.pugsplace.enlightenmonitor.core.RollupStore;
+import net.pugsplace.enlightenmonitor.core.SolarPerformance;
 
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
+import android.app.AlarmManager;
 import android.app.AlertDialog;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Message;
+import android.os.Process;
 import android.util.Log;
 import android.view.View;
 import android.widget.RemoteViews;
 import android.widget.TextView;
 
 public class MonitorWidget extends AppWidgetProvider {
-	private static int currentState = 0;
+	private static volatile int currentState = 0;
 	private static final int STATE_WEEK = 0;
 	private static final int STATE_MONTH = 1;
 	private static final int STATE_LIFETIME = 2;
+	/** Every system's widgets show the totals of all the systems on screen */
+	private static final int STATE_FLEET = 3;
+	private static final int STATE_COUNT = 4;
+
+	/**
+	 * Latest performance of each system, keyed by install ID. The map is never
+	 * modified once published, only replaced, and the readings in it are
+	 * immutable, so drawing reads it without locking and never waits on a
+	 * fetch.
+	 */
+	private static final AtomicReference<Map<String, SolarPerformance>> performanceData = new AtomicReference<Map<String, SolarPerformance>>(
+			Collections.<String, SolarPerformance> emptyMap());
 
-	private static SolarPerformance performanceData;
-	private static final Object semaphore = new Object();
+	/**
+	 * Totals of every system in {@link #performanceData}, kept up to date by
+	 * {@link #publish(Map, boolean)} as each system changes.
+	 */
+	private static final FleetAggregate fleet = new FleetAggregate();
 
 	/** Intent name for the state change */
 	private static final String ACTION_WIDGET_STATECHANGE = "net.pugsplace.enlightenmonitor.StateChange";
@@ -38,123 +74,558 @@ public class MonitorWidget extends AppWidgetProvider {
 	 */
 	private static final String TAG = "eSolarWidget";
 
-	
-	/** Used by the service */
-	private static int[] appWidgetIds;
+	/** Number of systems the service fetches in parallel */
+	private static final int FETCH_CONCURRENCY = 4;
+
+	/** Hours of output shown by the sparkline */
+	private static final int SPARKLINE_HOURS = 24;
+	private static final int SPARKLINE_WIDTH_DIP = 100;
+	private static final int SPARKLINE_HEIGHT_DIP = 16;
+
+	/** What was last pushed to each widget, keyed by appWidgetId */
+	private static final Map<Integer, DrawnWidget> drawnWidgets = new HashMap<Integer, DrawnWidget>();
+
+	/** Shared by every widget's panel icon; created on first draw */
+	private static PendingIntent stateChangePendingIntent = null;
+
+	/**
+	 * The text last shown by a widget and its click intents, which are kept
+	 * rather than asked of the activity manager again on every draw.
+	 */
+	private static class DrawnWidget {
+		final PendingIntent configPendingIntent;
+		String[] texts = null;
+		Sparkline sparkline = null;
+
+		DrawnWidget(PendingIntent configPendingIntent) {
+			this.configPendingIntent = configPendingIntent;
+		}
+	}
 
 	public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
-		MonitorWidget.appWidgetIds = appWidgetIds;
-		
-		if (EnlightenSolarMonitor.isTimeForUpdate(context, System.currentTimeMillis())) {
-			// To prevent any ANR timeouts, we perform the update in a service
+		if (isColdStart()) {
+			// The service puts up the last known readings before it fetches anything
 			context.startService(new Intent(context, UpdateService.class));
+			return;
 		}
+
+		long now = System.currentTimeMillis();
+		for (int appWidgetId : appWidgetIds) {
+			if (EnlightenSolarMonitor.isTimeForUpdate(context, appWidgetId, now)) {
+				// To prevent any ANR timeouts, we perform the update in a service
+				context.startService(new Intent(context, UpdateService.class));
+				return;
+			}
+		}
+	}
+
+	public void onDisabled(Context context) {
+		scheduleWakeup(context, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Set the one alarm that starts {@link UpdateService} when the next system
+	 * falls due. The alarm does not wake the device; if it is asleep the poll
+	 * waits until it next wakes.
+	 *
+	 * @param wakeup
+	 *            When to start the service, or {@link Long#MAX_VALUE} to cancel.
+	 */
+	static void scheduleWakeup(Context context, long wakeup) {
+		AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		PendingIntent pending = PendingIntent.getService(context, 0, new Intent(context, UpdateService.class), 0);
+		if (wakeup == Long.MAX_VALUE) {
+			alarms.cancel(pending);
+		} else {
+			if (Log.isLoggable(TAG, Log.DEBUG)) {
+				Log.d(TAG, "Next wakeup in " + (wakeup - System.currentTimeMillis()) + "ms");
+			}
+			alarms.set(AlarmManager.RTC, wakeup, pending);
+		}
+	}
+
+	public void onDeleted(Context context, int[] appWidgetIds) {
+		Set<String> systems = new HashSet<String>();
+		Set<Integer> deleted = new HashSet<Integer>();
+		for (int appWidgetId : appWidgetIds) {
+			String installId = EnlightenSolarMonitor.getPreference(context, appWidgetId,
+					EnlightenSolarMonitor.PREF_INSTALL_ID, "");
+			if (installId.length() > 0) {
+				systems.add(installId);
+			}
+			deleted.add(appWidgetId);
+			EnlightenSolarMonitor.deletePreferences(context, appWidgetId);
+			synchronized (drawnWidgets) {
+				drawnWidgets.remove(appWidgetId);
+			}
+		}
+
+		forgetUnshownSystems(context, systems, deleted);
+	}
+
+	/**
+	 * Forget those of the given systems that no widget shows any more, so
+	 * they stop jumping the queue for requests.
+	 *
+	 * @param goneWidgetIds
+	 *            Widgets being deleted, which no longer count as showing
+	 *            anything.
+	 */
+	static void forgetUnshownSystems(Context context, Set<String> installIds, Set<Integer> goneWidgetIds) {
+		List<Integer> remaining = new ArrayList<Integer>();
+		for (int appWidgetId : getAppWidgetIds(context)) {
+			if (!goneWidgetIds.contains(appWidgetId)) {
+				remaining.add(appWidgetId);
+			}
+		}
+		int[] remainingIds = new int[remaining.size()];
+		for (int i = 0; i < remainingIds.length; i++) {
+			remainingIds[i] = remaining.get(i);
+		}
+		Map<String, List<Integer>> shown = getWidgetsBySystem(context, remainingIds);
+		for (String installId : installIds) {
+			if (!shown.containsKey(installId)) {
+				EnlightenSolarMonitor.forgetSystem(context, installId);
+			}
+		}
+	}
+
+	/**
+	 * @return Whether this process has yet to draw anything, as after a
+	 *         restart.
+	 */
+	static boolean isColdStart() {
+		synchronized (drawnWidgets) {
+			return drawnWidgets.isEmpty();
+		}
+	}
+
+	static int[] getAppWidgetIds(Context context) {
+		AppWidgetManager manager = AppWidgetManager.getInstance(context);
+		return manager.getAppWidgetIds(new ComponentName(context, MonitorWidget.class));
+	}
+
+	/**
+	 * Group the given widgets by the install ID each one shows. Widgets that
+	 * have not been configured yet are left out.
+	 */
+	static Map<String, List<Integer>> getWidgetsBySystem(Context context, int[] appWidgetIds) {
+		Map<String, List<Integer>> widgetsBySystem = new HashMap<String, List<Integer>>();
+		for (int appWidgetId : appWidgetIds) {
+			String installId = EnlightenSolarMonitor.getPreference(context, appWidgetId,
+					EnlightenSolarMonitor.PREF_INSTALL_ID, "");
+			if (installId.length() == 0) {
+				continue;
+			}
+
+			List<Integer> widgets = widgetsBySystem.get(installId);
+			if (widgets == null) {
+				widgets = new ArrayList<Integer>();
+				widgetsBySystem.put(installId, widgets);
+			}
+			widgets.add(appWidgetId);
+		}
+		return widgetsBySystem;
 	}
 
 	public static void drawScreen(Context context) {
-		if (MonitorWidget.appWidgetIds == null) {
-			return;
+		drawScreen(context, false);
+	}
+
+	/**
+	 * @param snapshotOnly
+	 *            Draw only the systems with a reading in memory or in the
+	 *            snapshot, and no sparklines, so that only the settings and
+	 *            the snapshot are read; the monitor, with its HTTP client and
+	 *            sample stores, isn't built. For the first draw after a
+	 *            restart.
+	 */
+	private static void drawScreen(Context context, boolean snapshotOnly) {
+		long start = System.nanoTime();
+		Map<String, List<Integer>> widgetsBySystem = getWidgetsBySystem(context, getAppWidgetIds(context));
+		Map<String, SolarPerformance> performances = new HashMap<String, SolarPerformance>();
+		for (String installId : widgetsBySystem.keySet()) {
+			performances.put(installId, getPerformance(context, installId, snapshotOnly));
+		}
+
+		// Systems no longer on screen drop out of the totals, and ones back on
+		// screen since are counted again
+		fleet.retainAll(widgetsBySystem.keySet());
+		for (Map.Entry<String, SolarPerformance> entry : performances.entrySet()) {
+			fleet.addIfAbsent(entry.getKey(), entry.getValue());
+		}
+
+		int state = currentState;
+		// Nothing has been polled since the restart, so a new scheduler judges
+		// staleness just as the monitor's would
+		RefreshScheduler scheduler = snapshotOnly ? new RefreshScheduler() : EnlightenSolarMonitor
+				.getScheduler(context);
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, List<Integer>> system : widgetsBySystem.entrySet()) {
+			SolarPerformance performance;
+			Sparkline sparkline;
+			if (state == STATE_FLEET) {
+				performance = fleet.getTotal();
+				sparkline = null;
+			} else {
+				performance = performances.get(system.getKey());
+				sparkline = snapshotOnly ? null : getSparkline(context, system.getKey());
+			}
+			if (snapshotOnly && performance == null) {
+				// Left as the launcher had it rather than shown as an error
+				continue;
+			}
+			for (int appWidgetId : system.getValue()) {
+				boolean stale = state != STATE_FLEET
+						&& performance != null
+						&& scheduler.isStale(system.getKey(), performance.getTimestampMillis(), now,
+								EnlightenSolarMonitor.getRefreshRate(context, appWidgetId));
+				drawWidget(context, appWidgetId, state, performance, stale, sparkline);
+			}
+		}
+		Metrics.DRAW.recordSince(start);
+	}
+
+	/**
+	 * Read the hourly output of the last day from a system's rollups.
+	 *
+	 * @return The sparkline to draw, or null if there's nothing to show.
+	 */
+	private static Sparkline getSparkline(Context context, String installId) {
+		try {
+			RollupSeries series = EnlightenSolarMonitor.readRollups(context, installId, RollupStore.HOURLY,
+					RollupStore.WATTS, System.currentTimeMillis(), SPARKLINE_HOURS);
+			return series.hasData() ? new Sparkline(series) : null;
+		} catch (IOException e) {
+			Log.e(TAG, "Couldn't read the rollups of " + installId, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Get the latest performance of a system. After a restart this is restored
+	 * from the snapshot of last good readings, or failing that the newest
+	 * stored sample, rather than waiting for a fetch.
+	 *
+	 * @param snapshotOnly
+	 *            Don't fall back to the stored samples.
+	 */
+	private static SolarPerformance getPerformance(Context context, String installId, boolean snapshotOnly) {
+		Map<String, SolarPerformance> snapshot = performanceData.get();
+		if (snapshot.containsKey(installId)) {
+			return snapshot.get(installId);
+		}
+
+		SolarPerformance performance = EnlightenSolarMonitor.getSnapshot(context).get(installId);
+		if (performance == null) {
+			if (snapshotOnly) {
+				// Nothing published, so the next full draw still looks there
+				return null;
+			}
+			try {
+				performance = EnlightenSolarMonitor.readLastSample(context, installId);
+			} catch (IOException e) {
+				Log.e(TAG, "Couldn't restore the last sample of " + installId, e);
+			}
 		}
-		
-		for (int appWidgetId : MonitorWidget.appWidgetIds) {
+		publish(Collections.singletonMap(installId, performance), false);
+		return performanceData.get().get(installId);
+	}
+
+	/**
+	 * Swap in a new snapshot of performance data with the given entries added,
+	 * and apply whatever changed to the fleet totals.
+	 *
+	 * @param replace
+	 *            Whether the entries replace ones already present, as a fetch
+	 *            does, or only fill gaps, as a restore from storage does.
+	 */
+	private static void publish(Map<String, SolarPerformance> entries, boolean replace) {
+		while (true) {
+			Map<String, SolarPerformance> current = performanceData.get();
+			Map<String, SolarPerformance> next = new HashMap<String, SolarPerformance>(current);
+			for (Map.Entry<String, SolarPerformance> entry : entries.entrySet()) {
+				if (replace || !next.containsKey(entry.getKey())) {
+					next.put(entry.getKey(), entry.getValue());
+				}
+			}
+			if (performanceData.compareAndSet(current, Collections.unmodifiableMap(next))) {
+				break;
+			}
+		}
+
+		for (Map.Entry<String, SolarPerformance> entry : entries.entrySet()) {
+			if (replace) {
+				fleet.update(entry.getKey(), entry.getValue());
+			} else {
+				fleet.addIfAbsent(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Push a widget's contents to the home screen, unless it's already
+	 * showing exactly that.
+	 */
+	private static void drawWidget(Context context, int appWidgetId, int state, SolarPerformance performance,
+			boolean stale, Sparkline sparkline) {
+		// Watts, today, stat value, stat label, last update; null leaves the layout's text
+		String[] texts;
+		if (performance != null) {
+			String statValue = null;
+			String statLabel = null;
+			switch (state) {
+			case STATE_WEEK:
+				statValue = performance.getWeekWattHours();
+				statLabel = context.getString(R.string.widget_week);
+				break;
+			case STATE_MONTH:
+				statValue = performance.getMonthWattHours();
+				statLabel = context.getString(R.string.widget_month);
+				break;
+			case STATE_LIFETIME:
+				statValue = performance.getLifetimeWattHours();
+				statLabel = context.getString(R.string.widget_lifetime);
+				break;
+			case STATE_FLEET:
+				statValue = performance.getLifetimeWattHours();
+				statLabel = context.getString(R.string.widget_fleet, fleet.size());
+				break;
+			}
+			String lastUpdate = performance.getTimestamp();
+			if (stale) {
+				lastUpdate = context.getString(R.string.widget_stale, lastUpdate);
+			}
+			texts = new String[] { performance.getCurrentWatts(), performance.getTodayWattHours(), statValue,
+					statLabel, lastUpdate };
+		} else {
+			Log.w(TAG, "Performance Data was null");
+			texts = new String[] { context.getString(R.string.widget_error), "", "", "", null };
+		}
+
+		// Held across the push too, so two threads drawing at once can't
+		// leave the older contents on screen
+		synchronized (drawnWidgets) {
+			DrawnWidget drawn = drawnWidgets.get(appWidgetId);
+			if (drawn != null && Arrays.equals(drawn.texts, texts)
+					&& (sparkline == null ? drawn.sparkline == null : sparkline.equals(drawn.sparkline))) {
+				if (Log.isLoggable(TAG, Log.DEBUG)) {
+					Log.d(TAG, "Widget " + appWidgetId + " unchanged");
+				}
+				Metrics.WIDGETS_UNCHANGED.increment();
+				return;
+			}
+			if (drawn == null) {
+				drawn = new DrawnWidget(getConfigPendingIntent(context, appWidgetId));
+				drawnWidgets.put(appWidgetId, drawn);
+			}
+			drawn.texts = texts;
+			drawn.sparkline = sparkline;
+
 			Log.i(TAG, "Updating widget " + appWidgetId);
-			
-			// Build the widget update for today
+
+			// Before API 11 there are no partial updates: the launcher keeps the
+			// last RemoteViews to rebuild the widget from, so it has to be whole
 			RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.enlighten_appwidget);
-			
-			// Set button actions
-			Intent stateChangeIntent = new Intent(context, MonitorWidget.class).setAction(ACTION_WIDGET_STATECHANGE);
-			PendingIntent stateChangePendingIntent = PendingIntent.getBroadcast(context, 0, stateChangeIntent, 0);
-			views.setOnClickPendingIntent(R.id.PanelIcon, stateChangePendingIntent);
-			
-			Intent configIntent = new Intent(context, MonitorConfiguration.class);
-			configIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
-			configIntent.setData(Uri.parse("eSolarMonitor://appWidgetId/"+appWidgetId));
-
-			PendingIntent configPendingIntent = PendingIntent.getActivity(context, 0, configIntent, 0);
-			views.setOnClickPendingIntent(R.id.ConfigIcon, configPendingIntent);
-			
-			// Draw
-			if (performanceData != null) {
-				synchronized (semaphore) {
-					// Build an update that holds the updated widget contents
-					views.setTextViewText(R.id.Watts, performanceData.getCurrentWatts());
-					views.setTextViewText(R.id.TodayWH, performanceData.getTodayWattHours());
-					views.setTextViewText(R.id.LastUpdate, performanceData.getTimestamp());
-	
-					switch (currentState) {
-					case STATE_WEEK:
-						views.setTextViewText(R.id.StatValue, performanceData.getWeekWattHours());
-						views.setTextViewText(R.id.StatLabel, context.getString(R.string.widget_week));
-						break;
-					case STATE_MONTH:
-						views.setTextViewText(R.id.StatValue, performanceData.getMonthWattHours());
-						views.setTextViewText(R.id.StatLabel, context.getString(R.string.widget_month));
-						break;
-					case STATE_LIFETIME:
-						views.setTextViewText(R.id.StatValue, performanceData.getLifetimeWattHours());
-						views.setTextViewText(R.id.StatLabel, context.getString(R.string.widget_lifetime));
-						break;
-					}
+			views.setOnClickPendingIntent(R.id.PanelIcon, getStateChangePendingIntent(context));
+			views.setOnClickPendingIntent(R.id.ConfigIcon, drawn.configPendingIntent);
+
+			int[] fields = { R.id.Watts, R.id.TodayWH, R.id.StatValue, R.id.StatLabel, R.id.LastUpdate };
+			for (int i = 0; i < fields.length; i++) {
+				if (texts[i] != null) {
+					views.setTextViewText(fields[i], texts[i]);
 				}
+			}
+
+			Bitmap bitmap = null;
+			if (sparkline != null) {
+				float density = context.getResources().getDisplayMetrics().density;
+				bitmap = sparkline.draw((int) (SPARKLINE_WIDTH_DIP * density), (int) (SPARKLINE_HEIGHT_DIP * density));
+			}
+			if (bitmap != null) {
+				views.setImageViewBitmap(R.id.Sparkline, bitmap);
+				views.setViewVisibility(R.id.Sparkline, View.VISIBLE);
 			} else {
-				Log.w(TAG, "Performance Data was null");
-				views.setTextViewText(R.id.Watts, context.getString(R.string.widget_error));
-				views.setTextViewText(R.id.TodayWH, "");
-				views.setTextViewText(R.id.StatValue, "");
-				views.setTextViewText(R.id.StatLabel, "");
+				views.setViewVisibility(R.id.Sparkline, View.GONE);
 			}
-	
+
 			// Push update for this widget to the home screen
 			AppWidgetManager manager = AppWidgetManager.getInstance(context);
 			manager.updateAppWidget(appWidgetId, views);
+			Metrics.WIDGETS_DRAWN.increment();
 		}
 	}
 
+	private static synchronized PendingIntent getStateChangePendingIntent(Context context) {
+		if (stateChangePendingIntent == null) {
+			Intent stateChangeIntent = new Intent(context, MonitorWidget.class).setAction(ACTION_WIDGET_STATECHANGE);
+			stateChangePendingIntent = PendingIntent.getBroadcast(context, 0, stateChangeIntent, 0);
+		}
+		return stateChangePendingIntent;
+	}
+
+	private static PendingIntent getConfigPendingIntent(Context context, int appWidgetId) {
+		Intent configIntent = new Intent(context, MonitorConfiguration.class);
+		configIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+		configIntent.setData(Uri.parse("eSolarMonitor://appWidgetId/"+appWidgetId));
+		return PendingIntent.getActivity(context, 0, configIntent, 0);
+	}
+
+	/**
+	 * Polls whichever systems are due on a background thread, then redraws.
+	 * Start requests that arrive while a refresh is still waiting to run are
+	 * merged into it; one arriving mid-refresh queues one more.
+	 */
 	public static class UpdateService extends Service {
+		private static final int MSG_REFRESH = 1;
+
+		private static PerformanceFetcher fetcher = null;
+
+		private HandlerThread thread;
+		private Handler handler;
 
 		public IBinder onBind(Intent arg0) {
 			return null;
 		}
 
+		public void onCreate() {
+			super.onCreate();
+			thread = new HandlerThread("eSolarUpdate", Process.THREAD_PRIORITY_BACKGROUND);
+			thread.start();
+			handler = new Handler(thread.getLooper()) {
+				public void handleMessage(Message msg) {
+					if (isColdStart()) {
+						// Show the last known readings now, not after the fetch
+						drawScreen(UpdateService.this, true);
+					}
+					refresh();
+					drawScreen(UpdateService.this);
+
+					// Only stops if no start has come in since this one
+					stopSelf(msg.arg1);
+				}
+			};
+		}
+
 		public void onStart(Intent intent, int startId) {
+			handler.removeMessages(MSG_REFRESH);
+			handler.sendMessage(handler.obtainMessage(MSG_REFRESH, startId, 0));
+		}
+
+		public void onDestroy() {
+			// HandlerThread.quit() needs API 5
+			thread.getLooper().quit();
+			super.onDestroy();
+		}
+
+		/**
+		 * Fetch every due system and set the alarm for the next. Runs on the
+		 * service's thread, one refresh at a time.
+		 */
+		private void refresh() {
 			try {
-				EnlightenSolarMonitor.prepareUserAgent(this);
-				synchronized (semaphore) {
-					String installId = EnlightenSolarMonitor.getPreference(this, EnlightenSolarMonitor.PREF_INSTALL_ID, "");
-					Log.d(TAG, "Install ID: [" + installId + "]");
-					
-					if (installId != null && installId.length()>0) {
-						
-						// Throttle to 5 minutes
-						long lastRefresh = Long.parseLong(EnlightenSolarMonitor.getPreference(this, EnlightenSolarMonitor.PREF_LAST_REFRESH, "0"));
-						if (performanceData != null && System.currentTimeMillis() < lastRefresh+EnlightenSolarMonitor.MIN_REFRESH_TIME_MS) {
-							Log.i(TAG, "Throttled performance update");
+				Map<String, List<Integer>> widgetsBySystem = getWidgetsBySystem(this, getAppWidgetIds(this));
+				if (Log.isLoggable(TAG, Log.DEBUG)) {
+					Log.d(TAG, "Install IDs: " + widgetsBySystem.keySet());
+				}
+
+				// Each system polls at the fastest rate of the widgets showing it,
+				// and from the gateway given by any of them
+				Map<String, Long> baseRates = new HashMap<String, Long>();
+				for (Map.Entry<String, List<Integer>> system : widgetsBySystem.entrySet()) {
+					long rate = Long.MAX_VALUE;
+					String gateway = "";
+					for (int appWidgetId : system.getValue()) {
+						rate = Math.min(rate, EnlightenSolarMonitor.getRefreshRate(this, appWidgetId));
+						if (gateway.length() == 0) {
+							gateway = EnlightenSolarMonitor.getPreference(this, appWidgetId,
+									EnlightenSolarMonitor.PREF_GATEWAY, "");
+						}
+					}
+					baseRates.put(system.getKey(), rate);
+					EnlightenSolarMonitor.setGateway(this, system.getKey(), gateway);
+					// On screen, so ahead of anything else when requests are rationed
+					EnlightenSolarMonitor.setHighPriority(this, system.getKey(), true);
+				}
+
+				// Each system is fetched once, however many widgets show it
+				RefreshScheduler scheduler = EnlightenSolarMonitor.getScheduler(this);
+				List<String> due = new ArrayList<String>();
+				long now = System.currentTimeMillis();
+				for (String installId : widgetsBySystem.keySet()) {
+					long lastRefresh = EnlightenSolarMonitor.getLastRefresh(this, installId);
+					if (scheduler.isDue(installId, now, baseRates.get(installId), lastRefresh)) {
+						due.add(installId);
+					} else {
+						Log.i(TAG, "Performance update for " + installId + " not yet due");
+					}
+				}
+
+				if (!due.isEmpty()) {
+					Map<String, SolarPerformance> results = getFetcher(this).fetchAll(due);
+					if (Log.isLoggable(TAG, Log.DEBUG)) {
+						Log.d(TAG, "Got Performance Data for " + results.keySet());
+					}
+					publish(results, true);
+					try {
+						EnlightenSolarMonitor.getSnapshot(this).putAll(results);
+					} catch (IOException e) {
+						Log.e(TAG, "Couldn't save the snapshot", e);
+					}
+
+					// Check each new reading against the usual for the time of day
+					AlertEvaluator alerts = EnlightenSolarMonitor.getAlerts(this);
+					for (Map.Entry<String, SolarPerformance> result : results.entrySet()) {
+						if (result.getValue() != null) {
+							alerts.evaluate(result.getKey(), result.getValue());
+						}
+					}
+					try {
+						EnlightenSolarMonitor.saveAlerts(this);
+					} catch (IOException e) {
+						Log.e(TAG, "Couldn't save the alert averages", e);
+					}
+
+					// The radio is awake from fetching, so send samples on now if it's time
+					EnlightenSolarMonitor.uploadSamples(this, widgetsBySystem.keySet());
 
+					now = System.currentTimeMillis();
+					for (String installId : due) {
+						SolarPerformance result = results.get(installId);
+						if (result != null) {
+							scheduler.onSuccess(installId, result, now, baseRates.get(installId));
 						} else {
-							SolarPerformance result = EnlightenSolarMonitor.getPerformanceData(this, installId);
-							
-							if (result != null) {								
-								Log.d(TAG, "Got Performance Data");
-								performanceData = result;
-							}
+							scheduler.onFailure(installId, now, baseRates.get(installId));
 						}
 					}
-				}				
-			} catch (ParseException parseException) {
-				Log.e(TAG, "Couldn't parse JSON response", parseException);
-			} catch (ApiException apiException) {
-				Log.e(TAG, "Couldn't connect to Enlighten service", apiException);
+				}
+
+				// A single alarm covers every system, set for whichever falls due first
+				long wakeup = Long.MAX_VALUE;
+				for (String installId : widgetsBySystem.keySet()) {
+					long lastRefresh = EnlightenSolarMonitor.getLastRefresh(this, installId);
+					wakeup = Math.min(wakeup, scheduler.getNextDue(installId, baseRates.get(installId), lastRefresh));
+				}
+				scheduleWakeup(this, wakeup);
+			} catch (InterruptedException interruptedException) {
+				Log.w(TAG, "Interrupted while fetching performance data", interruptedException);
 			}
-			
-			drawScreen(this);
+		}
+
+		private static synchronized PerformanceFetcher getFetcher(Context context) {
+			if (fetcher == null) {
+				fetcher = new PerformanceFetcher(context, FETCH_CONCURRENCY);
+			}
+			return fetcher;
 		}
 	}
 
 	public void onReceive(Context context, Intent intent) {
-		Log.d(TAG, "onReceive Intent: " + intent);
+		if (Log.isLoggable(TAG, Log.DEBUG)) {
+			Log.d(TAG, "onReceive Intent: " + intent);
+		}
 		if (ACTION_WIDGET_STATECHANGE.equals(intent.getAction())) {
-			currentState = (++currentState) % 3;
+			currentState = (currentState + 1) % STATE_COUNT;
 			drawScreen(context);
 		} else {
 			super.onReceive(context, intent);
@@ -0,0 +1,97 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import net.pugsplace.enlightenmonitor.core.SolarPerformance;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Fetches performance data for many systems at once. Requests share the
+ * pooled client behind {@link EnlightenSolarMonitor} and at most
+ * <code>concurrency</code> of them are in flight at any time.
+ */
+class PerformanceFetcher {
+	/**
+	 * Used for logging messages
+	 */
+	private static final String TAG = "eSolarFetcher";
+
+	private final Context context;
+	private final ExecutorService executor;
+
+	/**
+	 * @param context
+	 *            Used for the URL template and preferences.
+	 * @param concurrency
+	 *            Maximum number of requests in flight at once.
+	 */
+	PerformanceFetcher(Context context, int concurrency) {
+		this.context = context.getApplicationContext();
+		this.executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, TAG + "-" + (++count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		EnlightenSolarMonitor.setMaxConnections(this.context, concurrency);
+	}
+
+	/**
+	 * Fetch every given system, blocking until all requests have completed.
+	 * Failures are logged and left out of the result.
+	 *
+	 * @return The performance of each system that could be fetched, keyed by
+	 *         system ID.
+	 */
+	Map<String, SolarPerformance> fetchAll(Collection<String> systemIds) throws InterruptedException {
+		List<String> ids = new ArrayList<String>(new LinkedHashSet<String>(systemIds));
+		List<Callable<SolarPerformance>> tasks = new ArrayList<Callable<SolarPerformance>>(ids.size());
+		for (final String systemId : ids) {
+			tasks.add(new Callable<SolarPerformance>() {
+				public SolarPerformance call() throws Exception {
+					return EnlightenSolarMonitor.getPerformanceData(context, systemId);
+				}
+			});
+		}
+
+		List<Future<SolarPerformance>> futures = executor.invokeAll(tasks);
+
+		Map<String, SolarPerformance> results = new HashMap<String, SolarPerformance>();
+		for (int i = 0; i < ids.size(); i++) {
+			try {
+				SolarPerformance result = futures.get(i).get();
+				if (result != null) {
+					results.put(ids.get(i), result);
+				}
+			} catch (ExecutionException e) {
+				Log.e(TAG, "Couldn't fetch system " + ids.get(i), e.getCause());
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Stop the worker threads. Requests already running are allowed to finish.
+	 */
+	void shutdown() {
+		executor.shutdown();
+	}
+}
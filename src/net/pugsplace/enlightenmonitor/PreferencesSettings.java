@@ -0,0 +1,60 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.pugsplace.enlightenmonitor.core.CachedSettings;
+import net.pugsplace.enlightenmonitor.core.Metrics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Settings kept in the widget's SharedPreferences. Everything is read into
+ * memory once; changes are written back off the calling thread, each batch
+ * with a single commit. Keys are stored with the prefix the widget has
+ * always used, so existing settings carry over.
+ */
+class PreferencesSettings extends CachedSettings {
+	private static final String PREFS_NAME = "net.pugsplace.enlightenmonitor.EnlightenSolarMonitor";
+	private static final String PREF_PREFIX_KEY = "config_";
+
+	private final SharedPreferences preferences;
+
+	PreferencesSettings(Context context) {
+		// Nothing to gain from waiting: the commit is already off the caller's thread
+		super(0);
+		long start = System.nanoTime();
+		preferences = context.getSharedPreferences(PREFS_NAME, 0);
+
+		Map<String, Object> initial = new HashMap<String, Object>();
+		for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+			if (entry.getKey().startsWith(PREF_PREFIX_KEY)) {
+				initial.put(entry.getKey().substring(PREF_PREFIX_KEY.length()), entry.getValue());
+			}
+		}
+		load(initial);
+		Metrics.SETTINGS_IO.recordSince(start);
+	}
+
+	@Override
+	protected void write(Map<String, Object> changes) throws IOException {
+		SharedPreferences.Editor prefs = preferences.edit();
+		for (Map.Entry<String, Object> entry : changes.entrySet()) {
+			String key = PREF_PREFIX_KEY + entry.getKey();
+			Object value = entry.getValue();
+			if (value == null) {
+				prefs.remove(key);
+			} else if (value instanceof Long) {
+				prefs.putLong(key, ((Long) value).longValue());
+			} else {
+				prefs.putString(key, value.toString());
+			}
+		}
+		if (!prefs.commit()) {
+			throw new IOException("Couldn't commit preferences");
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor;
+
+import java.util.Arrays;
+
+import net.pugsplace.enlightenmonitor.core.RollupSeries;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+
+/**
+ * The small chart of recent output shown on the widget: the averages of a
+ * run of rollup buckets as a filled line. Two sparklines of the same values
+ * are equal, so an unchanged one needn't be sent to the launcher again.
+ */
+final class Sparkline {
+	private static final int LINE_COLOR = 0xFF333333;
+	private static final int FILL_COLOR = 0x40333333;
+
+	/** Bucket averages, oldest first; NaN where there were no samples */
+	private final double[] values;
+	private final double highest;
+
+	Sparkline(RollupSeries series) {
+		values = new double[series.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = series.getAverage(i);
+		}
+		highest = series.getHighest();
+	}
+
+	/**
+	 * Draw the line, scaled to the highest maximum of the buckets. Buckets
+	 * without samples leave a gap.
+	 *
+	 * @return The chart, or null if there's no output to show.
+	 */
+	Bitmap draw(int width, int height) {
+		if (!(highest > 0)) {
+			return null;
+		}
+
+		Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		Canvas canvas = new Canvas(bitmap);
+
+		Paint line = new Paint(Paint.ANTI_ALIAS_FLAG);
+		line.setColor(LINE_COLOR);
+		line.setStyle(Paint.Style.STROKE);
+		line.setStrokeWidth(1.5f);
+
+		Paint fill = new Paint(Paint.ANTI_ALIAS_FLAG);
+		fill.setColor(FILL_COLOR);
+		fill.setStyle(Paint.Style.FILL);
+
+		int size = values.length;
+		float step = size > 1 ? (float) (width - 1) / (size - 1) : 0;
+		float bottom = height - 1;
+		float scale = (float) ((height - 2) / highest);
+
+		Path stroke = new Path();
+		Path area = new Path();
+		float runStart = -1;
+		float lastX = 0;
+		for (int i = 0; i < size; i++) {
+			double value = values[i];
+			if (Double.isNaN(value)) {
+				if (runStart >= 0) {
+					closeArea(area, runStart, lastX, bottom);
+					runStart = -1;
+				}
+				continue;
+			}
+
+			float x = i * step;
+			float y = bottom - (float) (Math.max(0, value) * scale);
+			if (runStart < 0) {
+				runStart = x;
+				stroke.moveTo(x, y);
+				area.moveTo(x, bottom);
+				area.lineTo(x, y);
+			} else {
+				stroke.lineTo(x, y);
+				area.lineTo(x, y);
+			}
+			lastX = x;
+		}
+		if (runStart >= 0) {
+			closeArea(area, runStart, lastX, bottom);
+		}
+
+		canvas.drawPath(area, fill);
+		canvas.drawPath(stroke, line);
+		return bitmap;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Sparkline)) {
+			return false;
+		}
+		Sparkline other = (Sparkline) o;
+		return Double.compare(highest, other.highest) == 0 && Arrays.equals(values, other.values);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(values);
+	}
+
+	private static void closeArea(Path area, float startX, float endX, float bottom) {
+		area.lineTo(endX, bottom);
+		area.lineTo(startX, bottom);
+		area.close();
+	}
+}
@@ -0,0 +1,73 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+/**
+ * A system starting or ceasing to fall short of what it usually produces at
+ * that time of day, as found by an {@link AlertEvaluator}.
+ */
+public class Alert {
+	/** Current output well below the usual for the time of day */
+	public static final int LOW_OUTPUT = 0;
+	/** Energy so far today well behind the usual by this time */
+	public static final int BEHIND_PACE = 1;
+
+	private final String systemId;
+	private final int type;
+	private final boolean raised;
+	private final double actual;
+	private final double expected;
+	private final long timestampMillis;
+
+	Alert(String systemId, int type, boolean raised, double actual, double expected, long timestampMillis) {
+		this.systemId = systemId;
+		this.type = type;
+		this.raised = raised;
+		this.actual = actual;
+		this.expected = expected;
+		this.timestampMillis = timestampMillis;
+	}
+
+	public String getSystemId() {
+		return systemId;
+	}
+
+	/**
+	 * @return {@link #LOW_OUTPUT} or {@link #BEHIND_PACE}.
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * @return True when the condition has just begun, false when it has just
+	 *         ended.
+	 */
+	public boolean isRaised() {
+		return raised;
+	}
+
+	/**
+	 * @return The reading that raised or cleared the alert, in watts for
+	 *         {@link #LOW_OUTPUT} or watt-hours for {@link #BEHIND_PACE}.
+	 */
+	public double getActual() {
+		return actual;
+	}
+
+	/**
+	 * @return What the system usually shows at this time of day, in the same
+	 *         units as {@link #getActual()}.
+	 */
+	public double getExpected() {
+		return expected;
+	}
+
+	public long getTimestampMillis() {
+		return timestampMillis;
+	}
+
+	public String toString() {
+		return systemId + (type == LOW_OUTPUT ? " low output" : " behind pace") + (raised ? " raised" : " cleared")
+				+ ": " + actual + " of " + expected;
+	}
+}
@@ -0,0 +1,347 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Raises an {@link Alert} when a system produces well below what it usually
+ * does at that time of day, or has made well less energy so far today than
+ * it usually has by then.
+ *
+ * Each reading is checked as it arrives against running averages of output
+ * and of energy so far today, kept per half hour of the day, then folded into
+ * them. Nothing is read back from history, and a check is a few array reads
+ * and writes under the system's own lock, so it can run on every poll of a
+ * whole fleet.
+ *
+ * Half hours are counted in UTC, which the sun keeps to better than local
+ * time does across a change to or from daylight saving.
+ */
+public class AlertEvaluator {
+	public static final double DEFAULT_LOW_OUTPUT_RATIO = 0.3;
+	public static final double DEFAULT_PACE_RATIO = 0.5;
+	public static final int DEFAULT_LOW_OUTPUT_READINGS = 2;
+
+	private static final long DAY_MS = 24 * 60 * 60 * 1000;
+	private static final int BUCKETS = 48;
+	private static final long BUCKET_MS = DAY_MS / BUCKETS;
+
+	/** Weight of each new reading in its half hour's averages */
+	private static final float WEIGHT = 0.15f;
+	/**
+	 * Weight of a reading that fell short, so an outage barely moves the
+	 * averages but a lasting change, like a shaded panel, is learned in weeks
+	 */
+	private static final float SHORT_WEIGHT = WEIGHT / 8;
+
+	/** Readings a half hour needs before it's checked against */
+	private static final int MIN_READINGS = 4;
+
+	/** Half hours usually below this fraction of the peak are night or twilight */
+	private static final double DAYLIGHT_FRACTION = 0.15;
+
+	/**
+	 * Pace isn't checked until the day is usually this many hours of peak
+	 * output in, as early on a little cloud is a large fraction
+	 */
+	private static final double PACE_MIN_PEAK_HOURS = 1;
+
+	private static final int VERSION = 1;
+
+	private static final Logger log = Logger.getLogger("eSolarMonitor");
+
+	/**
+	 * Receives alerts as they're raised and cleared. Called on the thread that
+	 * passed in the reading, with no locks held.
+	 */
+	public interface Listener {
+		void onAlert(Alert alert);
+	}
+
+	private final Listener listener;
+	private final ConcurrentHashMap<String, SystemState> systems = new ConcurrentHashMap<String, SystemState>();
+
+	private volatile double lowOutputRatio = DEFAULT_LOW_OUTPUT_RATIO;
+	private volatile double paceRatio = DEFAULT_PACE_RATIO;
+	private volatile int lowOutputReadings = DEFAULT_LOW_OUTPUT_READINGS;
+
+	/**
+	 * Running averages for one system, indexed by half hour of the day.
+	 */
+	private static class SystemState {
+		final float[] watts = new float[BUCKETS];
+		final float[] todayWattHours = new float[BUCKETS];
+		final byte[] readings = new byte[BUCKETS];
+		/** Highest of the output averages, and the half hour it's in */
+		float peak = 0;
+		int peakBucket = 0;
+
+		long lastTimestamp = 0;
+		int lowCount = 0;
+		boolean lowOutput = false;
+		boolean behindPace = false;
+	}
+
+	public AlertEvaluator(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @param ratio
+	 *            Output below this fraction of the usual counts as low.
+	 */
+	public void setLowOutputRatio(double ratio) {
+		this.lowOutputRatio = ratio;
+	}
+
+	/**
+	 * @param readings
+	 *            Low readings in a row before an alert is raised, so a
+	 *            passing cloud doesn't raise one.
+	 */
+	public void setLowOutputReadings(int readings) {
+		this.lowOutputReadings = Math.max(1, readings);
+	}
+
+	/**
+	 * @param ratio
+	 *            Energy today below this fraction of the usual by now counts
+	 *            as behind.
+	 */
+	public void setPaceRatio(double ratio) {
+		this.paceRatio = ratio;
+	}
+
+	/**
+	 * Check a new reading of a system, raising or clearing its alerts, then
+	 * learn from it. Readings no newer than the last one seen are ignored.
+	 */
+	public void evaluate(String systemId, SolarPerformance performance) {
+		long timestamp = performance.getTimestampMillis();
+		if (timestamp <= 0) {
+			return;
+		}
+		SystemState state = getState(systemId);
+		double watts = performance.getRawCurrentWatts();
+		double today = performance.getRawTodayWattHours();
+		int bucket = (int) ((timestamp % DAY_MS) / BUCKET_MS);
+
+		Alert lowAlert = null;
+		Alert paceAlert = null;
+		synchronized (state) {
+			if (timestamp <= state.lastTimestamp) {
+				return;
+			}
+			state.lastTimestamp = timestamp;
+
+			double expectedWatts = state.watts[bucket];
+			double expectedToday = state.todayWattHours[bucket];
+			boolean daylight = (state.readings[bucket] & 0xff) >= MIN_READINGS && expectedWatts > 0
+					&& expectedWatts >= DAYLIGHT_FRACTION * state.peak;
+
+			// Nothing is raised or cleared at night, so a dead system is
+			// reported once rather than every morning
+			boolean low = false;
+			if (daylight) {
+				low = watts < lowOutputRatio * expectedWatts;
+				if (!low) {
+					state.lowCount = 0;
+					if (state.lowOutput) {
+						state.lowOutput = false;
+						lowAlert = new Alert(systemId, Alert.LOW_OUTPUT, false, watts, expectedWatts, timestamp);
+					}
+				} else if (++state.lowCount >= lowOutputReadings && !state.lowOutput) {
+					state.lowOutput = true;
+					lowAlert = new Alert(systemId, Alert.LOW_OUTPUT, true, watts, expectedWatts, timestamp);
+				}
+
+				boolean behind = today < paceRatio * expectedToday;
+				if (behind && expectedToday < PACE_MIN_PEAK_HOURS * state.peak) {
+					behind = state.behindPace;
+				}
+				if (behind != state.behindPace) {
+					state.behindPace = behind;
+					paceAlert = new Alert(systemId, Alert.BEHIND_PACE, behind, today, expectedToday, timestamp);
+				}
+			}
+
+			learn(state, bucket, watts, today, low ? SHORT_WEIGHT : WEIGHT);
+		}
+
+		if (lowAlert != null) {
+			fire(lowAlert);
+		}
+		if (paceAlert != null) {
+			fire(paceAlert);
+		}
+	}
+
+	/**
+	 * @return Whether the system has an alert raised.
+	 */
+	public boolean isAlerting(String systemId) {
+		SystemState state = systems.get(systemId);
+		if (state == null) {
+			return false;
+		}
+		synchronized (state) {
+			return state.lowOutput || state.behindPace;
+		}
+	}
+
+	/**
+	 * Forget everything learned about a system.
+	 */
+	public void remove(String systemId) {
+		systems.remove(systemId);
+	}
+
+	private SystemState getState(String systemId) {
+		SystemState state = systems.get(systemId);
+		if (state == null) {
+			SystemState created = new SystemState();
+			state = systems.putIfAbsent(systemId, created);
+			if (state == null) {
+				state = created;
+			}
+		}
+		return state;
+	}
+
+	private static void learn(SystemState state, int bucket, double watts, double today, float weight) {
+		int readings = state.readings[bucket] & 0xff;
+		if (readings == 0) {
+			state.watts[bucket] = (float) watts;
+			state.todayWattHours[bucket] = (float) today;
+		} else {
+			// Until checked against, an even average of what's been seen; after that a moving one
+			float w = readings < MIN_READINGS ? 1f / (readings + 1) : weight;
+			state.watts[bucket] += w * ((float) watts - state.watts[bucket]);
+			state.todayWattHours[bucket] += w * ((float) today - state.todayWattHours[bucket]);
+		}
+		if (readings < 255) {
+			state.readings[bucket] = (byte) (readings + 1);
+		}
+
+		if (state.watts[bucket] >= state.peak) {
+			state.peak = state.watts[bucket];
+			state.peakBucket = bucket;
+		} else if (bucket == state.peakBucket) {
+			findPeak(state);
+		}
+	}
+
+	private static void findPeak(SystemState state) {
+		state.peak = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			if (state.watts[i] > state.peak) {
+				state.peak = state.watts[i];
+				state.peakBucket = i;
+			}
+		}
+	}
+
+	private void fire(Alert alert) {
+		Metrics.ALERTS.increment();
+		try {
+			listener.onAlert(alert);
+		} catch (RuntimeException e) {
+			log.log(Level.WARNING, "Alert listener failed for " + alert.getSystemId(), e);
+		}
+	}
+
+	/**
+	 * Add what was learned in an earlier run, as saved by {@link #save(File)}.
+	 * A missing or unreadable file leaves the evaluator to learn from scratch.
+	 */
+	public void load(File file) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != VERSION || in.readInt() != BUCKETS) {
+					log.warning("Ignoring alert averages of an unknown version");
+					return;
+				}
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					String systemId = in.readUTF();
+					SystemState state = new SystemState();
+					state.lastTimestamp = in.readLong();
+					int flags = in.readByte();
+					state.lowOutput = (flags & 1) != 0;
+					state.behindPace = (flags & 2) != 0;
+					for (int b = 0; b < BUCKETS; b++) {
+						state.watts[b] = in.readFloat();
+						state.todayWattHours[b] = in.readFloat();
+						state.readings[b] = in.readByte();
+					}
+					findPeak(state);
+					systems.put(systemId, state);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (FileNotFoundException e) {
+			// Nothing saved yet
+		} catch (EOFException e) {
+			log.warning("Alert averages were cut short; keeping what was read");
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't read alert averages", e);
+		}
+	}
+
+	/**
+	 * Write what has been learned of every system, so a restart doesn't start
+	 * over. Written to a new file and renamed over the old.
+	 */
+	public void save(File file) throws IOException {
+		File parent = file.getParentFile();
+		if (parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(VERSION);
+			out.writeInt(BUCKETS);
+			// Systems added meanwhile are left for the next save
+			List<Map.Entry<String, SystemState>> entries = new ArrayList<Map.Entry<String, SystemState>>(systems
+					.entrySet());
+			out.writeInt(entries.size());
+			for (Map.Entry<String, SystemState> entry : entries) {
+				SystemState state = entry.getValue();
+				out.writeUTF(entry.getKey());
+				synchronized (state) {
+					out.writeLong(state.lastTimestamp);
+					out.writeByte((state.lowOutput ? 1 : 0) | (state.behindPace ? 2 : 0));
+					for (int b = 0; b < BUCKETS; b++) {
+						out.writeFloat(state.watts[b]);
+						out.writeFloat(state.todayWattHours[b]);
+						out.writeByte(state.readings[b]);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+			throw new IOException("Couldn't replace " + file);
+		}
+	}
+}
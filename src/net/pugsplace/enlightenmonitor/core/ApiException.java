@@ -0,0 +1,12 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+public class ApiException extends Exception {
+	public ApiException(String text, Throwable cause) {
+		super(text, cause);
+	}
+
+	public ApiException(String text) {
+		super(text);
+	}
+}
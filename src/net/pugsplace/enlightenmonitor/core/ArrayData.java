@@ -0,0 +1,230 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+/**
+ * Everything in one array viewer response: every dataset's label, units and
+ * primary stat, and its series of data points. Stored by column in a few
+ * primitive arrays rather than as an object per dataset and point, so a
+ * system's data costs a few bytes per point and thousands of systems can be
+ * held at once.
+ *
+ * Points of dataset <code>i</code> are indexed from 0 to
+ * {@link #getPointCount(int)}; their times are kept to the second and their
+ * values in watts or watt-hours, as floats. Instances are immutable.
+ */
+public class ArrayData {
+	private final String[] labels;
+	private final String[] units;
+
+	/** Primary stat of each dataset in watts or watt-hours; NaN if it had none */
+	private final double[] primaryStats;
+
+	/** Points of dataset i are offsets[i] up to offsets[i + 1] */
+	private final int[] offsets;
+
+	/** Every point's time, in seconds after {@link #baseTime} */
+	private final long baseTime;
+	private final int[] seconds;
+	private final float[] values;
+
+	private ArrayData(String[] labels, String[] units, double[] primaryStats, int[] offsets, long baseTime,
+			int[] seconds, float[] values) {
+		this.labels = labels;
+		this.units = units;
+		this.primaryStats = primaryStats;
+		this.offsets = offsets;
+		this.baseTime = baseTime;
+		this.seconds = seconds;
+		this.values = values;
+	}
+
+	public int getDatasetCount() {
+		return labels.length;
+	}
+
+	/**
+	 * @return The dataset's label, or null if it had none.
+	 */
+	public String getLabel(int dataset) {
+		return labels[dataset];
+	}
+
+	/**
+	 * @return The units the dataset was reported in, or null if it gave none.
+	 */
+	public String getUnits(int dataset) {
+		return units[dataset];
+	}
+
+	/**
+	 * @return The dataset's primary stat in watts or watt-hours, or NaN.
+	 */
+	public double getPrimaryStat(int dataset) {
+		return primaryStats[dataset];
+	}
+
+	public int getPointCount(int dataset) {
+		return offsets[dataset + 1] - offsets[dataset];
+	}
+
+	/**
+	 * @return The time of a point, in milliseconds since the epoch.
+	 */
+	public long getTime(int dataset, int point) {
+		return baseTime + seconds[offsets[dataset] + point] * 1000L;
+	}
+
+	/**
+	 * @return The value of a point, in watts or watt-hours.
+	 */
+	public double getValue(int dataset, int point) {
+		return values[offsets[dataset] + point];
+	}
+
+	/**
+	 * @return Roughly how much memory this takes, in bytes.
+	 */
+	public int getSizeInBytes() {
+		int size = 64 + labels.length * (2 * 4 + 8 + 4) + offsets.length * 4 + seconds.length * (4 + 4);
+		for (int i = 0; i < labels.length; i++) {
+			size += labels[i] == null ? 0 : 40 + 2 * labels[i].length();
+			size += units[i] == null ? 0 : 40 + 2 * units[i].length();
+		}
+		return size;
+	}
+
+	/**
+	 * @return The widget's five primary stats, without a timestamp.
+	 * @throws ParseException
+	 *             If any of the first five datasets had no primary stat.
+	 */
+	public SolarPerformance toPerformance() throws ParseException {
+		if (primaryStats.length < PerformanceParser.DATASET_COUNT) {
+			throw new ParseException("Expected " + PerformanceParser.DATASET_COUNT + " datasets but found "
+					+ primaryStats.length);
+		}
+		for (int i = 0; i < PerformanceParser.DATASET_COUNT; i++) {
+			if (Double.isNaN(primaryStats[i])) {
+				throw new ParseException("Dataset " + i + " has no primary_stat");
+			}
+		}
+
+		return new SolarPerformance(0, primaryStats[0], primaryStats[1], primaryStats[2], primaryStats[3],
+				primaryStats[4]);
+	}
+
+	/**
+	 * Collects datasets and points as they are parsed, growing its arrays as
+	 * needed, then trims them into an {@link ArrayData}.
+	 */
+	static class Builder {
+		private String[] labels = new String[8];
+		private String[] units = new String[8];
+		private double[] primaryStats = new double[8];
+		private int[] offsets = new int[9];
+		private int datasets = 0;
+
+		private long[] times = new long[256];
+		private double[] rawValues = new double[256];
+		private int points = 0;
+
+		/** Start the next dataset; points added from now on belong to it */
+		void startDataset() {
+			if (datasets + 1 >= offsets.length) {
+				int capacity = labels.length * 2;
+				labels = grow(labels, capacity);
+				units = grow(units, capacity);
+				primaryStats = grow(primaryStats, capacity);
+				offsets = grow(offsets, capacity + 1);
+			}
+			labels[datasets] = null;
+			units[datasets] = null;
+			primaryStats[datasets] = Double.NaN;
+			offsets[datasets] = points;
+			datasets++;
+		}
+
+		void setLabel(String label) {
+			labels[datasets - 1] = label;
+		}
+
+		void setUnits(String unit) {
+			units[datasets - 1] = unit;
+		}
+
+		void setPrimaryStat(double watts) {
+			primaryStats[datasets - 1] = watts;
+		}
+
+		void addPoint(long timeMillis, double value) {
+			if (points == times.length) {
+				times = grow(times, points * 2);
+				rawValues = grow(rawValues, points * 2);
+			}
+			times[points] = timeMillis;
+			rawValues[points] = value;
+			points++;
+		}
+
+		/**
+		 * Finish the current dataset, converting its points from the units it
+		 * gave to watts or watt-hours.
+		 */
+		void endDataset() {
+			String unit = units[datasets - 1];
+			double factor = unit == null ? -1 : PerformanceParser.getWatts(1, unit);
+			if (factor > 0 && factor != 1) {
+				for (int i = offsets[datasets - 1]; i < points; i++) {
+					rawValues[i] *= factor;
+				}
+			}
+		}
+
+		ArrayData build() {
+			offsets[datasets] = points;
+
+			long baseTime = Long.MAX_VALUE;
+			for (int i = 0; i < points; i++) {
+				baseTime = Math.min(baseTime, times[i]);
+			}
+			if (points == 0) {
+				baseTime = 0;
+			}
+
+			int[] seconds = new int[points];
+			float[] values = new float[points];
+			for (int i = 0; i < points; i++) {
+				seconds[i] = (int) ((times[i] - baseTime) / 1000);
+				values[i] = (float) rawValues[i];
+			}
+
+			return new ArrayData(grow(labels, datasets), grow(units, datasets), grow(primaryStats, datasets), grow(
+					offsets, datasets + 1), baseTime, seconds, values);
+		}
+
+		// Arrays.copyOf needs API 9
+		private static String[] grow(String[] array, int length) {
+			String[] copy = new String[length];
+			System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+			return copy;
+		}
+
+		private static double[] grow(double[] array, int length) {
+			double[] copy = new double[length];
+			System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+			return copy;
+		}
+
+		private static int[] grow(int[] array, int length) {
+			int[] copy = new int[length];
+			System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+			return copy;
+		}
+
+		private static long[] grow(long[] array, int length) {
+			long[] copy = new long[length];
+			System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+			return copy;
+		}
+	}
+}
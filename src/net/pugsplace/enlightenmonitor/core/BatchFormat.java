@@ -0,0 +1,216 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The compact form samples are uploaded in. A batch is gzipped as a whole;
+ * inside, after a header naming the uploader and the batch, each system's
+ * samples follow its ID as deltas from the sample before: the timestamp in
+ * milliseconds, then each value in milliwatts or milliwatt-hours. Deltas
+ * are zigzag varints, so a reading every few minutes with small changes
+ * takes a dozen bytes or so before compression, against 48 as stored.
+ * Samples go in and come out as {@link SampleBatch}es, the milliunits
+ * carried through unchanged.
+ *
+ * <pre>
+ * "ESB1"  uploader ID (UTF)  batch sequence (varint)  created (varint ms)
+ * system count (varint)
+ *   system ID (UTF)  sample count (varint)
+ *     timestamp delta, then five value deltas (zigzag varints)
+ * </pre>
+ */
+public final class BatchFormat {
+	public static final String CONTENT_TYPE = "application/x-esolar-batch";
+
+	private static final int MAGIC = ('E' << 24) | ('S' << 16) | ('B' << 8) | '1';
+
+	/** Samples to make room for up front; a batch's own count isn't trusted */
+	private static final int INITIAL_CAPACITY = 256;
+
+	private BatchFormat() {
+	}
+
+	/**
+	 * A decoded batch.
+	 */
+	public static class Batch {
+		public final String uploaderId;
+		public final long sequence;
+		public final long createdMillis;
+		/** Samples of each system, oldest first */
+		public final Map<String, SampleBatch> samples;
+
+		Batch(String uploaderId, long sequence, long createdMillis, Map<String, SampleBatch> samples) {
+			this.uploaderId = uploaderId;
+			this.sequence = sequence;
+			this.createdMillis = createdMillis;
+			this.samples = samples;
+		}
+
+		/**
+		 * @return How many samples the batch holds across every system.
+		 */
+		public int getSampleCount() {
+			int count = 0;
+			for (SampleBatch system : samples.values()) {
+				count += system.size();
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Encode and compress a batch.
+	 *
+	 * @param samples
+	 *            Samples of each system, each system's in time order.
+	 */
+	public static byte[] encode(String uploaderId, long sequence, long createdMillis,
+			Map<String, SampleBatch> samples) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+		DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+		out.writeInt(MAGIC);
+		out.writeUTF(uploaderId);
+		writeVarint(out, sequence);
+		writeVarint(out, createdMillis);
+		writeVarint(out, samples.size());
+
+		for (Map.Entry<String, SampleBatch> system : samples.entrySet()) {
+			out.writeUTF(system.getKey());
+			SampleBatch batch = system.getValue();
+			int count = batch.size();
+			writeVarint(out, count);
+
+			long timestamp = 0;
+			long watts = 0;
+			long today = 0;
+			long week = 0;
+			long month = 0;
+			long lifetime = 0;
+			for (int i = 0; i < count; i++) {
+				timestamp = writeDelta(out, batch.getTimestampMillis(i), timestamp);
+				watts = writeDelta(out, batch.getMilliwatts(i), watts);
+				today = writeDelta(out, batch.getTodayMilliwattHours(i), today);
+				week = writeDelta(out, batch.getWeekMilliwattHours(i), week);
+				month = writeDelta(out, batch.getMonthMilliwattHours(i), month);
+				lifetime = writeDelta(out, batch.getLifetimeMilliwattHours(i), lifetime);
+			}
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decompress and decode a batch.
+	 *
+	 * @throws IOException
+	 *             If it isn't a batch, or is cut short.
+	 */
+	public static Batch decode(byte[] encoded) throws IOException {
+		return decode(new ByteArrayInputStream(encoded));
+	}
+
+	public static Batch decode(InputStream encoded) throws IOException {
+		DataInputStream in = new DataInputStream(new GZIPInputStream(encoded));
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a sample batch");
+		}
+		String uploaderId = in.readUTF();
+		long sequence = readVarint(in);
+		long created = readVarint(in);
+		int systems = readCount(in);
+
+		Map<String, SampleBatch> samples = new LinkedHashMap<String, SampleBatch>();
+		for (int s = 0; s < systems; s++) {
+			String systemId = in.readUTF();
+			int count = readCount(in);
+			SampleBatch batch = new SampleBatch(Math.min(count, INITIAL_CAPACITY));
+
+			long timestamp = 0;
+			long watts = 0;
+			long today = 0;
+			long week = 0;
+			long month = 0;
+			long lifetime = 0;
+			for (int i = 0; i < count; i++) {
+				timestamp += readSigned(in);
+				watts += readSigned(in);
+				today += readSigned(in);
+				week += readSigned(in);
+				month += readSigned(in);
+				lifetime += readSigned(in);
+
+				batch.add(timestamp, watts, today, week, month, lifetime, Sample.getValidity(watts, today, week, month,
+						lifetime));
+			}
+			samples.put(systemId, batch);
+		}
+		return new Batch(uploaderId, sequence, created, samples);
+	}
+
+	/**
+	 * Write a value as a delta from the last.
+	 *
+	 * @return The value, to take the next delta from.
+	 */
+	private static long writeDelta(OutputStream out, long value, long previous) throws IOException {
+		writeSigned(out, value - previous);
+		return value;
+	}
+
+	private static void writeSigned(OutputStream out, long value) throws IOException {
+		writeVarint(out, (value << 1) ^ (value >> 63));
+	}
+
+	private static void writeVarint(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long readSigned(InputStream in) throws IOException {
+		long value = readVarint(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Read a count of systems or samples. Anything past an int is corrupt;
+	 * a large count that fits is left to run out of input.
+	 */
+	private static int readCount(InputStream in) throws IOException {
+		long count = readVarint(in);
+		if (count < 0 || count > Integer.MAX_VALUE) {
+			throw new IOException("Bad count in batch: " + count);
+		}
+		return (int) count;
+	}
+
+	private static long readVarint(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Batch cut short");
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint in batch");
+	}
+}
@@ -0,0 +1,211 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link Settings} served from memory and written back in batches. Values
+ * keep their type once read, so reading a long doesn't parse a string each
+ * time. Writes change memory at once and are queued; a background thread
+ * writes everything queued in one go shortly afterwards, so callers never
+ * wait on the disk.
+ *
+ * Subclasses load the initial values and write out the batches.
+ */
+public abstract class CachedSettings implements Settings {
+	private static final Logger log = Logger.getLogger("eSolarMonitor");
+
+	private final ConcurrentHashMap<String, Object> values = new ConcurrentHashMap<String, Object>();
+
+	/** Changes not yet written; a null value marks a removed key */
+	private Map<String, Object> pending = new HashMap<String, Object>();
+	private boolean flushScheduled = false;
+
+	/** Held while writing, so batches reach the disk in the order they were taken */
+	private final Object writeLock = new Object();
+
+	private final long flushDelayMs;
+	private final ScheduledExecutorService writer;
+
+	/**
+	 * @param flushDelayMs
+	 *            How long writes are left to gather before being written.
+	 */
+	protected CachedSettings(long flushDelayMs) {
+		this.flushDelayMs = flushDelayMs;
+		this.writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "eSolarSettings");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Set the values the store starts with, without writing them back.
+	 * Values should be Strings or Longs.
+	 */
+	protected void load(Map<String, ?> initial) {
+		for (Map.Entry<String, ?> entry : initial.entrySet()) {
+			if (entry.getValue() != null) {
+				values.put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Write a batch of changes. Called on the writer thread, one batch at a
+	 * time and in order.
+	 *
+	 * @param changes
+	 *            New values by key, each a String or a Long, or null where
+	 *            the key was removed.
+	 */
+	protected abstract void write(Map<String, Object> changes) throws IOException;
+
+	/**
+	 * @return Every current value, including those not yet written.
+	 */
+	protected Map<String, Object> getAll() {
+		return new HashMap<String, Object>(values);
+	}
+
+	public String getString(String key, String defaultValue) {
+		Object value = values.get(key);
+		return value == null ? defaultValue : value.toString();
+	}
+
+	public void putString(String key, String value) {
+		put(key, value);
+	}
+
+	public long getLong(String key, long defaultValue) {
+		Object value = values.get(key);
+		if (value instanceof Long) {
+			return ((Long) value).longValue();
+		}
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		if (value != null) {
+			// Stored as text by an older version: parse it once and keep the number
+			try {
+				Long parsed = Long.valueOf(value.toString());
+				values.replace(key, value, parsed);
+				return parsed.longValue();
+			} catch (NumberFormatException e) {
+				log.warning("Setting " + key + " isn't a number: " + value);
+			}
+		}
+		return defaultValue;
+	}
+
+	public void putLong(String key, long value) {
+		put(key, Long.valueOf(value));
+	}
+
+	public void remove(String key) {
+		put(key, null);
+	}
+
+	/**
+	 * Write every queued change now, blocking until done. Use before the
+	 * process exits.
+	 *
+	 * @throws IOException
+	 *             If the changes couldn't be written; they stay queued for
+	 *             the next try.
+	 */
+	public void flush() throws IOException {
+		synchronized (writeLock) {
+			Map<String, Object> changes;
+			synchronized (this) {
+				if (pending.isEmpty()) {
+					return;
+				}
+				changes = pending;
+				pending = new HashMap<String, Object>();
+			}
+
+			long start = System.nanoTime();
+			try {
+				write(changes);
+				Metrics.SETTINGS_IO.recordSince(start);
+			} catch (IOException e) {
+				requeue(changes);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Stop the writer thread after writing everything queued.
+	 */
+	public void close() {
+		writer.shutdown();
+		tryFlush();
+	}
+
+	private void put(String key, Object value) {
+		synchronized (this) {
+			Object old = value == null ? values.remove(key) : values.put(key, value);
+			if (value == null ? old == null : value.equals(old)) {
+				return;
+			}
+
+			pending.put(key, value);
+			if (flushScheduled) {
+				return;
+			}
+			flushScheduled = true;
+		}
+
+		try {
+			writer.schedule(new Runnable() {
+				public void run() {
+					synchronized (CachedSettings.this) {
+						flushScheduled = false;
+					}
+					tryFlush();
+				}
+			}, flushDelayMs, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Closed, so there's no writer thread left to do it
+			synchronized (this) {
+				flushScheduled = false;
+			}
+			tryFlush();
+		}
+	}
+
+	private void tryFlush() {
+		try {
+			flush();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't save settings, will retry with the next change", e);
+		}
+	}
+
+	/**
+	 * Put back the changes of a failed write, except where a key has been
+	 * changed again since.
+	 */
+	private synchronized void requeue(Map<String, Object> changes) {
+		for (Map.Entry<String, Object> entry : changes.entrySet()) {
+			if (!pending.containsKey(entry.getKey())) {
+				pending.put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+}
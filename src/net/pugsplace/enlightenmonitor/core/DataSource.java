@@ -0,0 +1,19 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+/**
+ * Somewhere a system's performance can be read from: the Enlighten cloud,
+ * the system's own gateway on the local network, or several of these in
+ * turn. {@link SolarMonitor} picks one per system.
+ *
+ * Implementations must be safe to use from several threads at once.
+ */
+public interface DataSource {
+	/**
+	 * Read a system's current performance. This call blocks until the read
+	 * has completed.
+	 *
+	 * @return The reading, timestamped with when it was read.
+	 */
+	SolarPerformance getPerformance(String systemId) throws ApiException, ParseException;
+}
@@ -0,0 +1,619 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+/**
+ * HTTP access to the Enlighten API. One client is meant to be shared by every
+ * request in the process: its connections are pooled and kept alive, any
+ * number of threads may use it at once, and it remembers the validators of
+ * each system's last response so the next poll can be conditional.
+ *
+ * Each request's connect, wait for headers, body and parse are timed into
+ * {@link Metrics}.
+ *
+ * This class has no Android dependencies.
+ */
+public class EnlightenClient {
+	/** Default number of pooled connections kept open to the API host */
+	public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+	/** Default limit on connections open at once, across all hosts */
+	public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 32;
+
+	private static final int CONNECTION_TIMEOUT_MS = 20 * 1000;
+
+	/**
+	 * {@link StatusLine} HTTP status code when no server error has occurred.
+	 */
+	private static final int HTTP_STATUS_OK = 200;
+
+	/**
+	 * {@link StatusLine} HTTP status code when a conditional request found
+	 * nothing new.
+	 */
+	private static final int HTTP_STATUS_NOT_MODIFIED = 304;
+
+	private static final int HTTP_STATUS_TOO_MANY_REQUESTS = 429;
+
+	/** Back-off after a 429 that doesn't say how long to wait */
+	private static final long DEFAULT_RETRY_AFTER_MS = 60 * 1000;
+
+	private static final Logger log = Logger.getLogger("eSolarMonitor");
+
+	/**
+	 * Time the calling thread has spent connecting during its current
+	 * request. Connections are made on the thread executing the request, so
+	 * this is how the wait for headers is told apart from the connect.
+	 */
+	private static final ThreadLocal<long[]> connectNanos = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	private final String userAgent;
+
+	/** Rate limits requests are held to, if any */
+	private volatile RequestAdmission admission = null;
+	private final HttpClient client;
+	private final int maxTotalConnections;
+
+	/** Per-route connection limit of {@link #client}, adjustable at runtime */
+	private final ConnPerRouteBean connectionsPerRoute = new ConnPerRouteBean(DEFAULT_MAX_CONNECTIONS);
+
+	/** Validators and results of the last full response, keyed by system ID */
+	private final Map<String, CachedResponse> responseCache = new HashMap<String, CachedResponse>();
+
+	/**
+	 * @param userAgent
+	 *            User-Agent header sent with every request.
+	 */
+	public EnlightenClient(String userAgent) {
+		this(userAgent, DEFAULT_MAX_TOTAL_CONNECTIONS);
+	}
+
+	/**
+	 * @param userAgent
+	 *            User-Agent header sent with every request.
+	 * @param maxTotalConnections
+	 *            Most connections that may ever be open at once.
+	 */
+	public EnlightenClient(String userAgent, int maxTotalConnections) {
+		this.userAgent = userAgent;
+		this.maxTotalConnections = Math.max(1, maxTotalConnections);
+
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT_MS);
+		HttpConnectionParams.setSoTimeout(params, CONNECTION_TIMEOUT_MS);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, connectionsPerRoute);
+		ConnManagerParams.setMaxTotalConnections(params, this.maxTotalConnections);
+
+		SchemeRegistry schemes = new SchemeRegistry();
+		schemes.register(new Scheme("http", new TimedSocketFactory(PlainSocketFactory.getSocketFactory()), 80));
+		schemes.register(new Scheme("https", new TimedLayeredSocketFactory(SSLSocketFactory.getSocketFactory()), 443));
+
+		ClientConnectionManager manager = new ThreadSafeClientConnManager(params, schemes);
+		client = new DefaultHttpClient(manager, params);
+	}
+
+	/**
+	 * Set how many connections may be open at once to any one host. Callers
+	 * fetching in parallel should raise this to match their concurrency.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		connectionsPerRoute.setDefaultMaxPerRoute(Math.max(1, Math.min(maxConnections, maxTotalConnections)));
+	}
+
+	/**
+	 * Hold requests back to stay within rate limits. Requests for a system
+	 * use its ID as the key.
+	 *
+	 * @param admission
+	 *            The limits to keep to, or null for none.
+	 */
+	public void setAdmission(RequestAdmission admission) {
+		this.admission = admission;
+	}
+
+	/**
+	 * @return The limits requests are held to, or null if none.
+	 */
+	public RequestAdmission getAdmission() {
+		return admission;
+	}
+
+	public String getUserAgent() {
+		return userAgent;
+	}
+
+	/**
+	 * Set how long to wait to connect, and then for each read, before giving
+	 * up on a request.
+	 */
+	public void setTimeout(int timeoutMs) {
+		HttpConnectionParams.setConnectionTimeout(client.getParams(), timeoutMs);
+		HttpConnectionParams.setSoTimeout(client.getParams(), timeoutMs);
+	}
+
+	/**
+	 * Close every pooled connection. The client can't be used afterwards.
+	 */
+	public void shutdown() {
+		client.getConnectionManager().shutdown();
+	}
+
+	/**
+	 * Fetch and parse the performance of one system.
+	 *
+	 * @param url
+	 *            The system's array viewer performance URL.
+	 * @param systemId
+	 *            Key under which the response validators are remembered.
+	 * @return The performance, timestamped now.
+	 */
+	public SolarPerformance getPerformance(String url, String systemId) throws ApiException, ParseException {
+		CachedResponse cached;
+		synchronized (responseCache) {
+			cached = responseCache.get(systemId);
+		}
+
+		HttpResponse response = getUrlResponse(url, cached, systemId);
+		String etag = getHeader(response, "ETag");
+		String lastModified = getHeader(response, "Last-Modified");
+
+		SolarPerformance perform;
+		if (cached != null && isUnchanged(response, etag, lastModified, cached)) {
+			// Nothing new on the server, so skip the body and the parse
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Performance unchanged for " + systemId);
+			}
+			Metrics.NOT_MODIFIED.increment();
+			consume(response);
+			perform = cached.performance;
+		} else {
+			// Pull the primary stats straight off the wire rather than buffering the body
+			TimedInputStream content = new TimedInputStream(getContent(response));
+			long start = System.nanoTime();
+			try {
+				perform = new PerformanceParser(content).parse();
+			} catch (ParseException e) {
+				Metrics.PARSE_ERRORS.increment();
+				throw e;
+			} finally {
+				close(content);
+			}
+			recordBody(content, start);
+
+			if (etag != null || lastModified != null) {
+				synchronized (responseCache) {
+					responseCache.put(systemId, new CachedResponse(etag, lastModified, perform, null));
+				}
+			}
+		}
+
+		return perform.withTimestamp(System.currentTimeMillis());
+	}
+
+	/**
+	 * Fetch and parse everything the array viewer has on one system: each
+	 * dataset and its data points as well as the primary stats.
+	 *
+	 * @param url
+	 *            The system's array viewer performance URL.
+	 * @param systemId
+	 *            Key under which the response validators are remembered.
+	 */
+	public ArrayData getArrayData(String url, String systemId) throws ApiException, ParseException {
+		CachedResponse cached;
+		synchronized (responseCache) {
+			cached = responseCache.get(systemId);
+		}
+		if (cached != null && cached.data == null) {
+			// Only the primary stats were kept last time, so a 304 would leave us short
+			cached = null;
+		}
+
+		HttpResponse response = getUrlResponse(url, cached, systemId);
+		String etag = getHeader(response, "ETag");
+		String lastModified = getHeader(response, "Last-Modified");
+
+		if (cached != null && isUnchanged(response, etag, lastModified, cached)) {
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Array data unchanged for " + systemId);
+			}
+			Metrics.NOT_MODIFIED.increment();
+			consume(response);
+			return cached.data;
+		}
+
+		ArrayData data;
+		TimedInputStream content = new TimedInputStream(getContent(response));
+		long start = System.nanoTime();
+		try {
+			data = new PerformanceParser(content).parseArrayData();
+		} catch (ParseException e) {
+			Metrics.PARSE_ERRORS.increment();
+			throw e;
+		} finally {
+			close(content);
+		}
+		recordBody(content, start);
+
+		if (etag != null || lastModified != null) {
+			SolarPerformance perform = null;
+			try {
+				perform = data.toPerformance();
+			} catch (ParseException e) {
+				// Not enough for the primary stats, so don't let getPerformance() reuse it
+			}
+			synchronized (responseCache) {
+				if (perform != null) {
+					responseCache.put(systemId, new CachedResponse(etag, lastModified, perform, data));
+				} else {
+					responseCache.remove(systemId);
+				}
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Pull the raw text content of the given URL. This call blocks until the
+	 * operation has completed.
+	 *
+	 * @param url
+	 *            The exact URL to request.
+	 * @return The raw content returned by the server.
+	 * @throws ApiException
+	 *             If any connection or server error occurs.
+	 */
+	public String getUrlContent(String url) throws ApiException {
+		InputStream inputStream = getUrlStream(url);
+
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] buffer = new byte[512];
+
+			// Read response into a buffered stream
+			int readBytes = 0;
+			while ((readBytes = inputStream.read(buffer)) != -1) {
+				content.write(buffer, 0, readBytes);
+			}
+
+			// Return result from buffered stream
+			return new String(content.toByteArray());
+		} catch (IOException e) {
+			throw new ApiException("Problem communicating with API", e);
+		} finally {
+			close(inputStream);
+		}
+	}
+
+	/**
+	 * Open the content stream of the given URL. This call blocks until the
+	 * response headers have arrived; the caller is responsible for reading and
+	 * closing the returned stream.
+	 *
+	 * @param url
+	 *            The exact URL to request.
+	 * @return The unread response body.
+	 * @throws ApiException
+	 *             If any connection or server error occurs.
+	 */
+	public InputStream getUrlStream(String url) throws ApiException {
+		return getContent(getUrlResponse(url, null, null));
+	}
+
+	/**
+	 * Send a body to the given URL. This call blocks until the server has
+	 * answered.
+	 *
+	 * @param contentType
+	 *            Type of the body.
+	 * @param contentEncoding
+	 *            How the body is compressed, or null if it isn't.
+	 * @throws ApiException
+	 *             If any connection error occurs, or the server doesn't
+	 *             answer with a 2xx status.
+	 */
+	public void post(String url, byte[] body, String contentType, String contentEncoding) throws ApiException {
+		HttpPost request = new HttpPost(url);
+		String host = request.getURI().getHost();
+		RequestAdmission admission = this.admission;
+		if (admission != null) {
+			admission.acquire(host, null);
+		}
+		request.setHeader("User-Agent", userAgent);
+		ByteArrayEntity entity = new ByteArrayEntity(body);
+		entity.setContentType(contentType);
+		if (contentEncoding != null) {
+			entity.setContentEncoding(contentEncoding);
+		}
+		request.setEntity(entity);
+
+		try {
+			HttpResponse response = client.execute(request);
+			consume(response);
+			StatusLine status = response.getStatusLine();
+			int code = status.getStatusCode();
+			if (code / 100 != 2) {
+				if (code == HTTP_STATUS_TOO_MANY_REQUESTS && admission != null) {
+					admission.backOff(host, getRetryAfter(response));
+				}
+				Metrics.REQUEST_ERRORS.increment();
+				throw new ApiException("Invalid response from server: " + status.toString());
+			}
+		} catch (IOException e) {
+			Metrics.REQUEST_ERRORS.increment();
+			throw new ApiException("Problem communicating with " + host, e);
+		}
+	}
+
+	/**
+	 * Request the given URL, conditionally if validators from an earlier
+	 * response are available, and accepting a compressed body.
+	 *
+	 * @param url
+	 *            The exact URL to request.
+	 * @param cached
+	 *            The earlier response to revalidate, or null.
+	 * @param key
+	 *            Key the request counts against in the rate limits, or null.
+	 * @return The response, either 200 OK or 304 Not Modified.
+	 * @throws ApiException
+	 *             If any connection or server error occurs.
+	 */
+	private HttpResponse getUrlResponse(String url, CachedResponse cached, String key) throws ApiException {
+		HttpGet request = new HttpGet(url);
+		String host = request.getURI().getHost();
+		RequestAdmission admission = this.admission;
+		if (admission != null) {
+			admission.acquire(host, key);
+		}
+		request.setHeader("User-Agent", userAgent);
+		request.setHeader("Accept-Encoding", "gzip, deflate");
+		if (cached != null) {
+			if (cached.etag != null) {
+				request.setHeader("If-None-Match", cached.etag);
+			}
+			if (cached.lastModified != null) {
+				request.setHeader("If-Modified-Since", cached.lastModified);
+			}
+		}
+
+		Metrics.REQUESTS.increment();
+		long[] connect = connectNanos.get();
+		connect[0] = 0;
+		long start = System.nanoTime();
+		try {
+			HttpResponse response = client.execute(request);
+			Metrics.FIRST_BYTE.record(System.nanoTime() - start - connect[0]);
+
+			// Check if server response is valid
+			StatusLine status = response.getStatusLine();
+			int code = status.getStatusCode();
+			if (code != HTTP_STATUS_OK && !(code == HTTP_STATUS_NOT_MODIFIED && cached != null)) {
+				if (code == HTTP_STATUS_TOO_MANY_REQUESTS) {
+					Metrics.RATE_LIMITED.increment();
+					if (admission != null) {
+						admission.backOff(host, getRetryAfter(response));
+					}
+				}
+				// Release the connection back to the pool before bailing
+				consume(response);
+				Metrics.REQUEST_ERRORS.increment();
+				throw new ApiException("Invalid response from server: " + status.toString());
+			}
+			return response;
+		} catch (IOException e) {
+			Metrics.REQUEST_ERRORS.increment();
+			throw new ApiException("Problem communicating with API", e);
+		}
+	}
+
+	/**
+	 * @return How long the server asked to be left alone for, in
+	 *         milliseconds. Only a number of seconds is understood.
+	 */
+	private static long getRetryAfter(HttpResponse response) {
+		String retryAfter = getHeader(response, "Retry-After");
+		if (retryAfter != null) {
+			try {
+				return Math.max(0, Long.parseLong(retryAfter.trim())) * 1000;
+			} catch (NumberFormatException e) {
+				// An HTTP date; fall back to the default
+			}
+		}
+		return DEFAULT_RETRY_AFTER_MS;
+	}
+
+	/**
+	 * Split the time since a parse started into waiting on the body and the
+	 * parse itself.
+	 */
+	private static void recordBody(TimedInputStream content, long startNanos) {
+		long readNanos = content.getReadNanos();
+		Metrics.BODY.record(readNanos);
+		Metrics.PARSE.record(System.nanoTime() - startNanos - readNanos);
+	}
+
+	/**
+	 * Open the body of a response, undoing any gzip or deflate encoding.
+	 */
+	private static InputStream getContent(HttpResponse response) throws ApiException {
+		HttpEntity entity = response.getEntity();
+		if (entity == null) {
+			throw new ApiException("Response from server had no content");
+		}
+
+		InputStream content = null;
+		try {
+			content = entity.getContent();
+			Header encoding = entity.getContentEncoding();
+			if (encoding != null) {
+				String value = encoding.getValue();
+				if ("gzip".equalsIgnoreCase(value) || "x-gzip".equalsIgnoreCase(value)) {
+					return new GZIPInputStream(content);
+				} else if ("deflate".equalsIgnoreCase(value)) {
+					return new InflaterInputStream(content);
+				}
+			}
+			return content;
+		} catch (IOException e) {
+			// A bad gzip header, say; the connection still has to go back to the pool
+			if (content != null) {
+				close(content);
+			} else {
+				consume(response);
+			}
+			throw new ApiException("Problem communicating with API", e);
+		}
+	}
+
+	/**
+	 * A 304, or a 200 whose validators match the cached ones, means the
+	 * cached performance still stands.
+	 */
+	private static boolean isUnchanged(HttpResponse response, String etag, String lastModified,
+			CachedResponse cached) {
+		if (response.getStatusLine().getStatusCode() == HTTP_STATUS_NOT_MODIFIED) {
+			return true;
+		}
+		if (etag != null) {
+			return etag.equals(cached.etag);
+		}
+		return lastModified != null && lastModified.equals(cached.lastModified);
+	}
+
+	private static String getHeader(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		return header == null ? null : header.getValue();
+	}
+
+	private static void consume(HttpResponse response) {
+		HttpEntity entity = response.getEntity();
+		if (entity != null) {
+			try {
+				entity.consumeContent();
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Couldn't release API response", e);
+			}
+		}
+	}
+
+	private static void close(InputStream content) {
+		try {
+			content.close();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't close API response", e);
+		}
+	}
+
+	/**
+	 * Times the DNS lookup and connect of each new connection.
+	 */
+	private static class TimedSocketFactory implements SocketFactory {
+		private final SocketFactory factory;
+
+		TimedSocketFactory(SocketFactory factory) {
+			this.factory = factory;
+		}
+
+		public Socket createSocket() throws IOException {
+			return factory.createSocket();
+		}
+
+		public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort,
+				HttpParams params) throws IOException, UnknownHostException, ConnectTimeoutException {
+			long start = System.nanoTime();
+			try {
+				return factory.connectSocket(sock, host, port, localAddress, localPort, params);
+			} finally {
+				long elapsed = System.nanoTime() - start;
+				connectNanos.get()[0] += elapsed;
+				Metrics.CONNECT.record(elapsed);
+			}
+		}
+
+		public boolean isSecure(Socket sock) throws IllegalArgumentException {
+			return factory.isSecure(sock);
+		}
+	}
+
+	/**
+	 * {@link TimedSocketFactory} for a factory that can also layer over a
+	 * proxy tunnel, as SSL does.
+	 */
+	private static class TimedLayeredSocketFactory extends TimedSocketFactory implements LayeredSocketFactory {
+		private final LayeredSocketFactory factory;
+
+		TimedLayeredSocketFactory(LayeredSocketFactory factory) {
+			super(factory);
+			this.factory = factory;
+		}
+
+		public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException,
+				UnknownHostException {
+			return factory.createSocket(socket, host, port, autoClose);
+		}
+	}
+
+	/**
+	 * Validators from the last full response for a system, along with the
+	 * performance that was parsed from it and, if it was parsed in full, the
+	 * array data.
+	 */
+	private static class CachedResponse {
+		final String etag;
+		final String lastModified;
+		final SolarPerformance performance;
+		final ArrayData data;
+
+		CachedResponse(String etag, String lastModified, SolarPerformance performance, ArrayData data) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.performance = performance;
+			this.data = data;
+		}
+	}
+}
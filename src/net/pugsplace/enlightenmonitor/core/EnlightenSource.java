@@ -0,0 +1,71 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads systems from the public array viewer data on the Enlighten website,
+ * optionally keeping each one's full {@link ArrayData} as well.
+ */
+public class EnlightenSource implements DataSource {
+	private final EnlightenClient client;
+	private final String urlTemplate;
+
+	/** Latest full data of each system, if it's being kept */
+	private final ConcurrentHashMap<String, ArrayData> arrayData = new ConcurrentHashMap<String, ArrayData>();
+	private volatile boolean keepArrayData = false;
+
+	/**
+	 * @param urlTemplate
+	 *            Performance URL, with a %s for the system ID.
+	 */
+	public EnlightenSource(EnlightenClient client, String urlTemplate) {
+		this.client = client;
+		this.urlTemplate = urlTemplate;
+	}
+
+	/**
+	 * @return The performance URL, with a %s for the system ID.
+	 */
+	public String getUrlTemplate() {
+		return urlTemplate;
+	}
+
+	public SolarPerformance getPerformance(String systemId) throws ApiException, ParseException {
+		String url = String.format(urlTemplate, systemId);
+		if (!keepArrayData) {
+			return client.getPerformance(url, systemId);
+		}
+
+		ArrayData data = client.getArrayData(url, systemId);
+		arrayData.put(systemId, data);
+		return data.toPerformance().withTimestamp(System.currentTimeMillis());
+	}
+
+	/**
+	 * Choose whether reads parse and keep each system's full data, every
+	 * dataset and its points, or only the primary stats.
+	 */
+	public void setKeepArrayData(boolean keep) {
+		keepArrayData = keep;
+		if (!keep) {
+			arrayData.clear();
+		}
+	}
+
+	/**
+	 * @return The full data from the system's last read, or null if it
+	 *         hasn't been read while keeping it.
+	 */
+	public ArrayData getArrayData(String systemId) {
+		return arrayData.get(systemId);
+	}
+
+	public void forget(String systemId) {
+		arrayData.remove(systemId);
+	}
+
+	public String toString() {
+		return "Enlighten";
+	}
+}
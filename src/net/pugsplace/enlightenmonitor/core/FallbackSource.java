@@ -0,0 +1,111 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Tries several sources in order, typically a system's gateway and then the
+ * Enlighten cloud, and returns the first reading any of them gives.
+ *
+ * A source that fails for a system is passed over for that system until
+ * its retry delay is up, so a gateway that's unplugged or off the network
+ * doesn't add a timeout to every read. The last source is always tried.
+ */
+public class FallbackSource implements DataSource {
+	public static final long DEFAULT_RETRY_MS = 5 * 60 * 1000;
+
+	private static final Logger log = Logger.getLogger("eSolarMonitor");
+
+	private final DataSource[] sources;
+	private volatile long retryMs = DEFAULT_RETRY_MS;
+
+	/** When each source may next be tried, by system; zero where it last worked */
+	private final ConcurrentHashMap<String, long[]> retryAt = new ConcurrentHashMap<String, long[]>();
+
+	/**
+	 * @param sources
+	 *            Sources to try, most preferred first.
+	 */
+	public FallbackSource(DataSource... sources) {
+		if (sources.length == 0) {
+			throw new IllegalArgumentException("No sources to fall back between");
+		}
+		this.sources = sources.clone();
+	}
+
+	/**
+	 * @param retryMs
+	 *            How long a source that failed for a system is passed over.
+	 */
+	public void setRetryDelay(long retryMs) {
+		this.retryMs = retryMs;
+	}
+
+	public SolarPerformance getPerformance(String systemId) throws ApiException, ParseException {
+		long[] retry = retryAt.get(systemId);
+		if (retry == null) {
+			long[] created = new long[sources.length];
+			retry = retryAt.putIfAbsent(systemId, created);
+			if (retry == null) {
+				retry = created;
+			}
+		}
+
+		Exception failure = null;
+		for (int i = 0; i < sources.length; i++) {
+			boolean last = i == sources.length - 1;
+			synchronized (retry) {
+				if (!last && retry[i] > System.currentTimeMillis()) {
+					continue;
+				}
+			}
+
+			try {
+				SolarPerformance perform = sources[i].getPerformance(systemId);
+				synchronized (retry) {
+					retry[i] = 0;
+				}
+				if (i > 0) {
+					Metrics.FALLBACKS.increment();
+				}
+				return perform;
+			} catch (ApiException e) {
+				failure = e;
+			} catch (ParseException e) {
+				failure = e;
+			}
+
+			synchronized (retry) {
+				if (retry[i] == 0 && !last) {
+					log.warning("Couldn't read " + systemId + " from " + sources[i] + ", falling back: " + failure);
+				}
+				retry[i] = System.currentTimeMillis() + retryMs;
+			}
+		}
+
+		if (failure instanceof ParseException) {
+			throw (ParseException) failure;
+		}
+		throw (ApiException) failure;
+	}
+
+	/**
+	 * Forget which sources have failed for a system, so the next read tries
+	 * them all again.
+	 */
+	public void reset(String systemId) {
+		retryAt.remove(systemId);
+	}
+
+	public String toString() {
+		StringBuilder name = new StringBuilder();
+		for (DataSource source : sources) {
+			if (name.length() > 0) {
+				name.append(", then ");
+			}
+			name.append(source);
+		}
+		return name.toString();
+	}
+}
@@ -0,0 +1,159 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Running totals of current output and today's, this week's, this month's
+ * and lifetime energy across a group of systems. Each system's last reading
+ * is remembered, so a new one changes the totals by the difference alone
+ * and the group is never summed again, however large it grows.
+ *
+ * Totals are kept in whole milliwatts and milliwatt-hours rather than
+ * doubles, so adding and taking away readings for years never drifts. A
+ * value a system couldn't report, in units that weren't recognized, counts
+ * as nothing.
+ */
+public class FleetAggregate {
+	private static final int CURRENT = 0;
+	private static final int TODAY = 1;
+	private static final int WEEK = 2;
+	private static final int MONTH = 3;
+	private static final int LIFETIME = 4;
+	private static final int FIELDS = 5;
+
+	/** Each system's contribution to the totals, in milliunits */
+	private final Map<String, long[]> members = new HashMap<String, long[]>();
+	private final long[] totals = new long[FIELDS];
+
+	/** Newest timestamp of any reading added */
+	private long newestMillis = 0;
+
+	/** The totals as a SolarPerformance; rebuilt on first use after a change */
+	private SolarPerformance total = null;
+
+	/**
+	 * Replace a system's reading in the totals, adding the system if it's new.
+	 *
+	 * @param performance
+	 *            The system's latest reading, or null to take it out.
+	 * @return Whether the totals changed.
+	 */
+	public synchronized boolean update(String systemId, SolarPerformance performance) {
+		if (performance == null) {
+			return remove(systemId);
+		}
+
+		long[] next = toContribution(performance);
+		long[] previous = members.put(systemId, next);
+		boolean changed = previous == null;
+		for (int i = 0; i < FIELDS; i++) {
+			long delta = next[i] - (previous == null ? 0 : previous[i]);
+			if (delta != 0) {
+				totals[i] += delta;
+				changed = true;
+			}
+		}
+		if (performance.getTimestampMillis() > newestMillis) {
+			newestMillis = performance.getTimestampMillis();
+			changed = true;
+		}
+		if (changed) {
+			total = null;
+		}
+		return changed;
+	}
+
+	/**
+	 * Add a system's reading only if the group has none for it yet, as when
+	 * restoring readings from storage that a fetch may already have beaten.
+	 *
+	 * @return Whether the reading was added.
+	 */
+	public synchronized boolean addIfAbsent(String systemId, SolarPerformance performance) {
+		if (performance == null || members.containsKey(systemId)) {
+			return false;
+		}
+		return update(systemId, performance);
+	}
+
+	/**
+	 * Take a system out of the totals.
+	 *
+	 * @return Whether it was in them.
+	 */
+	public synchronized boolean remove(String systemId) {
+		long[] previous = members.remove(systemId);
+		if (previous == null) {
+			return false;
+		}
+		for (int i = 0; i < FIELDS; i++) {
+			totals[i] -= previous[i];
+		}
+		total = null;
+		return true;
+	}
+
+	/**
+	 * Take out every system not in the given group.
+	 */
+	public synchronized void retainAll(Collection<String> systemIds) {
+		Set<String> keep = new HashSet<String>(systemIds);
+		Iterator<Map.Entry<String, long[]>> iter = members.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, long[]> member = iter.next();
+			if (!keep.contains(member.getKey())) {
+				for (int i = 0; i < FIELDS; i++) {
+					totals[i] -= member.getValue()[i];
+				}
+				iter.remove();
+				total = null;
+			}
+		}
+	}
+
+	/**
+	 * @return How many systems are in the totals.
+	 */
+	public synchronized int size() {
+		return members.size();
+	}
+
+	/**
+	 * @return The totals, timestamped with the newest reading added, or null
+	 *         if there are no systems. Shared until the totals next change.
+	 */
+	public synchronized SolarPerformance getTotal() {
+		if (members.isEmpty()) {
+			return null;
+		}
+		if (total == null) {
+			total = new SolarPerformance(newestMillis, totals[CURRENT] / 1000.0, totals[TODAY] / 1000.0,
+					totals[WEEK] / 1000.0, totals[MONTH] / 1000.0, totals[LIFETIME] / 1000.0);
+		}
+		return total;
+	}
+
+	/**
+	 * @return A reading's contribution to the totals, in milliunits.
+	 */
+	private static long[] toContribution(SolarPerformance performance) {
+		Sample sample = Sample.of(performance);
+		long[] values = new long[FIELDS];
+		values[CURRENT] = validOrZero(sample, Sample.VALID_CURRENT, sample.getMilliwatts());
+		values[TODAY] = validOrZero(sample, Sample.VALID_TODAY, sample.getTodayMilliwattHours());
+		values[WEEK] = validOrZero(sample, Sample.VALID_WEEK, sample.getWeekMilliwattHours());
+		values[MONTH] = validOrZero(sample, Sample.VALID_MONTH, sample.getMonthMilliwattHours());
+		values[LIFETIME] = validOrZero(sample, Sample.VALID_LIFETIME, sample.getLifetimeMilliwattHours());
+		return values;
+	}
+
+	private static long validOrZero(Sample sample, int bit, long value) {
+		return sample.isValid(bit) ? value : 0;
+	}
+}
@@ -0,0 +1,179 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.util.Calendar;
+
+/**
+ * Reads one system straight from its Envoy gateway on the local network,
+ * using the gateway's <code>/api/v1/production</code> summary: a flat JSON
+ * object of <code>wattsNow</code>, <code>wattHoursToday</code>,
+ * <code>wattHoursSevenDays</code> and <code>wattHoursLifetime</code>. That
+ * is one small response from a host a hop or two away, with no cloud round
+ * trip and figures as fresh as the gateway's own.
+ *
+ * The gateway gives energy over the last seven days rather than this week,
+ * and nothing for the month. Month is counted here from the lifetime total
+ * at the first reading of each month, kept in the settings, so in the first
+ * month a system is read locally it falls short.
+ */
+public class GatewaySource implements DataSource {
+	public static final String PRODUCTION_PATH = "/api/v1/production";
+
+	static final String KEY_MONTH = "gatewayMonth";
+	static final String KEY_MONTH_START = "gatewayMonthStart";
+
+	private final EnlightenClient client;
+	private final String url;
+	private final Settings settings;
+
+	/**
+	 * @param client
+	 *            Used for every request. Gateways are close by, so one with
+	 *            short timeouts lets a fallback happen quickly.
+	 * @param address
+	 *            The gateway's host name or address, or its base URL.
+	 * @param settings
+	 *            Holds the lifetime total at the start of the month.
+	 */
+	public GatewaySource(EnlightenClient client, String address, Settings settings) {
+		this.client = client;
+		this.url = getBaseUrl(address) + PRODUCTION_PATH;
+		this.settings = settings;
+	}
+
+	/**
+	 * @return The address as a URL with no trailing slash, taking it to be
+	 *         plain HTTP if no scheme is given.
+	 */
+	static String getBaseUrl(String address) {
+		String base = address.trim();
+		if (base.indexOf("://") < 0) {
+			base = "http://" + base;
+		}
+		while (base.endsWith("/")) {
+			base = base.substring(0, base.length() - 1);
+		}
+		return base;
+	}
+
+	public SolarPerformance getPerformance(String systemId) throws ApiException, ParseException {
+		String body = client.getUrlContent(url);
+		long start = System.nanoTime();
+		SolarPerformance perform;
+		try {
+			perform = parse(body);
+		} catch (ParseException e) {
+			Metrics.PARSE_ERRORS.increment();
+			throw e;
+		}
+		Metrics.PARSE.recordSince(start);
+
+		long now = System.currentTimeMillis();
+		double lifetime = perform.getRawLifetimeWattHours();
+		return new SolarPerformance(now, perform.getRawCurrentWatts(), perform.getRawTodayWattHours(), perform
+				.getRawWeekWattHours(), getMonthWattHours(systemId, lifetime, now), lifetime);
+	}
+
+	private double getMonthWattHours(String systemId, double lifetimeWattHours, long now) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(now);
+		long month = calendar.get(Calendar.YEAR) * 100 + calendar.get(Calendar.MONTH) + 1;
+
+		long start = settings.getLong(KEY_MONTH_START + "_" + systemId, -1);
+		if (settings.getLong(KEY_MONTH + "_" + systemId, 0) != month || start < 0 || start > lifetimeWattHours) {
+			start = (long) lifetimeWattHours;
+			settings.putLong(KEY_MONTH + "_" + systemId, month);
+			settings.putLong(KEY_MONTH_START + "_" + systemId, start);
+		}
+		return lifetimeWattHours - start;
+	}
+
+	/**
+	 * Read the production summary. Members other than the four needed are
+	 * skipped, as long as their values are numbers, strings or literals.
+	 *
+	 * @return The reading, without a timestamp or the month's energy.
+	 */
+	static SolarPerformance parse(String body) throws ParseException {
+		double watts = Double.NaN;
+		double today = Double.NaN;
+		double sevenDays = Double.NaN;
+		double lifetime = Double.NaN;
+
+		int i = skipWhitespace(body, 0);
+		if (i >= body.length() || body.charAt(i) != '{') {
+			throw new ParseException("Gateway response isn't a JSON object");
+		}
+		i = skipWhitespace(body, i + 1);
+		while (i < body.length() && body.charAt(i) != '}') {
+			if (body.charAt(i) != '"') {
+				throw new ParseException("Expected a member name at " + i);
+			}
+			int nameEnd = body.indexOf('"', i + 1);
+			if (nameEnd < 0) {
+				throw new ParseException("Unterminated member name");
+			}
+			String name = body.substring(i + 1, nameEnd);
+			i = skipWhitespace(body, nameEnd + 1);
+			if (i >= body.length() || body.charAt(i) != ':') {
+				throw new ParseException("Expected ':' after " + name);
+			}
+			i = skipWhitespace(body, i + 1);
+
+			int valueEnd;
+			if (i < body.length() && body.charAt(i) == '"') {
+				valueEnd = body.indexOf('"', i + 1) + 1;
+				if (valueEnd <= 0) {
+					throw new ParseException("Unterminated string in " + name);
+				}
+			} else {
+				valueEnd = i;
+				while (valueEnd < body.length() && ",} \t\r\n".indexOf(body.charAt(valueEnd)) < 0) {
+					valueEnd++;
+				}
+			}
+			String value = body.substring(i, valueEnd);
+			if ("wattsNow".equals(name)) {
+				watts = parseNumber(name, value);
+			} else if ("wattHoursToday".equals(name)) {
+				today = parseNumber(name, value);
+			} else if ("wattHoursSevenDays".equals(name)) {
+				sevenDays = parseNumber(name, value);
+			} else if ("wattHoursLifetime".equals(name)) {
+				lifetime = parseNumber(name, value);
+			}
+
+			i = skipWhitespace(body, valueEnd);
+			if (i < body.length() && body.charAt(i) == ',') {
+				i = skipWhitespace(body, i + 1);
+			}
+		}
+		if (i >= body.length()) {
+			throw new ParseException("Gateway response was cut short");
+		}
+		if (Double.isNaN(watts) || Double.isNaN(today) || Double.isNaN(sevenDays) || Double.isNaN(lifetime)) {
+			throw new ParseException("Gateway response is missing production figures");
+		}
+
+		return new SolarPerformance(0, watts, today, sevenDays, 0, lifetime);
+	}
+
+	private static double parseNumber(String name, String value) throws ParseException {
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new ParseException("Expected a number for " + name + ", got " + value);
+		}
+	}
+
+	private static int skipWhitespace(String text, int i) {
+		while (i < text.length() && Character.isWhitespace(text.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	public String toString() {
+		return "gateway " + url;
+	}
+}
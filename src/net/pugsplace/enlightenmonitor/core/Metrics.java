@@ -0,0 +1,248 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the hot paths: fetching, parsing,
+ * settings I/O and drawing. Recording is a couple of atomic adds into
+ * arrays allocated up front, so it's cheap enough to leave on everywhere.
+ *
+ * Read them as a human-readable summary, or in the Prometheus text
+ * exposition format for scraping.
+ */
+public final class Metrics {
+	private static final List<Counter> counters = new ArrayList<Counter>();
+	private static final List<Histogram> histograms = new ArrayList<Histogram>();
+
+	public static final Counter REQUESTS = new Counter("esolar_requests_total", "Performance requests made");
+	public static final Counter NOT_MODIFIED = new Counter("esolar_not_modified_total",
+			"Requests answered from the response cache");
+	public static final Counter COALESCED = new Counter("esolar_coalesced_total",
+			"Fetches that shared one already in progress");
+	public static final Counter RECENT_HITS = new Counter("esolar_recent_hits_total",
+			"Fetches answered with a reading only seconds old");
+	public static final Counter FALLBACKS = new Counter("esolar_fallbacks_total",
+			"Readings taken from a fallback source after the preferred one failed");
+	public static final Counter REQUEST_ERRORS = new Counter("esolar_request_errors_total",
+			"Requests that failed to connect or got an error status");
+	public static final Counter RATE_LIMITED = new Counter("esolar_rate_limited_total",
+			"Requests the server turned away as over its rate limit");
+	public static final Counter ADMISSION_TIMEOUTS = new Counter("esolar_admission_timeouts_total",
+			"Requests given up on after waiting too long for the rate limit");
+	public static final Counter PARSE_ERRORS = new Counter("esolar_parse_errors_total",
+			"Responses that couldn't be parsed");
+	public static final Counter WIDGETS_DRAWN = new Counter("esolar_widgets_drawn_total",
+			"Widgets pushed to the home screen");
+	public static final Counter WIDGETS_UNCHANGED = new Counter("esolar_widgets_unchanged_total",
+			"Widget draws skipped because nothing changed");
+	public static final Counter ALERTS = new Counter("esolar_alerts_total", "Alerts raised or cleared");
+	public static final Counter UPLOADS = new Counter("esolar_uploads_total",
+			"Sample batches the collector accepted");
+	public static final Counter UPLOADED_SAMPLES = new Counter("esolar_uploaded_samples_total",
+			"Samples the collector accepted");
+	public static final Counter UPLOADED_BYTES = new Counter("esolar_uploaded_bytes_total",
+			"Compressed bytes of sample batches the collector accepted");
+
+	public static final Histogram ADMISSION_WAIT = new Histogram("esolar_admission_wait_seconds",
+			"Requests held back to stay within rate limits");
+	public static final Histogram CONNECT = new Histogram("esolar_connect_seconds",
+			"DNS lookup and connect of new connections");
+	public static final Histogram FIRST_BYTE = new Histogram("esolar_first_byte_seconds",
+			"Request sent until response headers, not counting connect");
+	public static final Histogram BODY = new Histogram("esolar_body_seconds", "Waiting on the response body");
+	public static final Histogram PARSE = new Histogram("esolar_parse_seconds",
+			"Parsing the response, not counting waits on the body");
+	public static final Histogram SETTINGS_IO = new Histogram("esolar_settings_io_seconds",
+			"Loading or writing back settings");
+	public static final Histogram DRAW = new Histogram("esolar_draw_seconds", "Drawing every widget");
+
+	private Metrics() {
+	}
+
+	/**
+	 * A count that only goes up.
+	 */
+	public static final class Counter {
+		private final String name;
+		private final String help;
+		private final AtomicLong count = new AtomicLong();
+
+		Counter(String name, String help) {
+			this.name = name;
+			this.help = help;
+			synchronized (counters) {
+				counters.add(this);
+			}
+		}
+
+		public void increment() {
+			count.incrementAndGet();
+		}
+
+		public void add(long amount) {
+			count.addAndGet(amount);
+		}
+
+		public long get() {
+			return count.get();
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * Durations counted into buckets whose bounds double from one
+	 * microsecond to about half a minute, with one more for anything longer.
+	 */
+	public static final class Histogram {
+		/** Bucket i holds durations of at most 2^i microseconds; 2^25 is about 33 seconds */
+		static final int BUCKETS = 26;
+
+		private final String name;
+		private final String help;
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS + 1);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sumNanos = new AtomicLong();
+
+		Histogram(String name, String help) {
+			this.name = name;
+			this.help = help;
+			synchronized (histograms) {
+				histograms.add(this);
+			}
+		}
+
+		/**
+		 * Record something that started at the given {@link System#nanoTime()}
+		 * and has just finished.
+		 */
+		public void recordSince(long startNanos) {
+			record(System.nanoTime() - startNanos);
+		}
+
+		public void record(long nanos) {
+			if (nanos < 0) {
+				nanos = 0;
+			}
+			long micros = (nanos + 999) / 1000;
+			// Smallest i where micros <= 2^i
+			int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+			buckets.incrementAndGet(Math.min(bucket, BUCKETS));
+			count.incrementAndGet();
+			sumNanos.addAndGet(nanos);
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		/**
+		 * @return The mean duration in milliseconds, or 0 if there are none.
+		 */
+		public double getMeanMillis() {
+			long n = count.get();
+			return n == 0 ? 0 : sumNanos.get() / 1e6 / n;
+		}
+
+		/**
+		 * @return An upper bound, in milliseconds, on the given fraction of
+		 *         durations; the bound of the bucket the quantile falls in.
+		 *         Infinite if it falls past the last bucket.
+		 */
+		public double getQuantileMillis(double quantile) {
+			long n = count.get();
+			if (n == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(quantile * n);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return (1L << i) / 1000.0;
+				}
+			}
+			return Double.POSITIVE_INFINITY;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * @return One line per counter and histogram, for people to read.
+	 */
+	public static String getSummary() {
+		StringBuilder out = new StringBuilder();
+		for (Counter counter : getCounters()) {
+			out.append(counter.help).append(": ").append(counter.get()).append('\n');
+		}
+		for (Histogram histogram : getHistograms()) {
+			out.append(histogram.help).append(": ");
+			if (histogram.getCount() == 0) {
+				out.append("none\n");
+				continue;
+			}
+			out.append(histogram.getCount()).append(", mean ").append(formatMillis(histogram.getMeanMillis()));
+			out.append(", p50 ").append(formatMillis(histogram.getQuantileMillis(0.5)));
+			out.append(", p99 ").append(formatMillis(histogram.getQuantileMillis(0.99))).append('\n');
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Write every counter and histogram in the Prometheus text format.
+	 */
+	public static void writePrometheus(Appendable out) throws IOException {
+		for (Counter counter : getCounters()) {
+			out.append("# HELP ").append(counter.name).append(' ').append(counter.help).append('\n');
+			out.append("# TYPE ").append(counter.name).append(" counter\n");
+			out.append(counter.name).append(' ').append(Long.toString(counter.get())).append('\n');
+		}
+		for (Histogram histogram : getHistograms()) {
+			String name = histogram.name;
+			out.append("# HELP ").append(name).append(' ').append(histogram.help).append('\n');
+			out.append("# TYPE ").append(name).append(" histogram\n");
+
+			// The count is the buckets' own total, so it matches them even
+			// while other threads are recording
+			long cumulative = 0;
+			for (int i = 0; i < Histogram.BUCKETS; i++) {
+				cumulative += histogram.buckets.get(i);
+				out.append(name).append("_bucket{le=\"").append(Double.toString((1L << i) / 1e6)).append("\"} ")
+						.append(Long.toString(cumulative)).append('\n');
+			}
+			cumulative += histogram.buckets.get(Histogram.BUCKETS);
+			out.append(name).append("_bucket{le=\"+Inf\"} ").append(Long.toString(cumulative)).append('\n');
+			out.append(name).append("_sum ").append(Double.toString(histogram.sumNanos.get() / 1e9)).append('\n');
+			out.append(name).append("_count ").append(Long.toString(cumulative)).append('\n');
+		}
+	}
+
+	private static List<Counter> getCounters() {
+		synchronized (counters) {
+			return new ArrayList<Counter>(counters);
+		}
+	}
+
+	private static List<Histogram> getHistograms() {
+		synchronized (histograms) {
+			return new ArrayList<Histogram>(histograms);
+		}
+	}
+
+	private static String formatMillis(double millis) {
+		if (Double.isInfinite(millis)) {
+			return "over " + (1L << (Histogram.BUCKETS - 1)) / 1000 + "ms";
+		}
+		return millis < 10 ? String.format("%.2fms", millis) : String.format("%.0fms", millis);
+	}
+}
@@ -0,0 +1,12 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+public class ParseException extends Exception {
+	public ParseException(String text, Throwable cause) {
+		super(text, cause);
+	}
+
+	public ParseException(String text) {
+		super(text);
+	}
+}
@@ -0,0 +1,157 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Formats watt and watt-hour values for display, such as "1.2 kW" or
+ * "345.0 Wh". The value is written as fixed point with one decimal, rounded
+ * half-even like <code>new DecimalFormat("0.0")</code>, straight into a char
+ * buffer, so nothing is allocated apart from the final String. Digits,
+ * decimal separator and negative sign are those of the default locale, as
+ * DecimalFormat's would be.
+ *
+ * Safe to use from any thread: each thread formats into its own buffer.
+ */
+public final class PerformanceFormatter {
+	public enum unitSize {
+		watt,kilowatt,megawatt;
+	}
+
+	/** Enough for any double, including the longest fallback output */
+	public static final int MAX_LENGTH = 340;
+
+	/**
+	 * Values at or past this are left to DecimalFormat, whose digits there come
+	 * from the shortest decimal form rather than the exact binary value.
+	 */
+	private static final double FAST_PATH_LIMIT = 1e12;
+
+	private static final char[] MEGAWATT = " MW".toCharArray();
+	private static final char[] KILOWATT = " kW".toCharArray();
+	private static final char[] WATT = " W".toCharArray();
+
+	private static final ThreadLocal<char[]> sBuffers = new ThreadLocal<char[]>() {
+		protected char[] initialValue() {
+			return new char[MAX_LENGTH];
+		}
+	};
+
+	private static final DecimalFormatSymbols sSymbols = new DecimalFormatSymbols();
+
+	/** Only used, under its own lock, for values outside the fast path */
+	private static final DecimalFormat sFallback = new DecimalFormat("0.0", sSymbols);
+
+	private static final char sZero = sSymbols.getZeroDigit();
+	private static final char sSeparator = sSymbols.getDecimalSeparator();
+	private static final char[] sNegativePrefix = sFallback.getNegativePrefix().toCharArray();
+	private static final char[] sNegativeSuffix = sFallback.getNegativeSuffix().toCharArray();
+
+	private PerformanceFormatter() {
+	}
+
+	public static String format(double value, boolean energy, unitSize minUnit) {
+		char[] buffer = sBuffers.get();
+		int length = format(buffer, 0, value, energy, minUnit);
+		return new String(buffer, 0, length);
+	}
+
+	/**
+	 * Write the formatted value into <code>out</code>, which must have
+	 * {@link #MAX_LENGTH} chars free from <code>offset</code>.
+	 *
+	 * @return The number of chars written.
+	 */
+	public static int format(char[] out, int offset, double value, boolean energy, unitSize minUnit) {
+		int pos = offset;
+
+		if (value >= 1000000 || unitSize.megawatt.equals(minUnit)) {
+			pos = appendFixed(out, pos, (double) value / 1000000);
+			pos = append(out, pos, MEGAWATT);
+		} else if (value > 9000 || unitSize.kilowatt.equals(minUnit)) {
+			pos = appendFixed(out, pos, (double) value / 1000);
+			pos = append(out, pos, KILOWATT);
+		} else {
+			pos = appendFixed(out, pos, value);
+			pos = append(out, pos, WATT);
+		}
+
+		if (energy) {
+			out[pos++] = 'h';
+		}
+
+		return pos - offset;
+	}
+
+	/**
+	 * Append <code>value</code> with exactly one decimal place.
+	 *
+	 * @return The position after the last char written.
+	 */
+	public static int appendFixed(char[] out, int pos, double value) {
+		double magnitude = Math.abs(value);
+		if (!(magnitude < FAST_PATH_LIMIT)) {
+			String text;
+			synchronized (sFallback) {
+				text = sFallback.format(value);
+			}
+			text.getChars(0, text.length(), out, pos);
+			return pos + text.length();
+		}
+
+		long tenths = roundToTenths(magnitude);
+
+		// DecimalFormat keeps the sign of negatives that round to zero
+		boolean negative = value < 0 || (value == 0 && 1 / value < 0);
+		if (negative) {
+			pos = append(out, pos, sNegativePrefix);
+		}
+
+		pos = appendDigits(out, pos, tenths / 10);
+		out[pos++] = sSeparator;
+		out[pos++] = (char) (sZero + tenths % 10);
+		if (negative) {
+			pos = append(out, pos, sNegativeSuffix);
+		}
+		return pos;
+	}
+
+	/**
+	 * Round a non-negative value to a whole number of tenths, half-even on the
+	 * exact binary value, as DecimalFormat does.
+	 */
+	private static long roundToTenths(double magnitude) {
+		double scaled = magnitude * 10;
+		double floor = Math.floor(scaled);
+		double fraction = scaled - floor;
+
+		// The product is off by at most half an ulp, so only a fraction that
+		// close to the midpoint could be on the wrong side of it
+		if (Math.abs(fraction - 0.5) <= Math.ulp(scaled)) {
+			return new BigDecimal(magnitude).setScale(1, RoundingMode.HALF_EVEN).unscaledValue().longValue();
+		}
+		return fraction < 0.5 ? (long) floor : (long) floor + 1;
+	}
+
+	private static int appendDigits(char[] out, int pos, long number) {
+		int digits = 1;
+		for (long remaining = number / 10; remaining > 0; remaining /= 10) {
+			digits++;
+		}
+
+		int end = pos + digits;
+		for (int i = end - 1; i >= pos; i--) {
+			out[i] = (char) (sZero + number % 10);
+			number /= 10;
+		}
+		return end;
+	}
+
+	private static int append(char[] out, int pos, char[] text) {
+		System.arraycopy(text, 0, out, pos, text.length);
+		return pos + text.length;
+	}
+}
@@ -0,0 +1,562 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Pull parser for the array viewer performance JSON. Reads straight off the
+ * response stream. {@link #parse()} only keeps
+ * <code>datasets[i].primary_stat</code> for the first five datasets, and every
+ * other value is skipped byte by byte without being built into strings or
+ * objects. {@link #parseArrayData()} also keeps every dataset's label, units
+ * and data points.
+ *
+ * The JSON structure characters are all ASCII and UTF-8 continuation bytes are
+ * never mistaken for them, so the stream is scanned as raw bytes. Only the
+ * strings that are kept, labels and units, are decoded as UTF-8.
+ */
+public class PerformanceParser {
+	/** Number of leading datasets that carry the widget's primary stats */
+	public static final int DATASET_COUNT = 5;
+
+	/** Longest key or unit string we care to compare; longer ones are truncated */
+	private static final int MAX_TOKEN_LENGTH = 32;
+
+	/** Point times below this are taken to be in seconds rather than milliseconds */
+	private static final double MAX_SECONDS_TIME = 1e11;
+
+	private final InputStream in;
+	private final byte[] buffer = new byte[512];
+	private int position = 0;
+	private int limit = 0;
+
+	private final StringBuilder token = new StringBuilder(MAX_TOKEN_LENGTH);
+	private final StringBuilder units = new StringBuilder(MAX_TOKEN_LENGTH);
+	private final StringBuilder text = new StringBuilder();
+	/** Raw bytes of a kept string, waiting to be decoded into text */
+	private byte[] textBytes = new byte[64];
+	private final double[] watts = new double[DATASET_COUNT];
+
+	/** Collects everything when parsing the full data, otherwise null */
+	private ArrayData.Builder builder = null;
+
+	public PerformanceParser(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Read the whole performance document from the stream.
+	 *
+	 * @return A populated {@link SolarPerformance}, without a timestamp.
+	 * @throws ApiException
+	 *             If the stream could not be read.
+	 * @throws ParseException
+	 *             If the document is malformed or lacks the expected datasets.
+	 */
+	public SolarPerformance parse() throws ApiException, ParseException {
+		int found;
+		try {
+			found = parseDocument();
+		} catch (IOException e) {
+			throw new ApiException("Problem communicating with API", e);
+		}
+
+		if (found < DATASET_COUNT) {
+			throw new ParseException("Expected " + DATASET_COUNT + " datasets but found " + found);
+		}
+
+		return new SolarPerformance(0, watts[0], watts[1], watts[2], watts[3], watts[4]);
+	}
+
+	/**
+	 * Read the whole performance document from the stream, keeping every
+	 * dataset and its data points.
+	 *
+	 * @throws ApiException
+	 *             If the stream could not be read.
+	 * @throws ParseException
+	 *             If the document is malformed.
+	 */
+	public ArrayData parseArrayData() throws ApiException, ParseException {
+		builder = new ArrayData.Builder();
+		try {
+			parseDocument();
+		} catch (IOException e) {
+			throw new ApiException("Problem communicating with API", e);
+		}
+		return builder.build();
+	}
+
+	private int parseDocument() throws IOException, ParseException {
+		int found = 0;
+		expect('{');
+		if (nextIsEnd('}')) {
+			return found;
+		}
+		do {
+			readString(token);
+			expect(':');
+			if (equals(token, "datasets")) {
+				found = parseDatasets();
+			} else {
+				skipValue();
+			}
+		} while (nextMember('}'));
+		return found;
+	}
+
+	private int parseDatasets() throws IOException, ParseException {
+		int index = 0;
+		int found = 0;
+		expect('[');
+		if (nextIsEnd(']')) {
+			return found;
+		}
+		do {
+			if (index < DATASET_COUNT || builder != null) {
+				if (parseDataset(index) && index < DATASET_COUNT) {
+					found++;
+				}
+			} else {
+				skipValue();
+			}
+			index++;
+		} while (nextMember(']'));
+		return found;
+	}
+
+	private boolean parseDataset(int index) throws IOException, ParseException {
+		boolean found = false;
+		if (builder != null) {
+			builder.startDataset();
+		}
+		expect('{');
+		if (!nextIsEnd('}')) {
+			do {
+				readString(token);
+				expect(':');
+				if (equals(token, "primary_stat")) {
+					double value = parsePrimaryStat();
+					if (index < DATASET_COUNT) {
+						watts[index] = value;
+					}
+					if (builder != null) {
+						builder.setPrimaryStat(value);
+					}
+					found = true;
+				} else if (builder != null && equals(token, "label") && peek() == '"') {
+					builder.setLabel(readText());
+				} else if (builder != null && equals(token, "units") && peek() == '"') {
+					builder.setUnits(readText());
+				} else if (builder != null && equals(token, "data") && peek() == '[') {
+					parseData();
+				} else {
+					skipValue();
+				}
+			} while (nextMember('}'));
+		}
+		if (builder != null) {
+			builder.endDataset();
+		}
+		return found;
+	}
+
+	/**
+	 * Read a dataset's points, each a <code>[time, value]</code> pair. Points
+	 * of any other shape are skipped.
+	 */
+	private void parseData() throws IOException, ParseException {
+		expect('[');
+		if (nextIsEnd(']')) {
+			return;
+		}
+		do {
+			if (peek() != '[') {
+				skipValue();
+				continue;
+			}
+			position++;
+			if (nextIsEnd(']')) {
+				continue;
+			}
+
+			double time = readNumberOrNull();
+			double value = Double.NaN;
+			if (nextMember(']')) {
+				value = readNumberOrNull();
+				while (nextMember(']')) {
+					skipValue();
+				}
+			}
+
+			if (!Double.isNaN(time)) {
+				builder.addPoint((long) (time < MAX_SECONDS_TIME ? time * 1000 : time), value);
+			}
+		} while (nextMember(']'));
+	}
+
+	private double parsePrimaryStat() throws IOException, ParseException {
+		double value = Double.NaN;
+		units.setLength(0);
+
+		expect('{');
+		if (!nextIsEnd('}')) {
+			do {
+				readString(token);
+				expect(':');
+				if (equals(token, "value")) {
+					value = readNumber();
+				} else if (equals(token, "units")) {
+					readString(units);
+				} else {
+					skipValue();
+				}
+			} while (nextMember('}'));
+		}
+
+		if (Double.isNaN(value) || units.length() == 0) {
+			throw new ParseException("primary_stat is missing its value or units");
+		}
+		return getWatts(value, units);
+	}
+
+	/**
+	 * Convert a <code>primary_stat</code> value into watts (or watt-hours)
+	 * according to its units string.
+	 * 
+	 * @return The value in watts, or -1 if the units are not recognized.
+	 */
+	public static double getWatts(double value, CharSequence units) {
+		if (startsWith(units, "kW")) {
+			return (double) (value * 1000);
+		} else if (startsWith(units, "W")) {
+			return (double) (value);
+		} else if (startsWith(units, "MW")) {
+			return (double) (value * 1000000);
+		} else {
+			return -1;
+		}
+	}
+
+	/**
+	 * Read a number, or NaN for a <code>null</code>.
+	 */
+	private double readNumberOrNull() throws IOException, ParseException {
+		if (peek() == 'n') {
+			skipLiteral();
+			return Double.NaN;
+		}
+		return readNumber();
+	}
+
+	/**
+	 * Read a number, tolerating one that has been quoted as a string.
+	 */
+	private double readNumber() throws IOException, ParseException {
+		token.setLength(0);
+		int c = peek();
+		if (c == '"') {
+			readString(token);
+		} else {
+			while (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9')) {
+				token.append((char) c);
+				position++;
+				c = peekRaw();
+			}
+		}
+
+		try {
+			return Double.parseDouble(token.toString());
+		} catch (NumberFormatException e) {
+			throw new ParseException("Invalid number: " + token, e);
+		}
+	}
+
+	/**
+	 * Read a string into the given builder, keeping at most
+	 * {@link #MAX_TOKEN_LENGTH} characters, for keys and units that are only
+	 * compared. Escapes are kept only for the simple single-character forms;
+	 * anything else is replaced with '?'.
+	 */
+	private void readString(StringBuilder into) throws IOException, ParseException {
+		into.setLength(0);
+		expect('"');
+		while (true) {
+			int c = readRaw();
+			if (c == '"') {
+				return;
+			}
+			if (c == '\\') {
+				c = readRaw();
+				if (c == 'u') {
+					skip(4);
+					c = '?';
+				}
+			}
+			if (into.length() < MAX_TOKEN_LENGTH) {
+				into.append((char) c);
+			}
+		}
+	}
+
+	/**
+	 * Read a string to keep, in full, decoding it as UTF-8 and resolving its
+	 * escapes.
+	 */
+	private String readText() throws IOException, ParseException {
+		text.setLength(0);
+		int length = 0;
+		expect('"');
+		while (true) {
+			int c = readRaw();
+			if (c == '"') {
+				break;
+			}
+			if (c != '\\') {
+				if (length == textBytes.length) {
+					byte[] grown = new byte[length * 2];
+					System.arraycopy(textBytes, 0, grown, 0, length);
+					textBytes = grown;
+				}
+				textBytes[length++] = (byte) c;
+				continue;
+			}
+
+			// An escape is a whole character, so decode the bytes before it
+			length = decodeText(length);
+			c = readRaw();
+			switch (c) {
+			case 'b':
+				text.append('\b');
+				break;
+			case 'f':
+				text.append('\f');
+				break;
+			case 'n':
+				text.append('\n');
+				break;
+			case 'r':
+				text.append('\r');
+				break;
+			case 't':
+				text.append('\t');
+				break;
+			case 'u':
+				// Surrogate pairs come as two escapes, and join up in the text
+				text.append(readHexChar());
+				break;
+			default:
+				text.append((char) c);
+				break;
+			}
+		}
+		decodeText(length);
+		return text.toString();
+	}
+
+	/**
+	 * Decode the pending bytes of a kept string onto its text.
+	 *
+	 * @return The bytes left pending, none.
+	 */
+	private int decodeText(int length) throws IOException {
+		if (length > 0) {
+			text.append(new String(textBytes, 0, length, "UTF-8"));
+		}
+		return 0;
+	}
+
+	/** The four hex digits of a <code>\\u</code> escape */
+	private char readHexChar() throws IOException, ParseException {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			int digit = Character.digit((char) readRaw(), 16);
+			if (digit < 0) {
+				throw new ParseException("Invalid \\u escape");
+			}
+			value = (value << 4) | digit;
+		}
+		return (char) value;
+	}
+
+	/**
+	 * Skip over the next value, whatever its type, without keeping any of it.
+	 */
+	private void skipValue() throws IOException, ParseException {
+		int depth = 0;
+		do {
+			int c = peek();
+			switch (c) {
+			case '{':
+			case '[':
+				position++;
+				depth++;
+				break;
+			case '}':
+			case ']':
+				position++;
+				depth--;
+				break;
+			case '"':
+				position++;
+				skipStringBody();
+				break;
+			case ',':
+			case ':':
+				if (depth == 0) {
+					throw new ParseException("Unexpected '" + (char) c + "'");
+				}
+				position++;
+				break;
+			default:
+				skipLiteral();
+				break;
+			}
+		} while (depth > 0);
+
+		if (depth < 0) {
+			throw new ParseException("Unbalanced brackets");
+		}
+	}
+
+	private void skipStringBody() throws IOException, ParseException {
+		while (true) {
+			int c = readRaw();
+			if (c == '"') {
+				return;
+			}
+			if (c == '\\') {
+				readRaw();
+			}
+		}
+	}
+
+	/** Skip a number, true, false or null */
+	private void skipLiteral() throws IOException, ParseException {
+		int c = peekRaw();
+		if (c == -1) {
+			throw new ParseException("Unexpected end of document");
+		}
+		while (c != -1 && c != ',' && c != '}' && c != ']' && c != ':' && !isWhitespace(c)) {
+			position++;
+			c = peekRaw();
+		}
+	}
+
+	/**
+	 * Consume the separator after a member or element.
+	 *
+	 * @return true if another member follows, false if the container was
+	 *         closed by <code>close</code>.
+	 */
+	private boolean nextMember(char close) throws IOException, ParseException {
+		int c = read();
+		if (c == ',') {
+			return true;
+		}
+		if (c == close) {
+			return false;
+		}
+		throw new ParseException("Expected ',' or '" + close + "' but found " + describe(c));
+	}
+
+	/** Consume <code>close</code> if it is next, for empty containers */
+	private boolean nextIsEnd(char close) throws IOException {
+		if (peek() == close) {
+			position++;
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(char expected) throws IOException, ParseException {
+		int c = read();
+		if (c != expected) {
+			throw new ParseException("Expected '" + expected + "' but found " + describe(c));
+		}
+	}
+
+	private void skip(int count) throws IOException, ParseException {
+		for (int i = 0; i < count; i++) {
+			readRaw();
+		}
+	}
+
+	/** Next non-whitespace byte, consumed. Fails at end of stream. */
+	private int read() throws IOException, ParseException {
+		int c = peek();
+		if (c == -1) {
+			throw new ParseException("Unexpected end of document");
+		}
+		position++;
+		return c;
+	}
+
+	/** Next byte, whitespace included, consumed. Fails at end of stream. */
+	private int readRaw() throws IOException, ParseException {
+		int c = peekRaw();
+		if (c == -1) {
+			throw new ParseException("Unexpected end of document");
+		}
+		position++;
+		return c;
+	}
+
+	/** Next non-whitespace byte, not consumed; -1 at end of stream */
+	private int peek() throws IOException {
+		int c = peekRaw();
+		while (c != -1 && isWhitespace(c)) {
+			position++;
+			c = peekRaw();
+		}
+		return c;
+	}
+
+	/** Next byte, not consumed; -1 at end of stream */
+	private int peekRaw() throws IOException {
+		if (position >= limit) {
+			limit = in.read(buffer);
+			position = 0;
+			if (limit <= 0) {
+				limit = 0;
+				return -1;
+			}
+		}
+		return buffer[position] & 0xff;
+	}
+
+	private static boolean isWhitespace(int c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+
+	private static String describe(int c) {
+		return c == -1 ? "end of document" : "'" + (char) c + "'";
+	}
+
+	private static boolean startsWith(CharSequence text, String prefix) {
+		int length = prefix.length();
+		if (text.length() < length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (text.charAt(i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean equals(StringBuilder sb, String s) {
+		int length = s.length();
+		if (sb.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (sb.charAt(i) != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
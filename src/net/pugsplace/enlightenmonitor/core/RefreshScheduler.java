@@ -0,0 +1,189 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Decides when each system should next be polled. The user's refresh rate is
+ * the baseline: systems whose output is moving quickly are polled more often,
+ * systems producing nothing (night) or holding steady back off, and failed
+ * fetches are retried with exponential backoff and jitter.
+ *
+ * Systems falling due within {@link #SLACK_MS} of each other are treated as
+ * due together, so one wakeup polls them all.
+ */
+public class RefreshScheduler {
+	/** Shortest interval between successful polls of one system */
+	public static final int MIN_REFRESH_TIME_MS = 5*60*1000;
+
+	/** Systems due within this long of a wakeup are polled by it */
+	public static final long SLACK_MS = 60 * 1000;
+
+	/** Longest interval an idle system backs off to, unless its base rate is longer */
+	public static final long MAX_IDLE_INTERVAL_MS = 2 * 60 * 60 * 1000;
+
+	/** First retry delay after a failure, doubled on each further failure */
+	public static final long RETRY_BASE_MS = 2 * 60 * 1000;
+	public static final long MAX_RETRY_MS = 60 * 60 * 1000;
+
+	/** Relative change in current output below which a poll counts as unchanged */
+	private static final double UNCHANGED_FRACTION = 0.01;
+
+	/** Relative change above which the system is polled faster than its base rate */
+	private static final double FAST_CHANGE_FRACTION = 0.2;
+
+	private static final int MAX_DOUBLINGS = 16;
+
+	private static final Logger log = Logger.getLogger("eSolarMonitor");
+
+	private final Map<String, SystemState> states = new HashMap<String, SystemState>();
+	private final Random random = new Random();
+
+	private static class SystemState {
+		long nextDue;
+		/** Interval chosen after the last successful poll, or 0 */
+		long interval;
+		int idlePolls;
+		int failures;
+		double lastWatts = Double.NaN;
+	}
+
+	/**
+	 * @param baseMs
+	 *            The user's refresh rate for the system.
+	 * @param lastRefresh
+	 *            When the system was last fetched, used until the scheduler
+	 *            has seen a poll of it in this process.
+	 * @return The time at which the system should next be polled.
+	 */
+	public synchronized long getNextDue(String systemId, long baseMs, long lastRefresh) {
+		SystemState state = states.get(systemId);
+		if (state == null) {
+			return lastRefresh + baseMs;
+		}
+		return state.nextDue;
+	}
+
+	public synchronized boolean isDue(String systemId, long now, long baseMs, long lastRefresh) {
+		return getNextDue(systemId, baseMs, lastRefresh) <= now + SLACK_MS;
+	}
+
+	/**
+	 * A reading is stale once it's twice as old as the interval it was due to
+	 * be replaced after, whether because polls are failing or haven't run.
+	 * Until the scheduler has seen a poll of the system, the base rate is
+	 * taken as that interval.
+	 *
+	 * @param timestampMillis
+	 *            When the reading was taken.
+	 */
+	public synchronized boolean isStale(String systemId, long timestampMillis, long now, long baseMs) {
+		SystemState state = states.get(systemId);
+		long interval = state == null || state.interval == 0 ? baseMs : state.interval;
+		return now - timestampMillis > 2 * interval;
+	}
+
+	/**
+	 * Record a successful poll and schedule the next one from how much the
+	 * output moved since the last.
+	 *
+	 * @return The time at which the system should next be polled.
+	 */
+	public synchronized long onSuccess(String systemId, SolarPerformance performance, long now, long baseMs) {
+		SystemState state = getState(systemId);
+		state.failures = 0;
+
+		double watts = performance.getRawCurrentWatts();
+		double change = Double.isNaN(state.lastWatts) ? 1 : Math.abs(watts - state.lastWatts)
+				/ Math.max(Math.abs(state.lastWatts), 1);
+		state.lastWatts = watts;
+
+		long interval;
+		if (watts <= 0 || change < UNCHANGED_FRACTION) {
+			// Night, or holding steady: back off towards the idle ceiling
+			state.idlePolls = Math.min(state.idlePolls + 1, MAX_DOUBLINGS);
+			interval = Math.min(baseMs << state.idlePolls, Math.max(MAX_IDLE_INTERVAL_MS, baseMs));
+		} else if (change > FAST_CHANGE_FRACTION) {
+			state.idlePolls = 0;
+			interval = Math.max(MIN_REFRESH_TIME_MS, baseMs / 2);
+		} else {
+			state.idlePolls = 0;
+			interval = baseMs;
+		}
+
+		state.interval = interval;
+		state.nextDue = now + interval;
+		return state.nextDue;
+	}
+
+	/**
+	 * Record a failed poll and schedule a retry.
+	 *
+	 * @return The time at which the system should next be polled.
+	 */
+	public synchronized long onFailure(String systemId, long now, long baseMs) {
+		SystemState state = getState(systemId);
+		state.failures = Math.min(state.failures + 1, MAX_DOUBLINGS);
+
+		long backoff = Math.min(RETRY_BASE_MS << (state.failures - 1), Math.min(MAX_RETRY_MS, baseMs));
+
+		// Equal jitter: half the backoff, plus a random part of the other half
+		long jittered = backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+		state.nextDue = now + jittered;
+		return state.nextDue;
+	}
+
+	/**
+	 * Forget what is known about a system so that it is due straight away,
+	 * for instance after it has been newly configured.
+	 */
+	public synchronized void reset(String systemId) {
+		SystemState state = getState(systemId);
+		state.nextDue = 0;
+		state.interval = 0;
+		state.idlePolls = 0;
+		state.failures = 0;
+		state.lastWatts = Double.NaN;
+	}
+
+	private SystemState getState(String systemId) {
+		SystemState state = states.get(systemId);
+		if (state == null) {
+			state = new SystemState();
+			states.put(systemId, state);
+		}
+		return state;
+	}
+
+	/**
+	 * Parse a refresh rate such as "30 minutes" or "1 hour" into milliseconds.
+	 * This is only the base rate; the scheduler adapts the actual polling
+	 * around it.
+	 */
+	public static long parseRefreshString(String refreshString) {
+		long millsPerSecond = 1000;
+		long secondsPerMinute = 60;
+		long minutesPerHour = 60;
+		
+		if (refreshString != null) {
+			String parts[] = refreshString.split(" ");
+			if (parts.length == 2) {
+				int amt = Integer.parseInt(parts[0]);
+				
+				if ("minutes".equals(parts[1]) || "minute".equals(parts[1])) {
+					return secondsPerMinute * millsPerSecond * amt;
+				}
+			
+				if ("hours".equals(parts[1]) || "hour".equals(parts[1])) {
+					return secondsPerMinute * millsPerSecond * minutesPerHour * amt;
+				}
+			}
+		}
+		
+		log.fine("Falling back to 30 minutes");
+		return secondsPerMinute * millsPerSecond * 30;
+	}
+}
@@ -0,0 +1,397 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds requests back to stay within the API's rate limits, rather than
+ * sending them and collecting 429s. Each host can have a token bucket, and
+ * so can each key: the system a request is for, or an API key. A request
+ * goes once a token is free in both.
+ *
+ * Requests waiting for tokens queue by priority, then in order of arrival.
+ * A token freed on a host goes to the most important request waiting on
+ * it, so under pressure systems on screen or in alert stay fresh and
+ * background polls are the ones that wait. A request held back only by its
+ * own key's bucket doesn't hold up others.
+ *
+ * When the server answers 429 anyway, {@link #backOff(String, long)} stops
+ * all requests to it until it says to retry.
+ */
+public class RequestAdmission {
+	/** Shown on a widget, or with an alert raised */
+	public static final int PRIORITY_HIGH = 0;
+	public static final int PRIORITY_NORMAL = 1;
+	/** Polled for the record, with nobody looking */
+	public static final int PRIORITY_BACKGROUND = 2;
+
+	/** Longest a request waits to be let through before failing */
+	public static final long DEFAULT_MAX_WAIT_MS = 60 * 1000;
+
+	/** Waiting requests are woken at least this often to check the time */
+	private static final long MAX_SLEEP_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/** Guarded by this */
+	private final Map<String, TokenBucket> hostBuckets = new HashMap<String, TokenBucket>();
+	private final Map<String, TokenBucket> keyBuckets = new HashMap<String, TokenBucket>();
+	private final Map<String, Long> hostBlockedUntil = new HashMap<String, Long>();
+	private double keyPerMinute = 0;
+	private int keyBurst = 0;
+	private Ticket[] waiting = new Ticket[16];
+	private int waitingCount = 0;
+	private long sequence = 0;
+
+	private final ConcurrentHashMap<String, Integer> priorities = new ConcurrentHashMap<String, Integer>();
+	private volatile int defaultPriority = PRIORITY_NORMAL;
+	private volatile long maxWaitMs = DEFAULT_MAX_WAIT_MS;
+
+	/**
+	 * Tokens that refill at a steady rate up to a burst.
+	 */
+	static class TokenBucket {
+		private final double perNano;
+		private final double capacity;
+		private double tokens;
+		private long updated;
+
+		TokenBucket(double perMinute, int burst, long now) {
+			// TimeUnit.MINUTES only arrived in API 9
+			this.perNano = perMinute / TimeUnit.SECONDS.toNanos(60);
+			this.capacity = Math.max(1, burst);
+			this.tokens = capacity;
+			this.updated = now;
+		}
+
+		private void refill(long now) {
+			if (now > updated) {
+				tokens = Math.min(capacity, tokens + (now - updated) * perNano);
+				updated = now;
+			}
+		}
+
+		boolean isAvailable(long now) {
+			refill(now);
+			return tokens >= 1;
+		}
+
+		void take() {
+			tokens -= 1;
+		}
+
+		/**
+		 * @return How long until a token is free, in nanoseconds.
+		 */
+		long getWait(long now) {
+			refill(now);
+			return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / perNano);
+		}
+	}
+
+	/**
+	 * A request waiting to be let through.
+	 */
+	private static class Ticket implements Comparable<Ticket> {
+		final String host;
+		final String key;
+		final int priority;
+		final long sequence;
+		boolean admitted = false;
+
+		Ticket(String host, String key, int priority, long sequence) {
+			this.host = host;
+			this.key = key;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		public int compareTo(Ticket other) {
+			if (priority != other.priority) {
+				return priority < other.priority ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Limit requests to a host.
+	 *
+	 * @param perMinute
+	 *            Sustained rate, or zero for no limit.
+	 * @param burst
+	 *            Requests that may go at once after a quiet spell.
+	 */
+	public synchronized void setHostLimit(String host, double perMinute, int burst) {
+		if (perMinute <= 0) {
+			hostBuckets.remove(host);
+		} else {
+			hostBuckets.put(host, new TokenBucket(perMinute, burst, System.nanoTime()));
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Limit requests for each key, every key having a bucket of its own.
+	 *
+	 * @param perMinute
+	 *            Sustained rate, or zero for no limit.
+	 * @param burst
+	 *            Requests that may go at once after a quiet spell.
+	 */
+	public synchronized void setKeyLimit(double perMinute, int burst) {
+		keyPerMinute = perMinute;
+		keyBurst = burst;
+		keyBuckets.clear();
+		notifyAll();
+	}
+
+	/**
+	 * @param priority
+	 *            Where requests for the key queue, from {@link #PRIORITY_HIGH}
+	 *            to {@link #PRIORITY_BACKGROUND}.
+	 */
+	public void setPriority(String key, int priority) {
+		priorities.put(key, priority);
+	}
+
+	/**
+	 * @param priority
+	 *            Where requests for keys without a priority of their own
+	 *            queue.
+	 */
+	public void setDefaultPriority(int priority) {
+		defaultPriority = priority;
+	}
+
+	/**
+	 * Put a key back at the default priority.
+	 */
+	public void clearPriority(String key) {
+		priorities.remove(key);
+	}
+
+	public int getPriority(String key) {
+		Integer priority = key == null ? null : priorities.get(key);
+		return priority != null ? priority : defaultPriority;
+	}
+
+	/**
+	 * @param maxWaitMs
+	 *            Longest a request waits to be let through before failing.
+	 */
+	public void setMaxWait(long maxWaitMs) {
+		this.maxWaitMs = maxWaitMs;
+	}
+
+	/**
+	 * Forget a key's priority and bucket, for instance once its system is no
+	 * longer watched.
+	 */
+	public synchronized void forget(String key) {
+		priorities.remove(key);
+		keyBuckets.remove(key);
+	}
+
+	/**
+	 * Stop all requests to a host for a while, as after a 429.
+	 */
+	public synchronized void backOff(String host, long retryAfterMs) {
+		long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryAfterMs);
+		Long current = hostBlockedUntil.get(host);
+		if (current == null || current - until < 0) {
+			hostBlockedUntil.put(host, until);
+		}
+	}
+
+	/**
+	 * Wait until a request may be sent.
+	 *
+	 * @param host
+	 *            Host the request is for.
+	 * @param key
+	 *            System or API key the request is for, or null if none.
+	 * @throws ApiException
+	 *             If it can't go within the maximum wait, or the thread is
+	 *             interrupted meanwhile.
+	 */
+	public void acquire(String host, String key) throws ApiException {
+		long start = System.nanoTime();
+		synchronized (this) {
+			if (!hostBuckets.containsKey(host) && keyPerMinute <= 0 && !isBlocked(host, start)) {
+				return;
+			}
+
+			Ticket ticket = new Ticket(host, key, getPriority(key), sequence++);
+			enqueue(ticket);
+			long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+			try {
+				while (true) {
+					long now = System.nanoTime();
+					long sleep = dispatch(now);
+					if (ticket.admitted) {
+						break;
+					}
+					if (now - deadline >= 0) {
+						remove(ticket);
+						Metrics.ADMISSION_TIMEOUTS.increment();
+						throw new ApiException("Held back by the rate limit for " + host + " too long");
+					}
+					TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, Math.min(Math.min(sleep, deadline - now),
+							MAX_SLEEP_NANOS)));
+				}
+			} catch (InterruptedException e) {
+				if (!ticket.admitted) {
+					remove(ticket);
+				}
+				Thread.currentThread().interrupt();
+				throw new ApiException("Interrupted waiting for the rate limit", e);
+			}
+		}
+		Metrics.ADMISSION_WAIT.recordSince(start);
+	}
+
+	/**
+	 * Let through whichever waiting requests can go now, most important
+	 * first.
+	 *
+	 * @return How long until another might go, in nanoseconds.
+	 */
+	private long dispatch(long now) {
+		Arrays.sort(waiting, 0, waitingCount);
+		long sleep = Long.MAX_VALUE;
+		boolean admitted = false;
+		Set<String> heldHosts = null;
+		int kept = 0;
+		for (int i = 0; i < waitingCount; i++) {
+			Ticket ticket = waiting[i];
+			long wait = getWait(ticket, now, heldHosts);
+			if (wait == 0) {
+				TokenBucket hostBucket = hostBuckets.get(ticket.host);
+				if (hostBucket != null) {
+					hostBucket.take();
+				}
+				TokenBucket keyBucket = getKeyBucket(ticket.key, now);
+				if (keyBucket != null) {
+					keyBucket.take();
+				}
+				ticket.admitted = true;
+				admitted = true;
+				continue;
+			}
+
+			if (wait > 0) {
+				sleep = Math.min(sleep, wait);
+				if (isHostHeld(ticket, now)) {
+					// Anything less important for this host waits behind it
+					if (heldHosts == null) {
+						heldHosts = new HashSet<String>();
+					}
+					heldHosts.add(ticket.host);
+				}
+			}
+			waiting[kept++] = ticket;
+		}
+		for (int i = kept; i < waitingCount; i++) {
+			waiting[i] = null;
+		}
+		waitingCount = kept;
+		if (admitted) {
+			notifyAll();
+		}
+		return sleep;
+	}
+
+	/**
+	 * @return Zero if the ticket can go now, how long until it might if
+	 *         held by a bucket or back-off, or -1 if it's behind a more
+	 *         important request for the same host.
+	 */
+	private long getWait(Ticket ticket, long now, Set<String> heldHosts) {
+		if (heldHosts != null && heldHosts.contains(ticket.host)) {
+			return -1;
+		}
+		long wait = isBlocked(ticket.host, now) ? hostBlockedUntil.get(ticket.host) - now : 0;
+		TokenBucket hostBucket = hostBuckets.get(ticket.host);
+		if (hostBucket != null) {
+			wait = Math.max(wait, hostBucket.getWait(now));
+		}
+		TokenBucket keyBucket = getKeyBucket(ticket.key, now);
+		if (keyBucket != null) {
+			wait = Math.max(wait, keyBucket.getWait(now));
+		}
+		return wait;
+	}
+
+	private boolean isBlocked(String host, long now) {
+		Long blockedUntil = hostBlockedUntil.get(host);
+		if (blockedUntil == null) {
+			return false;
+		}
+		if (blockedUntil - now > 0) {
+			return true;
+		}
+		hostBlockedUntil.remove(host);
+		return false;
+	}
+
+	/**
+	 * @return Whether the ticket waits on its host alone, so that anything
+	 *         less important for the host should wait behind it. One also
+	 *         waiting on its own key leaves the host's tokens to others.
+	 */
+	private boolean isHostHeld(Ticket ticket, long now) {
+		TokenBucket keyBucket = getKeyBucket(ticket.key, now);
+		if (keyBucket != null && !keyBucket.isAvailable(now)) {
+			return false;
+		}
+		if (isBlocked(ticket.host, now)) {
+			return true;
+		}
+		TokenBucket hostBucket = hostBuckets.get(ticket.host);
+		return hostBucket != null && !hostBucket.isAvailable(now);
+	}
+
+	private TokenBucket getKeyBucket(String key, long now) {
+		if (key == null || keyPerMinute <= 0) {
+			return null;
+		}
+		TokenBucket bucket = keyBuckets.get(key);
+		if (bucket == null) {
+			bucket = new TokenBucket(keyPerMinute, keyBurst, now);
+			keyBuckets.put(key, bucket);
+		}
+		return bucket;
+	}
+
+	private void enqueue(Ticket ticket) {
+		if (waitingCount == waiting.length) {
+			Ticket[] grown = new Ticket[waitingCount * 2];
+			System.arraycopy(waiting, 0, grown, 0, waitingCount);
+			waiting = grown;
+		}
+		waiting[waitingCount++] = ticket;
+	}
+
+	private void remove(Ticket ticket) {
+		for (int i = 0; i < waitingCount; i++) {
+			if (waiting[i] == ticket) {
+				System.arraycopy(waiting, i + 1, waiting, i, waitingCount - i - 1);
+				waiting[--waitingCount] = null;
+				notifyAll();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return How many requests are waiting to be let through.
+	 */
+	public synchronized int getWaiting() {
+		return waitingCount;
+	}
+}
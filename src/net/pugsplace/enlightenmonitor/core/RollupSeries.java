@@ -0,0 +1,104 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+/**
+ * A run of consecutive rollup buckets of one series, oldest first, as read
+ * from a {@link RollupStore}. Buckets without samples have a count of zero
+ * and NaN values.
+ */
+public class RollupSeries {
+	private final long[] starts;
+	private final int[] counts;
+	private final double[] mins;
+	private final double[] maxes;
+	private final double[] averages;
+
+	RollupSeries(long[] starts, int[] counts, double[] mins, double[] maxes, double[] averages) {
+		this.starts = starts;
+		this.counts = counts;
+		this.mins = mins;
+		this.maxes = maxes;
+		this.averages = averages;
+	}
+
+	public int size() {
+		return starts.length;
+	}
+
+	/**
+	 * @return When bucket <code>i</code> begins.
+	 */
+	public long getStart(int i) {
+		return starts[i];
+	}
+
+	public int getCount(int i) {
+		return counts[i];
+	}
+
+	public double getMin(int i) {
+		return mins[i];
+	}
+
+	public double getMax(int i) {
+		return maxes[i];
+	}
+
+	public double getAverage(int i) {
+		return averages[i];
+	}
+
+	/**
+	 * @return Whether any bucket has samples.
+	 */
+	public boolean hasData() {
+		for (int count : counts) {
+			if (count > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The largest maximum of any bucket, or NaN if none has samples.
+	 */
+	public double getHighest() {
+		double highest = Double.NaN;
+		for (int i = 0; i < maxes.length; i++) {
+			if (counts[i] > 0 && !(maxes[i] <= highest)) {
+				highest = maxes[i];
+			}
+		}
+		return highest;
+	}
+
+	/**
+	 * @return The smallest minimum of any bucket, or NaN if none has samples.
+	 */
+	public double getLowest() {
+		double lowest = Double.NaN;
+		for (int i = 0; i < mins.length; i++) {
+			if (counts[i] > 0 && !(mins[i] >= lowest)) {
+				lowest = mins[i];
+			}
+		}
+		return lowest;
+	}
+
+	/**
+	 * @return The average of every sample in the run, or NaN if there are
+	 *         none.
+	 */
+	public double getOverallAverage() {
+		double sum = 0;
+		long samples = 0;
+		for (int i = 0; i < averages.length; i++) {
+			if (counts[i] > 0) {
+				sum += averages[i] * counts[i];
+				samples += counts[i];
+			}
+		}
+		return samples == 0 ? Double.NaN : sum / samples;
+	}
+}
@@ -0,0 +1,220 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Hourly, daily and monthly rollups of one system's current output and
+ * energy produced today: the minimum, maximum and average of each, built up
+ * one sample at a time. Drawing a chart reads a handful of buckets rather
+ * than scanning the raw samples.
+ *
+ * Each resolution is a fixed ring of buckets in a memory-mapped file, so the
+ * file never grows past {@link #FILE_SIZE}. A bucket is found from its
+ * index alone (hours or days since the epoch in local time, or months since
+ * year 0), and remembers that index so a slot left over from a previous trip
+ * around the ring reads as empty.
+ */
+public class RollupStore {
+	public static final int HOURLY = 0;
+	public static final int DAILY = 1;
+	public static final int MONTHLY = 2;
+
+	/** Current output, in watts */
+	public static final int WATTS = 0;
+	/** Energy produced so far today, in watt-hours */
+	public static final int TODAY_WATT_HOURS = 1;
+
+	private static final int SERIES = 2;
+
+	/** Buckets kept at each resolution: a month of hours, two years of days and 25 years of months */
+	private static final int[] CAPACITY = { 31 * 24, 2 * 366, 25 * 12 };
+
+	/** Bucket index, sample count, then the min, max and sum of each series */
+	private static final int SLOT_SIZE = 8 + 4 + SERIES * 3 * 8;
+
+	/** Size of every rollup file */
+	public static final int FILE_SIZE = (CAPACITY[HOURLY] + CAPACITY[DAILY] + CAPACITY[MONTHLY]) * SLOT_SIZE;
+
+	private static final long HOUR_MS = 60 * 60 * 1000;
+	private static final long DAY_MS = 24 * HOUR_MS;
+
+	private final File file;
+	private final TimeZone timeZone;
+	private final Calendar calendar;
+	private RandomAccessFile raf = null;
+	private MappedByteBuffer map = null;
+
+	/**
+	 * @param timeZone
+	 *            Where hours, days and months begin.
+	 */
+	public RollupStore(File file, TimeZone timeZone) {
+		this.file = file;
+		this.timeZone = timeZone;
+		this.calendar = Calendar.getInstance(timeZone);
+	}
+
+	/**
+	 * @return Whether the file has been created yet, i.e. whether the rollups
+	 *         need backfilling from existing samples.
+	 */
+	public boolean exists() {
+		return file.exists();
+	}
+
+	/**
+	 * Add a sample to the bucket it falls in at each resolution.
+	 */
+	public synchronized void add(long timeMillis, double watts, double todayWattHours) throws IOException {
+		MappedByteBuffer buffer = open();
+		for (int resolution = HOURLY; resolution <= MONTHLY; resolution++) {
+			long index = getIndex(resolution, timeMillis);
+			int pos = getPosition(resolution, index);
+
+			int count = buffer.getInt(pos + 8);
+			if (count == 0 || buffer.getLong(pos) != index) {
+				// A new bucket, or one left over from an earlier trip around the ring
+				buffer.putLong(pos, index);
+				count = 0;
+			}
+
+			update(buffer, pos + 12, count, watts);
+			update(buffer, pos + 12 + 24, count, todayWattHours);
+			buffer.putInt(pos + 8, count + 1);
+		}
+	}
+
+	/**
+	 * Read the buckets of one series, oldest first.
+	 *
+	 * @param resolution
+	 *            {@link #HOURLY}, {@link #DAILY} or {@link #MONTHLY}.
+	 * @param series
+	 *            {@link #WATTS} or {@link #TODAY_WATT_HOURS}.
+	 * @param endMillis
+	 *            A time in the newest bucket wanted.
+	 * @param count
+	 *            How many buckets to read, at most the resolution's capacity.
+	 */
+	public synchronized RollupSeries read(int resolution, int series, long endMillis, int count) throws IOException {
+		count = Math.min(count, CAPACITY[resolution]);
+		MappedByteBuffer buffer = open();
+		long endIndex = getIndex(resolution, endMillis);
+
+		long[] starts = new long[count];
+		int[] counts = new int[count];
+		double[] mins = new double[count];
+		double[] maxes = new double[count];
+		double[] averages = new double[count];
+
+		for (int i = 0; i < count; i++) {
+			long index = endIndex - count + 1 + i;
+			int pos = getPosition(resolution, index);
+			starts[i] = getStart(resolution, index);
+
+			int samples = buffer.getInt(pos + 8);
+			if (samples == 0 || buffer.getLong(pos) != index) {
+				mins[i] = maxes[i] = averages[i] = Double.NaN;
+				continue;
+			}
+
+			int values = pos + 12 + series * 24;
+			counts[i] = samples;
+			mins[i] = buffer.getDouble(values);
+			maxes[i] = buffer.getDouble(values + 8);
+			averages[i] = buffer.getDouble(values + 16) / samples;
+		}
+		return new RollupSeries(starts, counts, mins, maxes, averages);
+	}
+
+	public synchronized void close() throws IOException {
+		if (raf != null) {
+			map.force();
+			map = null;
+			raf.close();
+			raf = null;
+		}
+	}
+
+	private static void update(MappedByteBuffer buffer, int pos, int count, double value) {
+		if (count == 0) {
+			buffer.putDouble(pos, value);
+			buffer.putDouble(pos + 8, value);
+			buffer.putDouble(pos + 16, value);
+		} else {
+			buffer.putDouble(pos, Math.min(buffer.getDouble(pos), value));
+			buffer.putDouble(pos + 8, Math.max(buffer.getDouble(pos + 8), value));
+			buffer.putDouble(pos + 16, buffer.getDouble(pos + 16) + value);
+		}
+	}
+
+	private long getIndex(int resolution, long timeMillis) {
+		switch (resolution) {
+		case HOURLY:
+			return floorDiv(timeMillis + timeZone.getOffset(timeMillis), HOUR_MS);
+		case DAILY:
+			return floorDiv(timeMillis + timeZone.getOffset(timeMillis), DAY_MS);
+		default:
+			calendar.setTimeInMillis(timeMillis);
+			return calendar.get(Calendar.YEAR) * 12L + calendar.get(Calendar.MONTH);
+		}
+	}
+
+	/**
+	 * @return When the bucket with the given index begins.
+	 */
+	private long getStart(int resolution, long index) {
+		switch (resolution) {
+		case HOURLY:
+			return toUtc(index * HOUR_MS);
+		case DAILY:
+			return toUtc(index * DAY_MS);
+		default:
+			calendar.clear();
+			calendar.set((int) (index / 12), (int) (index % 12), 1);
+			return calendar.getTimeInMillis();
+		}
+	}
+
+	private long toUtc(long localMillis) {
+		return localMillis - timeZone.getOffset(localMillis - timeZone.getRawOffset());
+	}
+
+	private static int getPosition(int resolution, long index) {
+		int base = 0;
+		for (int i = 0; i < resolution; i++) {
+			base += CAPACITY[i];
+		}
+		int slot = (int) (((index % CAPACITY[resolution]) + CAPACITY[resolution]) % CAPACITY[resolution]);
+		return (base + slot) * SLOT_SIZE;
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+	}
+
+	private MappedByteBuffer open() throws IOException {
+		if (map == null) {
+			File parent = file.getParentFile();
+			if (parent != null && !parent.exists()) {
+				parent.mkdirs();
+			}
+			raf = new RandomAccessFile(file, "rw");
+			if (raf.length() != FILE_SIZE) {
+				// New, or laid out differently: start again
+				raf.setLength(0);
+				raf.setLength(FILE_SIZE);
+			}
+			map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+		}
+		return map;
+	}
+}
@@ -0,0 +1,152 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+/**
+ * One reading of a system in whole numbers: the time in epoch milliseconds,
+ * output in milliwatts and energy in milliwatt-hours, with a bit for each
+ * value saying whether it was actually known. Unlike a
+ * {@link SolarPerformance} it holds no display strings, so samples can be
+ * sorted, compared, summed and shared freely. Many at once
+ * are better kept in a {@link SampleBatch}.
+ *
+ * A value is taken to be unknown when it's negative, which is how
+ * {@link PerformanceParser#getWatts(double, CharSequence)} reports units it
+ * didn't recognize; no real reading is below zero.
+ */
+public final class Sample implements Comparable<Sample> {
+	public static final int VALID_CURRENT = 1;
+	public static final int VALID_TODAY = 1 << 1;
+	public static final int VALID_WEEK = 1 << 2;
+	public static final int VALID_MONTH = 1 << 3;
+	public static final int VALID_LIFETIME = 1 << 4;
+	public static final int VALID_ALL = VALID_CURRENT | VALID_TODAY | VALID_WEEK | VALID_MONTH | VALID_LIFETIME;
+
+	private final long timestampMillis;
+	private final long milliwatts;
+	private final long todayMilliwattHours;
+	private final long weekMilliwattHours;
+	private final long monthMilliwattHours;
+	private final long lifetimeMilliwattHours;
+	private final int flags;
+
+	public Sample(long timestampMillis, long milliwatts, long todayMilliwattHours, long weekMilliwattHours,
+			long monthMilliwattHours, long lifetimeMilliwattHours, int flags) {
+		this.timestampMillis = timestampMillis;
+		this.milliwatts = milliwatts;
+		this.todayMilliwattHours = todayMilliwattHours;
+		this.weekMilliwattHours = weekMilliwattHours;
+		this.monthMilliwattHours = monthMilliwattHours;
+		this.lifetimeMilliwattHours = lifetimeMilliwattHours;
+		this.flags = flags;
+	}
+
+	/**
+	 * Convert a reading, marking any negative value as unknown.
+	 */
+	public static Sample of(SolarPerformance performance) {
+		long current = toMilli(performance.getRawCurrentWatts());
+		long today = toMilli(performance.getRawTodayWattHours());
+		long week = toMilli(performance.getRawWeekWattHours());
+		long month = toMilli(performance.getRawMonthWattHours());
+		long lifetime = toMilli(performance.getRawLifetimeWattHours());
+		return new Sample(performance.getTimestampMillis(), current, today, week, month, lifetime, getValidity(
+				current, today, week, month, lifetime));
+	}
+
+	/**
+	 * @return Watts or watt-hours in milliunits, rounded to the nearest.
+	 */
+	public static long toMilli(double value) {
+		return Math.round(value * 1000);
+	}
+
+	/**
+	 * @return The validity bits of the given values: set for each that isn't
+	 *         negative.
+	 */
+	public static int getValidity(long current, long today, long week, long month, long lifetime) {
+		return (current >= 0 ? VALID_CURRENT : 0) | (today >= 0 ? VALID_TODAY : 0) | (week >= 0 ? VALID_WEEK : 0)
+				| (month >= 0 ? VALID_MONTH : 0) | (lifetime >= 0 ? VALID_LIFETIME : 0);
+	}
+
+	/**
+	 * @return A new reading with the same values, for display.
+	 */
+	public SolarPerformance toPerformance() {
+		return new SolarPerformance(timestampMillis, milliwatts / 1000.0, todayMilliwattHours / 1000.0,
+				weekMilliwattHours / 1000.0, monthMilliwattHours / 1000.0, lifetimeMilliwattHours / 1000.0);
+	}
+
+	public long getTimestampMillis() {
+		return timestampMillis;
+	}
+
+	public long getMilliwatts() {
+		return milliwatts;
+	}
+
+	public long getTodayMilliwattHours() {
+		return todayMilliwattHours;
+	}
+
+	public long getWeekMilliwattHours() {
+		return weekMilliwattHours;
+	}
+
+	public long getMonthMilliwattHours() {
+		return monthMilliwattHours;
+	}
+
+	public long getLifetimeMilliwattHours() {
+		return lifetimeMilliwattHours;
+	}
+
+	/**
+	 * @return The validity bits, {@link #VALID_CURRENT} and so on.
+	 */
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * @return Whether every one of the given validity bits is set.
+	 */
+	public boolean isValid(int bits) {
+		return (flags & bits) == bits;
+	}
+
+	/**
+	 * Samples order by time.
+	 */
+	public int compareTo(Sample other) {
+		return timestampMillis < other.timestampMillis ? -1 : (timestampMillis == other.timestampMillis ? 0 : 1);
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof Sample)) {
+			return false;
+		}
+		Sample other = (Sample) o;
+		return timestampMillis == other.timestampMillis && milliwatts == other.milliwatts
+				&& todayMilliwattHours == other.todayMilliwattHours && weekMilliwattHours == other.weekMilliwattHours
+				&& monthMilliwattHours == other.monthMilliwattHours
+				&& lifetimeMilliwattHours == other.lifetimeMilliwattHours && flags == other.flags;
+	}
+
+	public int hashCode() {
+		long h = timestampMillis;
+		h = h * 31 + milliwatts;
+		h = h * 31 + todayMilliwattHours;
+		h = h * 31 + weekMilliwattHours;
+		h = h * 31 + monthMilliwattHours;
+		h = h * 31 + lifetimeMilliwattHours;
+		h = h * 31 + flags;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	public String toString() {
+		return timestampMillis + " C: " + milliwatts + "mW, T: " + todayMilliwattHours + "mWh, W: "
+				+ weekMilliwattHours + "mWh, M: " + monthMilliwattHours + "mWh, L: " + lifetimeMilliwattHours
+				+ "mWh, valid: " + Integer.toBinaryString(flags);
+	}
+}
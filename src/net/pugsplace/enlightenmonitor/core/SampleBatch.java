@@ -0,0 +1,167 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+/**
+ * Many {@link Sample}s kept as columns of primitives, one array per field,
+ * so a long history costs 52 bytes a sample with no object per sample, and
+ * a scan over one field runs down a single array. A batch is meant to be
+ * cleared and filled again rather than thrown away; its arrays only grow.
+ *
+ * Not thread safe.
+ */
+public final class SampleBatch {
+	private long[] timestamps;
+	private long[] milliwatts;
+	private long[] todayMilliwattHours;
+	private long[] weekMilliwattHours;
+	private long[] monthMilliwattHours;
+	private long[] lifetimeMilliwattHours;
+	private int[] flags;
+	private int size = 0;
+
+	public SampleBatch() {
+		this(64);
+	}
+
+	/**
+	 * @param capacity
+	 *            Samples the batch holds before it has to grow.
+	 */
+	public SampleBatch(int capacity) {
+		capacity = Math.max(1, capacity);
+		timestamps = new long[capacity];
+		milliwatts = new long[capacity];
+		todayMilliwattHours = new long[capacity];
+		weekMilliwattHours = new long[capacity];
+		monthMilliwattHours = new long[capacity];
+		lifetimeMilliwattHours = new long[capacity];
+		flags = new int[capacity];
+	}
+
+	/**
+	 * Empty the batch, keeping its arrays for the next fill.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void add(long timestampMillis, long milliwatts, long todayMilliwattHours, long weekMilliwattHours,
+			long monthMilliwattHours, long lifetimeMilliwattHours, int flags) {
+		if (size == timestamps.length) {
+			int capacity = size * 2;
+			timestamps = grow(timestamps, capacity);
+			this.milliwatts = grow(this.milliwatts, capacity);
+			this.todayMilliwattHours = grow(this.todayMilliwattHours, capacity);
+			this.weekMilliwattHours = grow(this.weekMilliwattHours, capacity);
+			this.monthMilliwattHours = grow(this.monthMilliwattHours, capacity);
+			this.lifetimeMilliwattHours = grow(this.lifetimeMilliwattHours, capacity);
+			this.flags = grow(this.flags, capacity);
+		}
+		timestamps[size] = timestampMillis;
+		this.milliwatts[size] = milliwatts;
+		this.todayMilliwattHours[size] = todayMilliwattHours;
+		this.weekMilliwattHours[size] = weekMilliwattHours;
+		this.monthMilliwattHours[size] = monthMilliwattHours;
+		this.lifetimeMilliwattHours[size] = lifetimeMilliwattHours;
+		this.flags[size] = flags;
+		size++;
+	}
+
+	public void add(Sample sample) {
+		add(sample.getTimestampMillis(), sample.getMilliwatts(), sample.getTodayMilliwattHours(), sample
+				.getWeekMilliwattHours(), sample.getMonthMilliwattHours(), sample.getLifetimeMilliwattHours(), sample
+				.getFlags());
+	}
+
+	/**
+	 * Add a sample given in watts and watt-hours, marking any negative value
+	 * as unknown.
+	 */
+	public void add(long timestampMillis, double watts, double todayWattHours, double weekWattHours,
+			double monthWattHours, double lifetimeWattHours) {
+		long current = Sample.toMilli(watts);
+		long today = Sample.toMilli(todayWattHours);
+		long week = Sample.toMilli(weekWattHours);
+		long month = Sample.toMilli(monthWattHours);
+		long lifetime = Sample.toMilli(lifetimeWattHours);
+		add(timestampMillis, current, today, week, month, lifetime, Sample.getValidity(current, today, week, month,
+				lifetime));
+	}
+
+	public long getTimestampMillis(int index) {
+		check(index);
+		return timestamps[index];
+	}
+
+	public long getMilliwatts(int index) {
+		check(index);
+		return milliwatts[index];
+	}
+
+	public long getTodayMilliwattHours(int index) {
+		check(index);
+		return todayMilliwattHours[index];
+	}
+
+	public long getWeekMilliwattHours(int index) {
+		check(index);
+		return weekMilliwattHours[index];
+	}
+
+	public long getMonthMilliwattHours(int index) {
+		check(index);
+		return monthMilliwattHours[index];
+	}
+
+	public long getLifetimeMilliwattHours(int index) {
+		check(index);
+		return lifetimeMilliwattHours[index];
+	}
+
+	public int getFlags(int index) {
+		check(index);
+		return flags[index];
+	}
+
+	/**
+	 * @return The sample at the index as an object of its own.
+	 */
+	public Sample get(int index) {
+		check(index);
+		return new Sample(timestamps[index], milliwatts[index], todayMilliwattHours[index],
+				weekMilliwattHours[index], monthMilliwattHours[index], lifetimeMilliwattHours[index], flags[index]);
+	}
+
+	/**
+	 * @return Timestamp of the last sample added, or -1 if there are none.
+	 */
+	public long getLastTimestamp() {
+		return size == 0 ? -1 : timestamps[size - 1];
+	}
+
+	private void check(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Sample " + index + " of " + size);
+		}
+	}
+
+	private static long[] grow(long[] array, int length) {
+		long[] copy = new long[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+
+	private static int[] grow(int[] array, int length) {
+		int[] copy = new int[length];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+		return copy;
+	}
+}
@@ -0,0 +1,254 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only time series of {@link SolarPerformance} samples for one system.
+ * Long runs of samples are best read into a {@link SampleBatch}.
+ *
+ * Each sample is a fixed-width record: the timestamp as a long followed by
+ * the five watt and watt-hour values as doubles. Fixed records keep appends
+ * O(1) and let a range read binary search the timestamps of a memory-mapped
+ * file instead of scanning it. Samples older than the retention period are
+ * dropped by {@link #compact(long)}, which rewrites the file.
+ */
+public class SampleStore {
+	/** Size of one record: timestamp plus five values */
+	public static final int RECORD_SIZE = 8 + 5 * 8;
+
+	private final File file;
+	private RandomAccessFile raf = null;
+	private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+
+	public SampleStore(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Append a sample. Samples must arrive in time order; one older than the
+	 * newest stored sample is ignored so the file stays sorted.
+	 *
+	 * @return true if the sample was written.
+	 */
+	public synchronized boolean append(SolarPerformance sample) throws IOException {
+		FileChannel channel = open();
+		long size = recordCount() * RECORD_SIZE;
+
+		if (size > 0 && readTimestamp(channel, size - RECORD_SIZE) > sample.getTimestampMillis()) {
+			return false;
+		}
+
+		record.clear();
+		record.putLong(sample.getTimestampMillis());
+		record.putDouble(sample.getRawCurrentWatts());
+		record.putDouble(sample.getRawTodayWattHours());
+		record.putDouble(sample.getRawWeekWattHours());
+		record.putDouble(sample.getRawMonthWattHours());
+		record.putDouble(sample.getRawLifetimeWattHours());
+		record.flip();
+
+		while (record.hasRemaining()) {
+			channel.write(record, size + record.position());
+		}
+		return true;
+	}
+
+	/**
+	 * @return The newest sample, or null if the store is empty.
+	 */
+	public synchronized SolarPerformance readLast() throws IOException {
+		long count = recordCount();
+		if (count == 0) {
+			return null;
+		}
+
+		FileChannel channel = open();
+		record.clear();
+		long offset = (count - 1) * RECORD_SIZE;
+		while (record.hasRemaining()) {
+			if (channel.read(record, offset + record.position()) < 0) {
+				return null;
+			}
+		}
+		record.flip();
+		return decode(record);
+	}
+
+	/**
+	 * Read every sample with <code>fromMillis &lt;= timestamp &lt; toMillis</code>,
+	 * oldest first.
+	 */
+	public List<SolarPerformance> read(long fromMillis, long toMillis) throws IOException {
+		return read(fromMillis, toMillis, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Read at most <code>maxCount</code> of the samples with
+	 * <code>fromMillis &lt;= timestamp &lt; toMillis</code>, oldest first.
+	 */
+	public synchronized List<SolarPerformance> read(long fromMillis, long toMillis, int maxCount)
+			throws IOException {
+		List<SolarPerformance> samples = new ArrayList<SolarPerformance>();
+		long count = recordCount();
+		if (count == 0) {
+			return samples;
+		}
+
+		MappedByteBuffer map = open().map(FileChannel.MapMode.READ_ONLY, 0, count * RECORD_SIZE);
+		for (int index = firstAtOrAfter(map, (int) count, fromMillis); index < count; index++) {
+			map.position(index * RECORD_SIZE);
+			if (map.getLong(index * RECORD_SIZE) >= toMillis || samples.size() >= maxCount) {
+				break;
+			}
+			samples.add(decode(map));
+		}
+		return samples;
+	}
+
+	/**
+	 * Read at most <code>maxCount</code> of the samples with
+	 * <code>fromMillis &lt;= timestamp &lt; toMillis</code> onto the end of a
+	 * batch, oldest first, without an object per sample.
+	 *
+	 * @return How many samples were added.
+	 */
+	public synchronized int read(long fromMillis, long toMillis, int maxCount, SampleBatch into)
+			throws IOException {
+		long count = recordCount();
+		if (count == 0) {
+			return 0;
+		}
+
+		MappedByteBuffer map = open().map(FileChannel.MapMode.READ_ONLY, 0, count * RECORD_SIZE);
+		int added = 0;
+		for (int index = firstAtOrAfter(map, (int) count, fromMillis); index < count && added < maxCount; index++) {
+			int offset = index * RECORD_SIZE;
+			long timestamp = map.getLong(offset);
+			if (timestamp >= toMillis) {
+				break;
+			}
+			into.add(timestamp, map.getDouble(offset + 8), map.getDouble(offset + 16), map.getDouble(offset + 24), map
+					.getDouble(offset + 32), map.getDouble(offset + 40));
+			added++;
+		}
+		return added;
+	}
+
+	/**
+	 * Drop every sample older than <code>cutoffMillis</code>. The surviving
+	 * records are written to a new file which then replaces the old one.
+	 */
+	public synchronized void compact(long cutoffMillis) throws IOException {
+		long count = recordCount();
+		if (count == 0) {
+			return;
+		}
+
+		FileChannel channel = open();
+		if (readTimestamp(channel, 0) >= cutoffMillis) {
+			return;
+		}
+
+		MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, count * RECORD_SIZE);
+		int first = firstAtOrAfter(map, (int) count, cutoffMillis);
+		map.position(first * RECORD_SIZE);
+
+		File compacted = new File(file.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+		try {
+			out.setLength(0);
+			FileChannel outChannel = out.getChannel();
+			while (map.hasRemaining()) {
+				outChannel.write(map);
+			}
+			outChannel.force(true);
+		} finally {
+			out.close();
+		}
+
+		close();
+		if (!compacted.renameTo(file)) {
+			throw new IOException("Couldn't replace " + file + " with compacted samples");
+		}
+	}
+
+	/**
+	 * @return The timestamp of the oldest sample, or -1 if the store is empty.
+	 */
+	public synchronized long getOldestTimestamp() throws IOException {
+		if (recordCount() == 0) {
+			return -1;
+		}
+		return readTimestamp(open(), 0);
+	}
+
+	public synchronized void close() throws IOException {
+		if (raf != null) {
+			raf.close();
+			raf = null;
+		}
+	}
+
+	private FileChannel open() throws IOException {
+		if (raf == null) {
+			File parent = file.getParentFile();
+			if (parent != null && !parent.exists()) {
+				parent.mkdirs();
+			}
+			raf = new RandomAccessFile(file, "rw");
+
+			// Drop any partial record left by an interrupted append
+			long length = raf.length();
+			if (length % RECORD_SIZE != 0) {
+				raf.setLength(length - length % RECORD_SIZE);
+			}
+		}
+		return raf.getChannel();
+	}
+
+	private long recordCount() throws IOException {
+		if (raf == null && !file.exists()) {
+			return 0;
+		}
+		return open().size() / RECORD_SIZE;
+	}
+
+	private long readTimestamp(FileChannel channel, long offset) throws IOException {
+		ByteBuffer timestamp = ByteBuffer.allocate(8);
+		while (timestamp.hasRemaining()) {
+			if (channel.read(timestamp, offset + timestamp.position()) < 0) {
+				throw new IOException("Truncated sample at " + offset);
+			}
+		}
+		return timestamp.getLong(0);
+	}
+
+	/** Binary search for the first record whose timestamp is at least <code>millis</code> */
+	private static int firstAtOrAfter(ByteBuffer map, int count, long millis) {
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (map.getLong(mid * RECORD_SIZE) < millis) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/** Decode the record at the buffer's position, advancing past it */
+	private static SolarPerformance decode(ByteBuffer buffer) {
+		return new SolarPerformance(buffer.getLong(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble(),
+				buffer.getDouble(), buffer.getDouble());
+	}
+}
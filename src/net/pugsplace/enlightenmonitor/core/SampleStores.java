@@ -0,0 +1,276 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TimeZone;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The {@link SampleStore} and {@link RollupStore} of every system, kept as
+ * files named after the system in one directory. Only the most recently used
+ * systems' files are held open, so a process watching many thousands of
+ * systems doesn't run out of file handles.
+ *
+ * The stores themselves are only used through the methods here, which hold
+ * a system's entry while they work, so an entry is never closed under a
+ * caller nor opened twice for one file; a system in use when the limit is
+ * passed is closed once its last user is done. Backfilling a system's
+ * rollups can take a while, so it runs outside the lock on the open systems,
+ * with only that system's other callers waiting for it.
+ *
+ * Storage per system is bounded: raw samples are compacted away after
+ * {@link #RETENTION_MS}, and the rollups are a fixed {@link RollupStore#FILE_SIZE}.
+ */
+public class SampleStores {
+	/** How long samples are kept before compaction drops them */
+	public static final long RETENTION_MS = 365L * 24 * 60 * 60 * 1000;
+
+	/** Compaction waits until this much expired data has built up */
+	private static final long COMPACT_SLACK_MS = 30L * 24 * 60 * 60 * 1000;
+
+	/** Samples read at a time when building rollups */
+	private static final int BACKFILL_CHUNK = 4096;
+
+	private static final Logger log = Logger.getLogger("eSolarMonitor");
+
+	private final File directory;
+	private final int maxOpen;
+	private final TimeZone timeZone;
+
+	/** Open systems, least recently used first; guarded by itself */
+	private final LinkedHashMap<String, Stores> stores;
+
+	private static class Stores {
+		final SampleStore samples;
+		final RollupStore rollups;
+		/** Methods using the stores right now; guarded by the map */
+		int users = 0;
+		/** False while the rollups are being backfilled; guarded by the map */
+		boolean ready = false;
+
+		Stores(SampleStore samples, RollupStore rollups) {
+			this.samples = samples;
+			this.rollups = rollups;
+		}
+	}
+
+	/**
+	 * @param directory
+	 *            Where the sample files live. Created if missing.
+	 * @param maxOpen
+	 *            How many systems' files may be held open at once.
+	 */
+	public SampleStores(File directory, int maxOpen) {
+		this.directory = directory;
+		this.maxOpen = Math.max(1, maxOpen);
+		this.timeZone = TimeZone.getDefault();
+		this.stores = new LinkedHashMap<String, Stores>(16, 0.75f, true);
+		directory.mkdirs();
+	}
+
+	/**
+	 * @return The newest sample of a system, or null if it has none.
+	 * @see SampleStore#readLast()
+	 */
+	public SolarPerformance readLast(String systemId) throws IOException {
+		Stores system = acquire(systemId);
+		try {
+			return system.samples.readLast();
+		} finally {
+			release(system);
+		}
+	}
+
+	/**
+	 * Read samples of a system onto the end of a batch.
+	 *
+	 * @return How many samples were added.
+	 * @see SampleStore#read(long, long, int, SampleBatch)
+	 */
+	public int read(String systemId, long fromMillis, long toMillis, int maxCount, SampleBatch into)
+			throws IOException {
+		Stores system = acquire(systemId);
+		try {
+			return system.samples.read(fromMillis, toMillis, maxCount, into);
+		} finally {
+			release(system);
+		}
+	}
+
+	/**
+	 * Read hourly, daily or monthly rollups of a system.
+	 *
+	 * @see RollupStore#read(int, int, long, int)
+	 */
+	public RollupSeries readRollups(String systemId, int resolution, int series, long endMillis, int count)
+			throws IOException {
+		Stores system = acquire(systemId);
+		try {
+			return system.rollups.read(resolution, series, endMillis, count);
+		} finally {
+			release(system);
+		}
+	}
+
+	/**
+	 * Append a sample to the system's history and rollups, compacting away
+	 * samples past the retention period once enough of them have built up.
+	 */
+	public void record(String systemId, SolarPerformance sample) {
+		Stores system = acquire(systemId);
+		try {
+			// An out of order sample would be counted twice over by the rollups
+			if (system.samples.append(sample)) {
+				system.rollups.add(sample.getTimestampMillis(), sample.getRawCurrentWatts(), sample
+						.getRawTodayWattHours());
+			}
+
+			long oldest = system.samples.getOldestTimestamp();
+			long cutoff = sample.getTimestampMillis() - RETENTION_MS;
+			if (oldest >= 0 && oldest < cutoff - COMPACT_SLACK_MS) {
+				log.info("Compacting samples for " + systemId);
+				system.samples.compact(cutoff);
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't record sample for " + systemId, e);
+		} finally {
+			release(system);
+		}
+	}
+
+	/**
+	 * Close every store not in use right now. They reopen on next use.
+	 */
+	public void closeAll() {
+		synchronized (stores) {
+			for (Iterator<Stores> iter = stores.values().iterator(); iter.hasNext();) {
+				Stores system = iter.next();
+				if (system.users == 0) {
+					close(system);
+					iter.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Open a system's stores if need be and mark them in use, so they aren't
+	 * closed until {@link #release(Stores) released}.
+	 */
+	private Stores acquire(String systemId) {
+		Stores system;
+		synchronized (stores) {
+			system = stores.get(systemId);
+			if (system != null) {
+				system.users++;
+				awaitReady(system);
+				evict();
+				return system;
+			}
+
+			// Install IDs come from the user, so keep only filename-safe characters
+			String baseName = systemId.replaceAll("[^A-Za-z0-9_-]", "_");
+			SampleStore samples = new SampleStore(new File(directory, baseName + ".dat"));
+			RollupStore rollups = new RollupStore(new File(directory, baseName + ".rollup"), timeZone);
+			system = new Stores(samples, rollups);
+			system.ready = rollups.exists();
+			system.users++;
+			stores.put(systemId, system);
+			evict();
+			if (system.ready) {
+				return system;
+			}
+		}
+
+		// Held in use meanwhile, so it can't be evicted under the backfill
+		try {
+			backfill(systemId, system.samples, system.rollups);
+		} finally {
+			synchronized (stores) {
+				system.ready = true;
+				stores.notifyAll();
+			}
+		}
+		return system;
+	}
+
+	/**
+	 * Wait for another caller to finish backfilling a system's rollups. Called
+	 * holding the map's lock, which the wait gives up meanwhile.
+	 */
+	private void awaitReady(Stores system) {
+		boolean interrupted = false;
+		while (!system.ready) {
+			try {
+				stores.wait();
+			} catch (InterruptedException e) {
+				// The backfill is bounded by the samples on disk, so finish waiting for it
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void release(Stores system) {
+		synchronized (stores) {
+			system.users--;
+			evict();
+		}
+	}
+
+	/**
+	 * Build the rollups of samples recorded before there were rollups.
+	 */
+	private static void backfill(String systemId, SampleStore samples, RollupStore rollups) {
+		try {
+			// A year of history a chunk at a time, through one reused batch
+			SampleBatch batch = new SampleBatch(BACKFILL_CHUNK);
+			long from = Long.MIN_VALUE;
+			int total = 0;
+			while (samples.read(from, Long.MAX_VALUE, BACKFILL_CHUNK, batch) > 0) {
+				for (int i = 0; i < batch.size(); i++) {
+					rollups.add(batch.getTimestampMillis(i), batch.getMilliwatts(i) / 1000.0, batch
+							.getTodayMilliwattHours(i) / 1000.0);
+				}
+				total += batch.size();
+				from = batch.getLastTimestamp() + 1;
+				batch.clear();
+			}
+			if (total > 0) {
+				log.info("Built rollups of " + total + " samples for " + systemId);
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't build rollups for " + systemId, e);
+		}
+	}
+
+	/**
+	 * Close the least recently used systems not in use until no more than
+	 * maxOpen are open.
+	 */
+	private void evict() {
+		Iterator<Stores> iter = stores.values().iterator();
+		while (stores.size() > maxOpen && iter.hasNext()) {
+			Stores system = iter.next();
+			if (system.users == 0) {
+				close(system);
+				iter.remove();
+			}
+		}
+	}
+
+	private static void close(Stores system) {
+		try {
+			system.samples.close();
+			system.rollups.close();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't close sample store", e);
+		}
+	}
+}
@@ -0,0 +1,309 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Sends the samples recorded in the {@link SampleStores} on to a collector,
+ * many at a time, in the compact form of {@link BatchFormat}. Uploading in
+ * batches every so often rather than a sample per poll keeps the radio
+ * asleep, and a batch of deltas compresses to a few bytes a sample.
+ *
+ * The sample files are the outbox: each system has a cursor, the timestamp
+ * of its newest sample the collector has accepted, and whatever is newer
+ * still has to go. A batch is written to the outbox directory before it's
+ * sent, and only once the collector has answered 2xx are the cursors moved
+ * on and the file deleted. A batch interrupted by a failure, or by the
+ * process dying, is sent again as it was, with the same uploader ID and
+ * sequence, so the collector can tell it's already had it. The sequence
+ * and cursors are flushed to the settings before the batch file is written
+ * or deleted, so a crash can never reuse a sequence for different samples
+ * nor drop a batch whose cursors didn't stick.
+ *
+ * Uploads that fail are retried after a back-off that doubles from
+ * {@link #MIN_BACKOFF_MS} up to {@link #MAX_BACKOFF_MS}.
+ */
+public class SampleUploader {
+	public static final int DEFAULT_MAX_BATCH_SAMPLES = 5000;
+	public static final long MIN_BACKOFF_MS = 60 * 1000;
+	public static final long MAX_BACKOFF_MS = 60 * 60 * 1000;
+
+	private static final String KEY_UPLOADER_ID = "uploaderId";
+	private static final String KEY_SEQUENCE = "uploadSequence";
+	private static final String KEY_LAST_UPLOAD = "lastUpload";
+	private static final String KEY_CURSOR_PREFIX = "uploadedThrough_";
+	private static final String BATCH_SUFFIX = ".batch";
+
+	private static final Logger log = Logger.getLogger("eSolarMonitor");
+
+	private final EnlightenClient client;
+	private final String collectorUrl;
+	private final SampleStores samples;
+	private final Settings settings;
+	private final File outbox;
+
+	private volatile int maxBatchSamples = DEFAULT_MAX_BATCH_SAMPLES;
+	private volatile long intervalMs = 0;
+
+	/** Guarded by this */
+	private long backoffMs = 0;
+	private long retryAtMillis = 0;
+	/** Filled with each batch's samples, and reused for the next */
+	private final ArrayList<SampleBatch> buffers = new ArrayList<SampleBatch>();
+
+	/**
+	 * @param collectorUrl
+	 *            Where batches are POSTed.
+	 * @param settings
+	 *            Where the cursors and the uploader's identity are kept.
+	 * @param outbox
+	 *            Directory batches wait in until the collector has them.
+	 *            Created if missing.
+	 */
+	public SampleUploader(EnlightenClient client, String collectorUrl, SampleStores samples, Settings settings,
+			File outbox) {
+		this.client = client;
+		this.collectorUrl = collectorUrl;
+		this.samples = samples;
+		this.settings = settings;
+		this.outbox = outbox;
+		outbox.mkdirs();
+	}
+
+	/**
+	 * @param maxBatchSamples
+	 *            Most samples sent in one request.
+	 */
+	public void setMaxBatchSamples(int maxBatchSamples) {
+		this.maxBatchSamples = Math.max(1, maxBatchSamples);
+	}
+
+	/**
+	 * @param intervalMs
+	 *            Least time between uploads that went through, so samples
+	 *            gather into batches.
+	 */
+	public void setInterval(long intervalMs) {
+		this.intervalMs = intervalMs;
+	}
+
+	public String getCollectorUrl() {
+		return collectorUrl;
+	}
+
+	/**
+	 * @return Whether it's time to upload: the interval since the last upload
+	 *         has passed, and so has any back-off after a failure.
+	 */
+	public synchronized boolean isDue() {
+		long now = System.currentTimeMillis();
+		if (now < retryAtMillis) {
+			return false;
+		}
+		long last = settings.getLong(KEY_LAST_UPLOAD, 0);
+		return now - last >= intervalMs || now < last;
+	}
+
+	/**
+	 * Send whatever is left in the outbox, then every sample of the given
+	 * systems not yet sent, a batch at a time. This call blocks until done.
+	 *
+	 * @return How many samples the collector accepted.
+	 * @throws ApiException
+	 *             If the collector couldn't be reached or refused a batch;
+	 *             what went before it stays sent.
+	 * @throws IOException
+	 *             If the samples or the outbox couldn't be read or written.
+	 */
+	public synchronized int upload(Collection<String> systemIds) throws ApiException, IOException {
+		int uploaded = 0;
+		try {
+			for (File pending : getPending()) {
+				uploaded += send(pending);
+			}
+
+			while (true) {
+				File batch = createBatch(systemIds);
+				if (batch == null) {
+					break;
+				}
+				uploaded += send(batch);
+			}
+		} catch (ApiException e) {
+			fail();
+			throw e;
+		} catch (IOException e) {
+			fail();
+			throw e;
+		}
+
+		backoffMs = 0;
+		retryAtMillis = 0;
+		settings.putLong(KEY_LAST_UPLOAD, System.currentTimeMillis());
+		return uploaded;
+	}
+
+	/**
+	 * Stop uploading a system's samples, and forget how far it got.
+	 */
+	public void forget(String systemId) {
+		settings.remove(KEY_CURSOR_PREFIX + systemId);
+	}
+
+	private void fail() {
+		backoffMs = backoffMs == 0 ? MIN_BACKOFF_MS : Math.min(MAX_BACKOFF_MS, backoffMs * 2);
+		retryAtMillis = System.currentTimeMillis() + backoffMs;
+	}
+
+	/**
+	 * @return Batches in the outbox, oldest first.
+	 */
+	private File[] getPending() {
+		File[] files = outbox.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+		int count = 0;
+		for (File file : files) {
+			if (file.getName().endsWith(BATCH_SUFFIX)) {
+				files[count++] = file;
+			} else if (file.getName().endsWith(".tmp")) {
+				// Never finished writing, so never sent
+				file.delete();
+			}
+		}
+		File[] pending = new File[count];
+		System.arraycopy(files, 0, pending, 0, count);
+		// Named by zero-padded sequence, so name order is age order
+		Arrays.sort(pending);
+		return pending;
+	}
+
+	/**
+	 * Write the next batch of unsent samples to the outbox.
+	 *
+	 * @return The batch, or null if there's nothing new to send.
+	 */
+	private File createBatch(Collection<String> systemIds) throws IOException {
+		Map<String, SampleBatch> batch = new LinkedHashMap<String, SampleBatch>();
+		int room = maxBatchSamples;
+		for (String systemId : systemIds) {
+			if (room == 0) {
+				break;
+			}
+			if (buffers.size() == batch.size()) {
+				buffers.add(new SampleBatch());
+			}
+			SampleBatch unsent = buffers.get(batch.size());
+			unsent.clear();
+			long cursor = settings.getLong(KEY_CURSOR_PREFIX + systemId, Long.MIN_VALUE);
+			int read = samples.read(systemId, cursor + 1, Long.MAX_VALUE, room, unsent);
+			if (read > 0) {
+				batch.put(systemId, unsent);
+				room -= read;
+			}
+		}
+		if (batch.isEmpty()) {
+			return null;
+		}
+
+		String uploaderId = getUploaderId();
+		long sequence = settings.getLong(KEY_SEQUENCE, 0) + 1;
+		settings.putLong(KEY_SEQUENCE, sequence);
+		settings.flush();
+		byte[] encoded = BatchFormat.encode(uploaderId, sequence, System.currentTimeMillis(), batch);
+
+		File file = new File(outbox, String.format("%019d", sequence) + BATCH_SUFFIX);
+		File tmp = new File(outbox, file.getName() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(encoded);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Couldn't move batch into " + outbox);
+		}
+		return file;
+	}
+
+	/**
+	 * Send a batch from the outbox, and once it's accepted move the cursors
+	 * of its systems past it and delete it.
+	 *
+	 * @return How many samples it held.
+	 */
+	private int send(File file) throws ApiException, IOException {
+		byte[] encoded = readFile(file);
+		BatchFormat.Batch batch;
+		try {
+			batch = BatchFormat.decode(encoded);
+		} catch (IOException e) {
+			// Left half written by a crash; its samples are still unsent
+			log.warning("Dropping unreadable batch " + file.getName());
+			file.delete();
+			return 0;
+		}
+
+		// The format gzips itself; it isn't a transport encoding to undo
+		client.post(collectorUrl, encoded, BatchFormat.CONTENT_TYPE, null);
+
+		int count = 0;
+		for (Map.Entry<String, SampleBatch> system : batch.samples.entrySet()) {
+			SampleBatch sent = system.getValue();
+			if (sent.isEmpty()) {
+				continue;
+			}
+			String key = KEY_CURSOR_PREFIX + system.getKey();
+			long newest = sent.getLastTimestamp();
+			if (newest > settings.getLong(key, Long.MIN_VALUE)) {
+				settings.putLong(key, newest);
+			}
+			count += sent.size();
+		}
+		// Until the cursors are on disk the file is the only record it went
+		settings.flush();
+		file.delete();
+
+		Metrics.UPLOADS.increment();
+		Metrics.UPLOADED_SAMPLES.add(count);
+		Metrics.UPLOADED_BYTES.add(encoded.length);
+		return count;
+	}
+
+	private String getUploaderId() {
+		String id = settings.getString(KEY_UPLOADER_ID, null);
+		if (id == null) {
+			id = UUID.randomUUID().toString();
+			settings.putString(KEY_UPLOADER_ID, id);
+		}
+		return id;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream((int) file.length());
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				content.write(buffer, 0, read);
+			}
+			return content.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
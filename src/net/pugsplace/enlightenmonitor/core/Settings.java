@@ -0,0 +1,30 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.io.IOException;
+
+/**
+ * Key/value storage for configuration and small bits of state, such as when
+ * each system was last refreshed. On Android this is backed by
+ * SharedPreferences; the daemon keeps it in a properties file.
+ *
+ * Implementations must be safe to use from several threads at once.
+ */
+public interface Settings {
+	String getString(String key, String defaultValue);
+
+	void putString(String key, String value);
+
+	long getLong(String key, long defaultValue);
+
+	void putLong(String key, long value);
+
+	void remove(String key);
+
+	/**
+	 * Write every change made so far through to storage, blocking until
+	 * done. Use before acting on a change that has to survive the process
+	 * dying.
+	 */
+	void flush() throws IOException;
+}
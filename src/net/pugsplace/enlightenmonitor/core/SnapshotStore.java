@@ -0,0 +1,142 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The last good reading of every system, in one small file, so that after a
+ * restart something can be shown before the first fetch completes. The
+ * file is read on first use rather than at startup, and rewritten whole
+ * after each refresh that brought anything newer.
+ */
+public class SnapshotStore {
+	private static final int VERSION = 1;
+
+	private static final Logger log = Logger.getLogger("eSolarMonitor");
+
+	private final File file;
+
+	/** Null until first loaded */
+	private Map<String, SolarPerformance> readings = null;
+
+	public SnapshotStore(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return The system's last good reading, or null if there is none.
+	 */
+	public synchronized SolarPerformance get(String systemId) {
+		return load().get(systemId);
+	}
+
+	/**
+	 * Keep the given readings where they're newer than those already held,
+	 * and write the file if any were.
+	 */
+	public synchronized void putAll(Map<String, SolarPerformance> latest) throws IOException {
+		Map<String, SolarPerformance> current = load();
+		boolean changed = false;
+		for (Map.Entry<String, SolarPerformance> entry : latest.entrySet()) {
+			SolarPerformance reading = entry.getValue();
+			SolarPerformance previous = current.get(entry.getKey());
+			if (reading != null
+					&& (previous == null || reading.getTimestampMillis() > previous.getTimestampMillis())) {
+				current.put(entry.getKey(), reading);
+				changed = true;
+			}
+		}
+		if (changed) {
+			write(current);
+		}
+	}
+
+	/**
+	 * Forget a system's reading.
+	 */
+	public synchronized void remove(String systemId) throws IOException {
+		Map<String, SolarPerformance> current = load();
+		if (current.remove(systemId) != null) {
+			write(current);
+		}
+	}
+
+	private Map<String, SolarPerformance> load() {
+		if (readings != null) {
+			return readings;
+		}
+
+		readings = new HashMap<String, SolarPerformance>();
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != VERSION) {
+					log.warning("Ignoring snapshot of an unknown version");
+					return readings;
+				}
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					String systemId = in.readUTF();
+					// Arguments are read in order, as they were written
+					readings.put(systemId, new SolarPerformance(in.readLong(), in.readDouble(), in.readDouble(), in
+							.readDouble(), in.readDouble(), in.readDouble()));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (FileNotFoundException e) {
+			// Nothing saved yet
+		} catch (EOFException e) {
+			log.warning("Snapshot was cut short; keeping what was read");
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't read snapshot", e);
+		}
+		return readings;
+	}
+
+	/**
+	 * Write to a new file and rename it over the old, so a crash mid-write
+	 * leaves the last snapshot intact.
+	 */
+	private void write(Map<String, SolarPerformance> current) throws IOException {
+		File parent = file.getParentFile();
+		if (parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(VERSION);
+			out.writeInt(current.size());
+			for (Map.Entry<String, SolarPerformance> entry : current.entrySet()) {
+				SolarPerformance reading = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeLong(reading.getTimestampMillis());
+				out.writeDouble(reading.getRawCurrentWatts());
+				out.writeDouble(reading.getRawTodayWattHours());
+				out.writeDouble(reading.getRawWeekWattHours());
+				out.writeDouble(reading.getRawMonthWattHours());
+				out.writeDouble(reading.getRawLifetimeWattHours());
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+			throw new IOException("Couldn't replace " + file);
+		}
+	}
+}
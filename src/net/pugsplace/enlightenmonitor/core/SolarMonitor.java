@@ -0,0 +1,306 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Everything needed to keep track of a set of systems, without reference to
+ * Android: fetching their performance, remembering when each was last
+ * refreshed, deciding when each is next due and recording their history.
+ * The widget and the headless daemon each wrap one of these.
+ *
+ * Safe to use from several threads at once. Callers asking for a system
+ * while it is being fetched wait for that fetch and share its result, and
+ * the result is handed out again for {@link #DEFAULT_RESULT_TTL_MS}, so
+ * however many widgets, services or threads ask, a system is only requested
+ * once at a time.
+ */
+public class SolarMonitor {
+	/** URL of a system's array viewer data, with a %s for the system ID */
+	public static final String DEFAULT_PERFORMANCE_URL = "http://enlighten.enphaseenergy.com/public/systems/%s/array_viewer_performance_data.json";
+
+	static final String KEY_LAST_REFRESH = "lastRefresh";
+
+	/** How long a fetched reading is handed out again rather than fetched anew */
+	public static final long DEFAULT_RESULT_TTL_MS = 30 * 1000;
+
+	private static final Logger log = Logger.getLogger("eSolarMonitor");
+
+	private final EnlightenClient client;
+	private final EnlightenSource cloud;
+	private final Settings settings;
+	private final SampleStores samples;
+	private final RefreshScheduler scheduler = new RefreshScheduler();
+
+	/** Systems read from somewhere other than the Enlighten cloud */
+	private final ConcurrentHashMap<String, DataSource> sources = new ConcurrentHashMap<String, DataSource>();
+
+	/** Fetches in progress, each shared by every caller asking for its system meanwhile */
+	private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+	/** Latest reading of each system, reused while younger than resultTtlMs */
+	private final ConcurrentHashMap<String, SolarPerformance> recent = new ConcurrentHashMap<String, SolarPerformance>();
+	private volatile long resultTtlMs = DEFAULT_RESULT_TTL_MS;
+
+	/**
+	 * One fetch of one system, and its outcome once it has one.
+	 */
+	private static class Flight {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private SolarPerformance result;
+		private Throwable failure;
+
+		void finish(SolarPerformance result, Throwable failure) {
+			this.result = result;
+			this.failure = failure;
+			done.countDown();
+		}
+
+		/**
+		 * Wait for the fetch, then return its result or throw what it threw.
+		 */
+		SolarPerformance await() throws ApiException, ParseException {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					done.await();
+					break;
+				} catch (InterruptedException e) {
+					// The fetch has its own timeouts, so finish waiting for it
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+
+			if (failure instanceof ApiException) {
+				throw (ApiException) failure;
+			} else if (failure instanceof ParseException) {
+				throw (ParseException) failure;
+			} else if (failure instanceof Error) {
+				throw (Error) failure;
+			} else if (failure != null) {
+				throw (RuntimeException) failure;
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * @param client
+	 *            Used for every request to the Enlighten cloud.
+	 * @param urlTemplate
+	 *            Performance URL, with a %s for the system ID.
+	 * @param settings
+	 *            Holds when each system was last refreshed.
+	 * @param samples
+	 *            Where fetched samples are recorded, or null to keep no
+	 *            history.
+	 */
+	public SolarMonitor(EnlightenClient client, String urlTemplate, Settings settings, SampleStores samples) {
+		this.client = client;
+		this.cloud = new EnlightenSource(client, urlTemplate);
+		this.settings = settings;
+		this.samples = samples;
+	}
+
+	/**
+	 * Fetch the performance of one system, recording it as the system's
+	 * latest sample. This call blocks until the request has completed.
+	 *
+	 * If the system was fetched within the result TTL, that reading is
+	 * returned instead; if it's being fetched right now, this waits for that
+	 * fetch rather than making another.
+	 *
+	 * @return The reading, which may be shared with other callers.
+	 */
+	public SolarPerformance getPerformanceData(String systemId) throws ApiException, ParseException {
+		SolarPerformance cached = getRecent(systemId);
+		if (cached != null) {
+			return cached;
+		}
+
+		Flight flight = new Flight();
+		Flight inProgress = flights.putIfAbsent(systemId, flight);
+		if (inProgress != null) {
+			Metrics.COALESCED.increment();
+			return inProgress.await();
+		}
+
+		// Every path out finishes the flight, or its waiters would wait forever
+		try {
+			// The flight before may have landed since the check above
+			cached = getRecent(systemId);
+			if (cached != null) {
+				flight.finish(cached, null);
+				return cached;
+			}
+
+			SolarPerformance perform = fetch(systemId);
+			recent.put(systemId, perform);
+			flight.finish(perform, null);
+			return perform;
+		} catch (ApiException e) {
+			flight.finish(null, e);
+			throw e;
+		} catch (ParseException e) {
+			flight.finish(null, e);
+			throw e;
+		} catch (RuntimeException e) {
+			flight.finish(null, e);
+			throw e;
+		} catch (Error e) {
+			flight.finish(null, e);
+			throw e;
+		} finally {
+			flights.remove(systemId, flight);
+		}
+	}
+
+	/**
+	 * @return The system's latest reading if it's younger than the result
+	 *         TTL, otherwise null.
+	 */
+	private SolarPerformance getRecent(String systemId) {
+		SolarPerformance cached = recent.get(systemId);
+		if (cached != null && System.currentTimeMillis() - cached.getTimestampMillis() < resultTtlMs) {
+			Metrics.RECENT_HITS.increment();
+			return cached;
+		}
+		return null;
+	}
+
+	/**
+	 * Set how long a fetched reading is handed out again rather than fetched
+	 * anew. Zero makes every call fetch, unless one is already in progress.
+	 */
+	public void setResultTtl(long ttlMs) {
+		resultTtlMs = ttlMs;
+	}
+
+	private SolarPerformance fetch(String systemId) throws ApiException, ParseException {
+		SolarPerformance perform = getDataSource(systemId).getPerformance(systemId);
+
+		setLastRefresh(systemId, perform.getTimestampMillis());
+		if (samples != null) {
+			samples.record(systemId, perform);
+		}
+		if (log.isLoggable(Level.FINE)) {
+			log.fine(perform.toString());
+		}
+
+		return perform;
+	}
+
+	/**
+	 * Read a system from the given source rather than the Enlighten cloud,
+	 * such as its gateway or a {@link FallbackSource} of the gateway then the
+	 * cloud.
+	 *
+	 * @param source
+	 *            The source, or null to go back to the cloud.
+	 */
+	public void setDataSource(String systemId, DataSource source) {
+		if (source == null) {
+			sources.remove(systemId);
+		} else {
+			sources.put(systemId, source);
+		}
+	}
+
+	/**
+	 * @return Where the system is read from.
+	 */
+	public DataSource getDataSource(String systemId) {
+		DataSource source = sources.get(systemId);
+		return source != null ? source : cloud;
+	}
+
+	/**
+	 * @return The source reading systems from the Enlighten cloud, which is
+	 *         used for any system not given one of its own.
+	 */
+	public EnlightenSource getCloudSource() {
+		return cloud;
+	}
+
+	/**
+	 * Choose whether reads from the cloud parse and keep each system's full
+	 * data, every dataset and its points, or only the primary stats.
+	 */
+	public void setKeepArrayData(boolean keep) {
+		cloud.setKeepArrayData(keep);
+	}
+
+	/**
+	 * @return The full data from the system's last read from the cloud, or
+	 *         null if it hasn't been read there while
+	 *         {@link #setKeepArrayData(boolean) keeping} it.
+	 */
+	public ArrayData getArrayData(String systemId) {
+		return cloud.getArrayData(systemId);
+	}
+
+	/**
+	 * Forget a system's full data and latest reading, for instance once it is
+	 * no longer watched or has been configured afresh.
+	 */
+	public void forget(String systemId) {
+		cloud.forget(systemId);
+		recent.remove(systemId);
+		RequestAdmission admission = client.getAdmission();
+		if (admission != null) {
+			admission.forget(systemId);
+		}
+	}
+
+	public long getLastRefresh(String systemId) {
+		return settings.getLong(KEY_LAST_REFRESH + "_" + systemId, 0);
+	}
+
+	public void setLastRefresh(String systemId, long timeMillis) {
+		settings.putLong(KEY_LAST_REFRESH + "_" + systemId, timeMillis);
+	}
+
+	/**
+	 * @return When the system should next be polled, given the user's
+	 *         refresh rate for it.
+	 */
+	public long getNextDue(String systemId, long baseMs) {
+		return scheduler.getNextDue(systemId, baseMs, getLastRefresh(systemId));
+	}
+
+	public boolean isDue(String systemId, long now, long baseMs) {
+		return scheduler.isDue(systemId, now, baseMs, getLastRefresh(systemId));
+	}
+
+	/**
+	 * @return The cloud performance URL, with a %s for the system ID.
+	 */
+	public String getPerformanceUrl() {
+		return cloud.getUrlTemplate();
+	}
+
+	public EnlightenClient getClient() {
+		return client;
+	}
+
+	public Settings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * @return The sample histories, or null if none are kept.
+	 */
+	public SampleStores getSampleStores() {
+		return samples;
+	}
+
+	public RefreshScheduler getScheduler() {
+		return scheduler;
+	}
+}
@@ -0,0 +1,132 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import net.pugsplace.enlightenmonitor.core.PerformanceFormatter.unitSize;
+
+/**
+ * One reading of a system. Immutable, so a single instance can be shared by
+ * every thread, the drawing code included. The display strings are
+ * formatted on first use and kept; two threads racing to do so only format
+ * the same string twice.
+ */
+public final class SolarPerformance {
+	private static final DateFormat dateFormat = SimpleDateFormat.getTimeInstance();
+
+	private final double currentWatts;
+	private final double todayWattHours;
+	private final double weekWattHours;
+	private final double monthWattHours;
+	private final double lifetimeWattHours;
+	private final long timestampMillis;
+
+	private String currentWattsText;
+	private String todayWattHoursText;
+	private String weekWattHoursText;
+	private String monthWattHoursText;
+	private String lifetimeWattHoursText;
+	private String timestamp;
+
+	public SolarPerformance(long timestampMillis, double currentWatts, double todayWattHours, double weekWattHours,
+			double monthWattHours, double lifetimeWattHours) {
+		this.timestampMillis = timestampMillis;
+		this.currentWatts = currentWatts;
+		this.todayWattHours = todayWattHours;
+		this.weekWattHours = weekWattHours;
+		this.monthWattHours = monthWattHours;
+		this.lifetimeWattHours = lifetimeWattHours;
+	}
+
+	public String getCurrentWatts() {
+		if (currentWattsText == null) {
+			currentWattsText = PerformanceFormatter.format(currentWatts, false, unitSize.watt);
+		}
+		return currentWattsText;
+	}
+
+	public String getTodayWattHours() {
+		if (todayWattHoursText == null) {
+			todayWattHoursText = PerformanceFormatter.format(todayWattHours, true, unitSize.kilowatt);
+		}
+		return todayWattHoursText;
+	}
+
+	public String getWeekWattHours() {
+		if (weekWattHoursText == null) {
+			weekWattHoursText = PerformanceFormatter.format(weekWattHours, true, unitSize.kilowatt);
+		}
+		return weekWattHoursText;
+	}
+
+	public String getMonthWattHours() {
+		if (monthWattHoursText == null) {
+			monthWattHoursText = PerformanceFormatter.format(monthWattHours, true, unitSize.kilowatt);
+		}
+		return monthWattHoursText;
+	}
+
+	public String getLifetimeWattHours() {
+		if (lifetimeWattHoursText == null) {
+			lifetimeWattHoursText = PerformanceFormatter.format(lifetimeWattHours, true, unitSize.kilowatt);
+		}
+		return lifetimeWattHoursText;
+	}
+
+	/**
+	 * @return The same values as read at another time.
+	 */
+	public SolarPerformance withTimestamp(long timestampMillis) {
+		SolarPerformance copy = new SolarPerformance(timestampMillis, currentWatts, todayWattHours, weekWattHours,
+				monthWattHours, lifetimeWattHours);
+		copy.currentWattsText = currentWattsText;
+		copy.todayWattHoursText = todayWattHoursText;
+		copy.weekWattHoursText = weekWattHoursText;
+		copy.monthWattHoursText = monthWattHoursText;
+		copy.lifetimeWattHoursText = lifetimeWattHoursText;
+		return copy;
+	}
+
+	/* Unformatted values, in watts or watt-hours, for storage */
+
+	public double getRawCurrentWatts() {
+		return currentWatts;
+	}
+
+	public double getRawTodayWattHours() {
+		return todayWattHours;
+	}
+
+	public double getRawWeekWattHours() {
+		return weekWattHours;
+	}
+
+	public double getRawMonthWattHours() {
+		return monthWattHours;
+	}
+
+	public double getRawLifetimeWattHours() {
+		return lifetimeWattHours;
+	}
+
+	public long getTimestampMillis() {
+		return timestampMillis;
+	}
+
+	public String toString() {
+		return "C: " + currentWatts + ", T: " + todayWattHours + ", W: " + weekWattHours + ", M: " + monthWattHours
+				+ ", L: " + lifetimeWattHours;
+	}
+
+	public String getTimestamp() {
+		if (timestamp == null) {
+			// DateFormat isn't thread safe, so share it under its own lock
+			synchronized (dateFormat) {
+				timestamp = dateFormat.format(new Date(timestampMillis));
+			}
+		}
+		return timestamp;
+	}
+}
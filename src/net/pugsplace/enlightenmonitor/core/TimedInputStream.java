@@ -0,0 +1,45 @@
+/* Copyright 2010 J.C. Jones, All Rights Reserved */
+package net.pugsplace.enlightenmonitor.core;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Adds up the time spent waiting in reads, so a parser streaming a response
+ * can tell its own work apart from waiting on the network.
+ */
+class TimedInputStream extends FilterInputStream {
+	private long readNanos = 0;
+
+	TimedInputStream(InputStream in) {
+		super(in);
+	}
+
+	/**
+	 * @return Time spent in reads so far, in nanoseconds.
+	 */
+	long getReadNanos() {
+		return readNanos;
+	}
+
+	@Override
+	public int read() throws IOException {
+		long start = System.nanoTime();
+		try {
+			return super.read();
+		} finally {
+			readNanos += System.nanoTime() - start;
+		}
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return super.read(buffer, offset, length);
+		} finally {
+			readNanos += System.nanoTime() - start;
+		}
+	}
+}